@@ -7,7 +7,11 @@ import org.opencv.android.OpenCVLoader;
 public class SafeSphereApp extends Application {
 
     private static final String TAG = "SafeSphereApp";
-    public static final int VIDEO_SAMPLING_INTERVAL_MS = 700;
+    // Video frames are sampled every 2 s while nothing happens and up to every 200 ms around events,
+    // with at most VIDEO_FRAME_BUDGET frames analyzed per video.
+    public static final int VIDEO_MIN_SAMPLING_INTERVAL_MS = 200;
+    public static final int VIDEO_MAX_SAMPLING_INTERVAL_MS = 2000;
+    public static final int VIDEO_FRAME_BUDGET = 90;
 
     @Override
     public void onCreate() {
@@ -0,0 +1,129 @@
+package com.android.safesphere.ml;
+
+import android.util.Log;
+
+/**
+ * Decides which video frames are worth analyzing. Sampling starts sparse, at the maximum interval,
+ * drops to the minimum interval as soon as something happens - the frame changes, motion is
+ * detected or the cumulative risk rises - and backs off again while the video stays static. A
+ * frame budget caps the work per video: once the duration is known the interval never falls below
+ * what the remaining budget allows for the rest of the video, and no frame is sampled past it.
+ *
+ * <p>A {@link FrameSource} asks for the next sample time on the decode thread while the
+ * {@link VideoAnalysisPipeline} reports frame changes (decode thread) and analysis results (infer
+ * thread), so all state is guarded by this object's lock. Risk and motion arrive a few frames late,
+ * after the pipeline's look-ahead; the frame difference reacts at once.
+ */
+public class AdaptiveFrameSampler {
+    private static final String TAG = "AdaptiveFrameSampler";
+    private static final float BACKOFF_FACTOR = 1.5f; // Interval growth per quiet frame.
+    private static final float DIFFERENCE_THRESHOLD = 6.0f; // Mean gray-level change, 0-255.
+    private static final float MOTION_THRESHOLD = 20.0f; // Motion anomaly score, 0-100.
+    private static final float RISK_RISE_THRESHOLD = 2.0f; // Cumulative risk points per frame.
+
+    private final long minIntervalUs;
+    private final long maxIntervalUs;
+    private final int frameBudget;
+    private final FrameDifference difference = new FrameDifference();
+
+    private long durationUs = -1;
+    private long intervalUs;
+    private int sampledFrames = 0;
+    private int denseTriggers = 0;
+    private float previousRisk = -1.0f;
+
+    public AdaptiveFrameSampler(long minIntervalMs, long maxIntervalMs, int frameBudget) {
+        this.minIntervalUs = Math.max(1, minIntervalMs) * 1000;
+        this.maxIntervalUs = Math.max(minIntervalMs, maxIntervalMs) * 1000;
+        this.frameBudget = Math.max(1, frameBudget);
+        this.intervalUs = this.maxIntervalUs;
+    }
+
+    /** A sampler with a constant interval and no budget, i.e. plain fixed-rate sampling. */
+    public static AdaptiveFrameSampler fixed(long intervalMs) {
+        return new AdaptiveFrameSampler(intervalMs, intervalMs, Integer.MAX_VALUE);
+    }
+
+    /** Duration of the video in microseconds, used to spread the budget; unknown (-1) by default. */
+    public synchronized void setDurationUs(long durationUs) {
+        this.durationUs = durationUs;
+    }
+
+    /**
+     * Earliest presentation time of the next frame to sample after one sampled at
+     * {@code previousUs} (negative before the first), or -1 once the budget is spent.
+     */
+    public synchronized long nextSampleUs(long previousUs) {
+        if (sampledFrames >= frameBudget) {
+            return -1;
+        }
+        if (previousUs < 0) {
+            return 0;
+        }
+        long interval = intervalUs;
+        if (durationUs > 0 && frameBudget != Integer.MAX_VALUE) { // MAX_VALUE: no budget, see fixed().
+            // Spread what is left of the budget over what is left of the video; one gap more than
+            // frames left, or the last frame would fall on the end of the video.
+            interval = Math.max(interval, (durationUs - previousUs) / (frameBudget - sampledFrames + 1));
+        }
+        return previousUs + interval;
+    }
+
+    /** Counts a frame against the budget; called by the source for every frame it emits. */
+    public synchronized void onFrameSampled() {
+        sampledFrames++;
+    }
+
+    /** Compares a freshly decoded frame with the previous one; called on the decode thread. */
+    public void onFrameDecoded(FrameContext frame) {
+        if (minIntervalUs == maxIntervalUs) {
+            return; // Fixed rate, nothing to adapt.
+        }
+        float change;
+        synchronized (difference) {
+            change = difference.update(frame);
+        }
+        onFrameChange(change);
+    }
+
+    /** Adapts the interval to a decoded frame's mean gray-level change from the previous one, 0-255. */
+    void onFrameChange(float change) {
+        update(change > DIFFERENCE_THRESHOLD);
+    }
+
+    /**
+     * Feeds back the analysis of a frame and the cumulative risk after it. Only speeds sampling up;
+     * backing off is left to the frame difference, which sees every sampled frame first.
+     */
+    public synchronized void onFrameAnalyzed(FrameAnalysis analysis, float cumulativeRisk) {
+        boolean rising = previousRisk >= 0 && cumulativeRisk - previousRisk > RISK_RISE_THRESHOLD;
+        previousRisk = cumulativeRisk;
+        if (rising || analysis.motionScore > MOTION_THRESHOLD) {
+            update(true);
+        }
+    }
+
+    private synchronized void update(boolean active) {
+        if (active) {
+            if (intervalUs != minIntervalUs) {
+                denseTriggers++;
+            }
+            intervalUs = minIntervalUs;
+        } else {
+            intervalUs = Math.min(maxIntervalUs, (long) (intervalUs * BACKOFF_FACTOR));
+        }
+    }
+
+    public synchronized int getSampledFrames() {
+        return sampledFrames;
+    }
+
+    public void release() {
+        synchronized (difference) {
+            difference.release();
+        }
+        synchronized (this) {
+            Log.d(TAG, "Sampled " + sampledFrames + " frames, " + denseTriggers + " dense bursts.");
+        }
+    }
+}
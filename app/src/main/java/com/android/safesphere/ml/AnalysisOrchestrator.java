@@ -0,0 +1,331 @@
+package com.android.safesphere.ml;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the independent analyzers of a frame (or a batch of frames) concurrently and joins their
+ * results into {@link RiskCalculator#calculateRiskScore}, so a frame takes about as long as its
+ * slowest analyzer instead of the sum of all four.
+ *
+ * <p>Each stage is one task on a fixed worker pool: the scene stage classifies the whole batch in one
+ * call so CLIP batching is kept, and the motion stage walks the frames in order because the motion
+ * detector compares each frame with the previous one. Every stage has its own timeout, scaled by the
+ * batch size; a stage that misses it contributes its neutral value. The late task cannot be
+ * cancelled - TFLite and OpenCV calls are not interruptible - so it keeps running, its result is
+ * dropped, and the stage is skipped on later frames until it finishes. A model is therefore never
+ * used by two threads at once.
+ *
+ * <p>An optional {@link AnalyzerCascade} screens the frames first: only frames it finds changed are
+ * sent to the scene and object stages, the others reuse the results of the latest one that was.
+ *
+ * <p>Not thread-safe: call it from one analysis thread. Every stage task {@link FrameContext#retain()
+ * retains} the frames it reads until it finishes, so a stage that timed out keeps them alive past the
+ * call: a {@link FrameContext} waits for it on {@code reset} and {@code release}, and a caller that
+ * recycles a frame's bitmap or closes its camera image must call {@link FrameContext#awaitIdle()}
+ * first.
+ */
+public class AnalysisOrchestrator implements AutoCloseable {
+    private static final String TAG = "AnalysisOrchestrator";
+
+    public enum Stage { MOTION, OBJECTS, SCENE, LIGHTING }
+
+    private static final int STAGES = Stage.values().length;
+    private static final long CLOSE_WARNING_SECONDS = 5;
+    private static final ClassificationResult UNKNOWN_SCENE = new ClassificationResult(0.0f, "unknown", 0.0f);
+
+    private final SceneClassifier sceneClassifier;
+    private final ObjectDetector objectDetector;
+    private final LightingAnalyzer lightingAnalyzer;
+    private final RiskCalculator riskCalculator;
+    private final ExecutorService workers;
+
+    // Per-frame stage timeouts, and the task of each stage that is still running past its timeout.
+    private final long[] timeoutMillis = {1000, 1500, 2000, 250};
+    private final Future<?>[] stragglers = new Future<?>[STAGES];
+    private final int[] timeouts = new int[STAGES];
+    private final int[] skips = new int[STAGES];
+    private long lastLatencyNanos;
+
+    public AnalysisOrchestrator(SceneClassifier sceneClassifier, ObjectDetector objectDetector,
+                                LightingAnalyzer lightingAnalyzer, RiskCalculator riskCalculator) {
+        this(sceneClassifier, objectDetector, lightingAnalyzer, riskCalculator, STAGES);
+    }
+
+    /** @param threads worker threads; fewer than the number of stages makes some stages queue */
+    public AnalysisOrchestrator(SceneClassifier sceneClassifier, ObjectDetector objectDetector,
+                                LightingAnalyzer lightingAnalyzer, RiskCalculator riskCalculator, int threads) {
+        this.sceneClassifier = sceneClassifier;
+        this.objectDetector = objectDetector;
+        this.lightingAnalyzer = lightingAnalyzer;
+        this.riskCalculator = riskCalculator;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads));
+    }
+
+    /**
+     * Analyzes one frame. {@code motionDetector} may be null for still images, which then score no
+     * motion; {@code rotation} is the camera rotation since the previous frame.
+     */
+    public FrameAnalysis analyze(FrameContext frame, float[] rotation, MotionAnomalyDetector motionDetector) {
+        return analyze(frame, rotation, motionDetector, null);
+    }
+
+    /** Analyzes one frame of a stream, reusing scene and object results where {@code cascade} allows. */
+    public FrameAnalysis analyze(FrameContext frame, float[] rotation, MotionAnomalyDetector motionDetector,
+                                 AnalyzerCascade cascade) {
+        return analyze(Collections.singletonList(frame), new float[][]{rotation}, motionDetector, cascade)[0];
+    }
+
+    /**
+     * Analyzes consecutive frames, {@code rotations[i]} being the camera rotation between frame
+     * {@code i - 1} and frame {@code i}.
+     *
+     * @return one analysis per frame, in the same order
+     */
+    public FrameAnalysis[] analyze(List<FrameContext> frames, float[][] rotations, MotionAnomalyDetector motionDetector) {
+        return analyze(frames, rotations, motionDetector, null);
+    }
+
+    /**
+     * Analyzes consecutive frames of a stream. With a {@code cascade}, scene and object results are
+     * only computed for the frames it lets through; may be null to analyze every frame in full.
+     */
+    public FrameAnalysis[] analyze(List<FrameContext> frames, float[][] rotations, MotionAnomalyDetector motionDetector,
+                                   AnalyzerCascade cascade) {
+        long start = System.nanoTime();
+        int count = frames.size();
+
+        // Cheap stage first: frames the cascade lets through are classified, each of the others takes
+        // the results of the latest one before it (sourceOf -1: the cascade's cached results).
+        List<FrameContext> changed = frames;
+        int[] sourceOf = null;
+        if (cascade != null) {
+            changed = new ArrayList<>(count);
+            sourceOf = new int[count];
+            for (int i = 0; i < count; i++) {
+                if (cascade.shouldRefresh(frames.get(i))) {
+                    changed.add(frames.get(i));
+                }
+                sourceOf[i] = changed.size() - 1;
+            }
+        }
+        List<FrameContext> refreshed = changed;
+        int refreshCount = refreshed.size();
+
+        Future<float[]> motion = motionDetector == null ? null : submit(Stage.MOTION, frames, () -> {
+            float[] scores = new float[count];
+            for (int i = 0; i < count; i++) {
+                scores[i] = motionDetector.detectAnomalies(frames.get(i), rotations[i]);
+            }
+            return scores;
+        });
+        Future<boolean[]> objects = refreshCount == 0 ? null : submit(Stage.OBJECTS, refreshed, () -> {
+            boolean[] found = new boolean[refreshCount];
+            for (int i = 0; i < refreshCount; i++) {
+                found[i] = objectDetector.containsDangerousObject(refreshed.get(i));
+            }
+            return found;
+        });
+        Future<ClassificationResult[]> scenes = refreshCount == 0 ? null
+                : submit(Stage.SCENE, refreshed, () -> sceneClassifier.classifyFrames(refreshed));
+        Future<float[]> lighting = submit(Stage.LIGHTING, frames, () -> {
+            float[] risks = new float[count];
+            for (int i = 0; i < count; i++) {
+                risks[i] = lightingAnalyzer.analyzeLighting(frames.get(i));
+            }
+            return risks;
+        });
+
+        // Join. Deadlines run from the fan-out, so waiting on one stage uses up no other stage's time.
+        int missing = 0;
+        float[] motionScores = motionDetector == null ? null : await(Stage.MOTION, motion, start, count);
+        if (motionDetector != null && motionScores == null) {
+            missing |= 1 << Stage.MOTION.ordinal();
+        }
+        boolean[] objectsFound = await(Stage.OBJECTS, objects, start, refreshCount);
+        if (refreshCount > 0 && objectsFound == null) {
+            missing |= 1 << Stage.OBJECTS.ordinal();
+        }
+        ClassificationResult[] sceneResults = await(Stage.SCENE, scenes, start, refreshCount);
+        if (refreshCount > 0 && sceneResults == null) {
+            missing |= 1 << Stage.SCENE.ordinal();
+        }
+        float[] lightingRisks = await(Stage.LIGHTING, lighting, start, count);
+        if (lightingRisks == null) {
+            missing |= 1 << Stage.LIGHTING.ordinal();
+        }
+
+        FrameAnalysis[] results = new FrameAnalysis[count];
+        for (int i = 0; i < count; i++) {
+            int source = sourceOf == null ? i : sourceOf[i];
+            ClassificationResult scene;
+            boolean objectFound;
+            if (source >= 0) {
+                scene = sceneResults == null ? UNKNOWN_SCENE : sceneResults[source];
+                objectFound = objectsFound != null && objectsFound[source];
+            } else {
+                scene = cascade.cachedScene();
+                objectFound = cascade.cachedObjectFound();
+            }
+            float motionScore = motionScores == null ? 0.0f : motionScores[i];
+            float lightingRisk = lightingRisks == null ? 0.0f : lightingRisks[i];
+            int riskScore = riskCalculator.calculateRiskScore(scene.riskScore, motionScore, lightingRisk, objectFound);
+            results[i] = new FrameAnalysis(riskScore, scene, motionScore, lightingRisk, objectFound, missing);
+        }
+        if (cascade != null) {
+            updateCascade(cascade, sceneResults, objectsFound, refreshCount, motionScores);
+        }
+        lastLatencyNanos = System.nanoTime() - start;
+        Log.d(TAG, String.format("Analyzed %d frame(s) in %.1f ms", count, lastLatencyNanos / 1_000_000.0));
+        return results;
+    }
+
+    private static void updateCascade(AnalyzerCascade cascade, ClassificationResult[] sceneResults,
+                                      boolean[] objectsFound, int refreshCount, float[] motionScores) {
+        if (refreshCount > 0) {
+            if (sceneResults == null || objectsFound == null) {
+                cascade.invalidate(); // Nothing trustworthy to reuse.
+            } else {
+                cascade.onRefreshed(sceneResults[refreshCount - 1], objectsFound[refreshCount - 1]);
+            }
+        }
+        if (motionScores != null) {
+            cascade.onMotion(motionScores[motionScores.length - 1]);
+        }
+    }
+
+    /**
+     * Submits a stage task reading {@code frames}, or returns null if the stage's previous task is
+     * still running late. The frames stay retained until the task has finished, even past a timeout.
+     */
+    private <T> Future<T> submit(Stage stage, List<FrameContext> frames, Callable<T> task) {
+        int s = stage.ordinal();
+        if (stragglers[s] != null) {
+            if (!stragglers[s].isDone()) {
+                skips[s]++;
+                Log.w(TAG, stage + " is still busy with an earlier frame, skipping it.");
+                return null;
+            }
+            stragglers[s] = null;
+        }
+        for (FrameContext frame : frames) {
+            frame.retain();
+        }
+        try {
+            return workers.submit(() -> {
+                try {
+                    return task.call();
+                } finally {
+                    for (FrameContext frame : frames) {
+                        frame.unretain();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            for (FrameContext frame : frames) {
+                frame.unretain();
+            }
+            throw e;
+        }
+    }
+
+    private <T> T await(Stage stage, Future<T> future, long startNanos, int frames) {
+        if (future == null) {
+            return null;
+        }
+        int s = stage.ordinal();
+        long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis[s] * frames);
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            timeouts[s]++;
+            stragglers[s] = future;
+            Log.w(TAG, stage + " missed its " + timeoutMillis[s] * frames + " ms timeout.");
+        } catch (ExecutionException e) {
+            Log.e(TAG, stage + " failed.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /** Per-frame timeout of {@code stage}; a batch of n frames gets n times as long. */
+    public void setTimeout(Stage stage, long millis) {
+        timeoutMillis[stage.ordinal()] = millis;
+    }
+
+    public int getTimeoutCount(Stage stage) {
+        return timeouts[stage.ordinal()];
+    }
+
+    public int getSkipCount(Stage stage) {
+        return skips[stage.ordinal()];
+    }
+
+    /** Wall time of the last {@code analyze} call, from fan-out to the joined result. */
+    public long getLastLatencyNanos() {
+        return lastLatencyNanos;
+    }
+
+    /**
+     * Blocks until the stage tasks that missed their timeout have finished, e.g. before releasing a
+     * motion detector that one of them may still be using. Not interruptible; an interrupt is kept
+     * pending for the caller.
+     */
+    public void awaitStragglers() {
+        boolean interrupted = false;
+        for (int s = 0; s < STAGES; s++) {
+            Future<?> straggler = stragglers[s];
+            while (straggler != null && !straggler.isDone()) {
+                try {
+                    straggler.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException | CancellationException e) {
+                    break; // Finished after all; its failure was already beyond the deadline.
+                }
+            }
+            stragglers[s] = null;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the workers and blocks until every stage task, late ones included, has finished, so the
+     * analyzers are idle when this returns and can go back to their pools. Not interruptible for the
+     * same reason; an interrupt is kept pending for the caller. The analyzers themselves are not
+     * closed.
+     */
+    @Override
+    public void close() {
+        workers.shutdown();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (workers.awaitTermination(CLOSE_WARNING_SECONDS, TimeUnit.SECONDS)) {
+                    break;
+                }
+                Log.w(TAG, "Stage tasks still running after " + CLOSE_WARNING_SECONDS + " s, still waiting.");
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
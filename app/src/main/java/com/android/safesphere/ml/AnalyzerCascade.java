@@ -0,0 +1,126 @@
+package com.android.safesphere.ml;
+
+import android.util.Log;
+
+/**
+ * Cheap first stage in front of the scene classifier and the object detector. Before a frame is
+ * sent to CLIP and YOLO it is compared with the last frame that was: if the thumbnail difference,
+ * the change in overall brightness and the latest motion score all stay under their thresholds,
+ * that frame's scene and object results are reused instead. A refresh is forced after
+ * {@code maxStaleFrames} reused frames in a row, so a slow drift is never missed for long.
+ *
+ * <p>The motion score is the one of the previous frame: motion of the current frame is computed
+ * concurrently with the scene and object stages and is not known when the cascade decides.
+ *
+ * <p>One cascade follows one stream of frames, like a {@link MotionAnomalyDetector}. Not
+ * thread-safe; {@link AnalysisOrchestrator} uses it from its calling thread only.
+ */
+public class AnalyzerCascade {
+    private static final String TAG = "AnalyzerCascade";
+    public static final float DEFAULT_CHANGE_THRESHOLD = 6.0f; // Mean gray-level difference, 0-255.
+    public static final float DEFAULT_LIGHTING_THRESHOLD = 4.0f; // Change of mean gray level, 0-255.
+    public static final float DEFAULT_MOTION_THRESHOLD = 20.0f; // Motion anomaly score, 0-100.
+    public static final int DEFAULT_MAX_STALE_FRAMES = 8;
+
+    private final float changeThreshold;
+    private final float lightingThreshold;
+    private final float motionThreshold;
+    private final int maxStaleFrames;
+    private final FrameDifference difference = new FrameDifference();
+
+    // Results of the last refreshed frame; null scene means the next frame must be refreshed.
+    private ClassificationResult cachedScene;
+    private boolean cachedObjectFound;
+    private float referenceLevel;
+    private float lastMotionScore = 0.0f;
+    private int staleFrames = 0;
+
+    private int frames = 0;
+    private int skippedFrames = 0;
+
+    public AnalyzerCascade() {
+        this(DEFAULT_CHANGE_THRESHOLD, DEFAULT_LIGHTING_THRESHOLD, DEFAULT_MOTION_THRESHOLD, DEFAULT_MAX_STALE_FRAMES);
+    }
+
+    public AnalyzerCascade(float changeThreshold, float lightingThreshold, float motionThreshold, int maxStaleFrames) {
+        this.changeThreshold = changeThreshold;
+        this.lightingThreshold = lightingThreshold;
+        this.motionThreshold = motionThreshold;
+        this.maxStaleFrames = maxStaleFrames;
+    }
+
+    /**
+     * Decides whether {@code frame} needs fresh scene and object results. A refreshed frame becomes
+     * the reference the following frames are compared with.
+     */
+    boolean shouldRefresh(FrameContext frame) {
+        float change = difference.compare(frame);
+        boolean refresh = decide(change, difference.meanLevel());
+        if (refresh) {
+            difference.keepAsReference();
+        }
+        return refresh;
+    }
+
+    /**
+     * The decision of {@link #shouldRefresh} for a frame that differs by {@code change} from the
+     * reference and has mean gray level {@code level}, both 0-255. Updates the staleness counters.
+     */
+    boolean decide(float change, float level) {
+        frames++;
+        boolean refresh = cachedScene == null
+                || staleFrames >= maxStaleFrames
+                || change > changeThreshold
+                || Math.abs(level - referenceLevel) > lightingThreshold
+                || lastMotionScore > motionThreshold;
+        if (refresh) {
+            referenceLevel = level;
+            staleFrames = 0;
+        } else {
+            staleFrames++;
+            skippedFrames++;
+        }
+        return refresh;
+    }
+
+    /** Stores the results of the latest refreshed frame for reuse. */
+    void onRefreshed(ClassificationResult scene, boolean objectFound) {
+        cachedScene = scene;
+        cachedObjectFound = objectFound;
+    }
+
+    /** Drops the cached results, e.g. after a stage failed, so the next frame is analyzed in full. */
+    void invalidate() {
+        cachedScene = null;
+    }
+
+    void onMotion(float motionScore) {
+        lastMotionScore = motionScore;
+    }
+
+    ClassificationResult cachedScene() {
+        return cachedScene;
+    }
+
+    boolean cachedObjectFound() {
+        return cachedObjectFound;
+    }
+
+    public int getFrameCount() {
+        return frames;
+    }
+
+    public int getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /** Share of frames whose scene and object results were reused, 0-1. */
+    public float getSkipRatio() {
+        return frames == 0 ? 0.0f : (float) skippedFrames / frames;
+    }
+
+    public void release() {
+        difference.release();
+        Log.d(TAG, String.format("Reused results for %d of %d frames (%.0f%%)", skippedFrames, frames, getSkipRatio() * 100));
+    }
+}
@@ -0,0 +1,299 @@
+package com.android.safesphere.ml;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.util.Log;
+import org.opencv.android.Utils;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sampled frames from one forward pass of {@link MediaExtractor} and {@link MediaCodec}. Every frame is
+ * decoded exactly once, in order, and only frames due according to an {@link AdaptiveFrameSampler}
+ * are converted to bitmaps; the rest are dropped straight from the codec. Timestamps are the frames'
+ * true presentation times. Decoding stops as soon as the sampler's frame budget is spent.
+ *
+ * <p>Compared with one {@code getFrameAtTime} seek per sample, nothing is decoded twice: a seek has to
+ * decode from the preceding sync frame, and with {@code OPTION_CLOSEST_SYNC} neighbouring samples
+ * often land on the same keyframe and return the same image again. Sequential decoding cannot emit a
+ * frame twice.
+ *
+ * <p>Frames larger than {@link FrameDecoder#ANALYSIS_SIZE} are scaled down before the bitmap is made;
+ * the codec still decodes full frames, but no full-size bitmap is allocated or handed downstream.
+ *
+ * <p>Some decoders cannot hand out a due frame as an {@link Image}, or hand out one that cannot be
+ * converted. Rather than drop such frames, the source switches to a {@link RetrieverFrameSource}
+ * driven by the same sampler, which carries on seeking after the last frame emitted.
+ */
+public class CodecFrameSource implements FrameSource {
+    private static final String TAG = "CodecFrameSource";
+    private static final long DEQUEUE_TIMEOUT_US = 10_000;
+
+    private final Context context;
+    private final Uri videoUri;
+    private final MediaExtractor extractor = new MediaExtractor();
+    private MediaCodec codec;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private final AdaptiveFrameSampler sampler;
+    private int rotationDegrees;
+    private boolean inputDone = false;
+    private boolean outputDone = false;
+    private long lastEmittedUs = -1;
+    private int decodedFrames = 0;
+    private int emittedFrames = 0;
+    private FrameSource fallback; // Takes over once the codec fails to produce a frame.
+
+    // YUV to RGBA conversion scratch, reused across frames.
+    private byte[] yuvBytes = new byte[0];
+    private byte[] rowBytes = new byte[0];
+    private final Mat yuvMat = new Mat();
+    private final Mat rgbaMat = new Mat();
+    private final Mat rotatedMat = new Mat();
+    private final Mat scaledMat = new Mat();
+
+    public CodecFrameSource(Context context, Uri videoUri, long intervalUs) throws IOException {
+        this(context, videoUri, AdaptiveFrameSampler.fixed(intervalUs / 1000));
+    }
+
+    public CodecFrameSource(Context context, Uri videoUri, AdaptiveFrameSampler sampler) throws IOException {
+        this.context = context;
+        this.videoUri = videoUri;
+        this.sampler = sampler;
+        try {
+            extractor.setDataSource(context, videoUri, null);
+            MediaFormat format = selectVideoTrack();
+            if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                sampler.setDurationUs(format.getLong(MediaFormat.KEY_DURATION));
+            }
+            rotationDegrees = format.containsKey(MediaFormat.KEY_ROTATION) ? format.getInteger(MediaFormat.KEY_ROTATION) : 0;
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+            codec.configure(format, null, null, 0);
+            codec.start();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * A codec-backed source for {@code videoUri}, or a {@link RetrieverFrameSource} at the same
+     * interval if the device cannot decode the stream this way.
+     *
+     * @throws IOException if neither source can read the video
+     */
+    public static FrameSource open(Context context, Uri videoUri, long intervalMs) throws IOException {
+        return open(context, videoUri, AdaptiveFrameSampler.fixed(intervalMs));
+    }
+
+    /**
+     * A codec-backed source for {@code videoUri} sampled by {@code sampler}, or a
+     * {@link RetrieverFrameSource} driven by the same sampler if the device cannot decode the stream
+     * this way.
+     *
+     * @throws IOException if neither source can read the video
+     */
+    public static FrameSource open(Context context, Uri videoUri, AdaptiveFrameSampler sampler) throws IOException {
+        try {
+            return new CodecFrameSource(context, videoUri, sampler);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Sequential decoding unavailable, falling back to seeking.", e);
+            return new RetrieverFrameSource(context, videoUri, sampler);
+        }
+    }
+
+    private MediaFormat selectVideoTrack() throws IOException {
+        for (int track = 0; track < extractor.getTrackCount(); track++) {
+            MediaFormat format = extractor.getTrackFormat(track);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/")) {
+                extractor.selectTrack(track);
+                return format;
+            }
+        }
+        throw new IOException("No video track found.");
+    }
+
+    @Override
+    public Bitmap nextFrame() throws IOException {
+        if (fallback == null) {
+            try {
+                return decodeNextFrame();
+            } catch (IOException e) {
+                Log.w(TAG, "Sequential decoding failed after " + emittedFrames + " frames, falling back to seeking.", e);
+                releaseCodec();
+                fallback = new RetrieverFrameSource(context, videoUri, sampler, lastEmittedUs);
+            }
+        }
+        return fallback.nextFrame();
+    }
+
+    /** The next due frame from the codec, or null at the end of the video or the frame budget. */
+    private Bitmap decodeNextFrame() throws IOException {
+        while (!outputDone) {
+            if (!inputDone) {
+                feedInput();
+            }
+            int index = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+            if (index < 0) {
+                continue; // No output yet, or a format / buffers change.
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                outputDone = true;
+            }
+            long presentationUs = info.presentationTimeUs;
+            if (info.size > 0) {
+                decodedFrames++;
+                long dueUs = sampler.nextSampleUs(lastEmittedUs);
+                if (dueUs < 0) {
+                    // Frame budget spent: the rest of the video is not decoded at all.
+                    codec.releaseOutputBuffer(index, false);
+                    outputDone = true;
+                    break;
+                }
+                if (presentationUs >= dueUs) {
+                    Bitmap frame;
+                    try (Image image = codec.getOutputImage(index)) {
+                        if (image == null) {
+                            throw new IOException("Decoder has no image for the frame at " + presentationUs + " us.");
+                        }
+                        frame = toBitmap(image);
+                    } catch (RuntimeException e) {
+                        throw new IOException("Cannot convert the frame at " + presentationUs + " us.", e);
+                    } finally {
+                        codec.releaseOutputBuffer(index, false);
+                    }
+                    lastEmittedUs = presentationUs;
+                    emittedFrames++;
+                    sampler.onFrameSampled();
+                    return frame;
+                }
+            }
+            codec.releaseOutputBuffer(index, false);
+        }
+        return null;
+    }
+
+    @Override
+    public long frameTimeUs() {
+        return fallback != null ? fallback.frameTimeUs() : lastEmittedUs;
+    }
+
+    private void feedInput() {
+        int index = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+        if (index < 0) {
+            return;
+        }
+        ByteBuffer buffer = codec.getInputBuffer(index);
+        int size = extractor.readSampleData(buffer, 0);
+        if (size < 0) {
+            codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            inputDone = true;
+        } else {
+            codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+            extractor.advance();
+        }
+    }
+
+    /**
+     * Packs the flexible YUV 4:2:0 planes as I420, converts to RGBA, scales to analysis size and
+     * applies the track rotation.
+     */
+    private Bitmap toBitmap(Image image) {
+        Rect crop = image.getCropRect();
+        // I420 conversion needs even dimensions; drop an odd last row or column.
+        int width = crop.width() & ~1;
+        int height = crop.height() & ~1;
+        int lumaSize = width * height;
+        int chromaSize = lumaSize / 4;
+        if (yuvBytes.length != lumaSize + 2 * chromaSize) {
+            yuvBytes = new byte[lumaSize + 2 * chromaSize];
+        }
+        Image.Plane[] planes = image.getPlanes();
+        copyPlane(planes[0], crop.left, crop.top, width, height, 0);
+        copyPlane(planes[1], crop.left / 2, crop.top / 2, width / 2, height / 2, lumaSize);
+        copyPlane(planes[2], crop.left / 2, crop.top / 2, width / 2, height / 2, lumaSize + chromaSize);
+
+        yuvMat.create(height * 3 / 2, width, CvType.CV_8UC1);
+        yuvMat.put(0, 0, yuvBytes);
+        Imgproc.cvtColor(yuvMat, rgbaMat, Imgproc.COLOR_YUV2RGBA_I420);
+        Mat upright = rgbaMat;
+        android.util.Size target = FrameDecoder.analysisSize(width, height);
+        if (target.getWidth() != width) {
+            // Scale before rotating so the rotation moves the smaller image.
+            Imgproc.resize(rgbaMat, scaledMat, new Size(target.getWidth(), target.getHeight()), 0, 0, Imgproc.INTER_AREA);
+            upright = scaledMat;
+        }
+        if (rotationDegrees == 90 || rotationDegrees == 180 || rotationDegrees == 270) {
+            int code = rotationDegrees == 90 ? Core.ROTATE_90_CLOCKWISE
+                    : rotationDegrees == 180 ? Core.ROTATE_180 : Core.ROTATE_90_COUNTERCLOCKWISE;
+            Core.rotate(upright, rotatedMat, code);
+            upright = rotatedMat;
+        }
+        Bitmap bitmap = Bitmap.createBitmap(upright.cols(), upright.rows(), Bitmap.Config.ARGB_8888);
+        Utils.matToBitmap(upright, bitmap);
+        return bitmap;
+    }
+
+    private void copyPlane(Image.Plane plane, int left, int top, int width, int height, int offset) {
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        int rowLength = (width - 1) * pixelStride + 1;
+        if (pixelStride != 1 && rowBytes.length < rowLength) {
+            rowBytes = new byte[rowLength];
+        }
+        for (int row = 0; row < height; row++) {
+            buffer.position((top + row) * rowStride + left * pixelStride);
+            if (pixelStride == 1) {
+                buffer.get(yuvBytes, offset, width);
+                offset += width;
+            } else {
+                // Interleaved chroma (e.g. NV12): pick every pixelStride-th byte.
+                buffer.get(rowBytes, 0, rowLength);
+                for (int column = 0; column < width; column++) {
+                    yuvBytes[offset++] = rowBytes[column * pixelStride];
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        releaseCodec();
+        extractor.release();
+        if (fallback != null) {
+            fallback.close();
+        }
+        yuvMat.release();
+        rgbaMat.release();
+        rotatedMat.release();
+        scaledMat.release();
+        Log.d(TAG, "Decoded " + decodedFrames + " frames, emitted " + emittedFrames + ".");
+    }
+
+    private void releaseCodec() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Codec was not running.", e);
+            }
+            codec.release();
+            codec = null;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.android.safesphere.ml;
+
+/**
+ * Detections from one {@link ObjectDetector#detect} call, best first, kept in primitive arrays so the
+ * list can be reused across frames without allocating.
+ *
+ * <p>Boxes are in the detector's output coordinates: model input pixels for most YOLO exports, or
+ * [0, 1] for exports with normalized boxes. See {@link ObjectDetector#getInputWidth()} and
+ * {@link ObjectDetector#getInputHeight()} for mapping them back onto the frame.
+ */
+public class DetectionList {
+    private final float[] boxes; // left, top, right, bottom per detection
+    private final int[] classIds;
+    private final float[] scores;
+    private int count;
+
+    public DetectionList(int capacity) {
+        boxes = new float[4 * capacity];
+        classIds = new int[capacity];
+        scores = new float[capacity];
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    /** Appends a detection; returns false and drops it if the list is full. */
+    public boolean add(float left, float top, float right, float bottom, int classId, float score) {
+        if (count == classIds.length) {
+            return false;
+        }
+        int offset = 4 * count;
+        boxes[offset] = left;
+        boxes[offset + 1] = top;
+        boxes[offset + 2] = right;
+        boxes[offset + 3] = bottom;
+        classIds[count] = classId;
+        scores[count] = score;
+        count++;
+        return true;
+    }
+
+    public int capacity() {
+        return classIds.length;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public boolean isFull() {
+        return count == classIds.length;
+    }
+
+    public float left(int i) {
+        return boxes[4 * i];
+    }
+
+    public float top(int i) {
+        return boxes[4 * i + 1];
+    }
+
+    public float right(int i) {
+        return boxes[4 * i + 2];
+    }
+
+    public float bottom(int i) {
+        return boxes[4 * i + 3];
+    }
+
+    public int classId(int i) {
+        return classIds[i];
+    }
+
+    public float score(int i) {
+        return scores[i];
+    }
+}
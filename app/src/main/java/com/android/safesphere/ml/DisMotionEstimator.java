@@ -0,0 +1,26 @@
+package com.android.safesphere.ml;
+
+import org.opencv.core.Mat;
+import org.opencv.video.DISOpticalFlow;
+
+/**
+ * Dense inverse search flow with OpenCV's ultrafast preset. Still one vector per pixel, at a fraction
+ * of Farneback's cost and somewhat noisier on low-texture surfaces.
+ */
+public class DisMotionEstimator implements MotionEstimator {
+    private final DISOpticalFlow disFlow = DISOpticalFlow.create(DISOpticalFlow.PRESET_ULTRAFAST);
+    private final Mat opticalFlow = new Mat();
+
+    @Override
+    public void estimate(Mat previous, Mat current, FlowSamples out) {
+        disFlow.calc(previous, current, opticalFlow);
+        int vectors = (int) opticalFlow.total();
+        opticalFlow.get(0, 0, out.reserve(vectors));
+        out.setCount(vectors);
+    }
+
+    @Override
+    public void release() {
+        opticalFlow.release();
+    }
+}
@@ -0,0 +1,126 @@
+package com.android.safesphere.ml;
+
+/**
+ * A small LRU cache of image embeddings keyed by a 64-bit perceptual hash of the frame.
+ *
+ * <p>Lookups match the closest stored hash within {@code maxDistance} differing bits, so consecutive
+ * video frames and re-uploaded images that are near-duplicates reuse one CLIP inference. Embeddings
+ * rather than classification results are cached, so cached entries stay valid if the label
+ * vocabulary changes. Entries live in flat primitive arrays; lookups and inserts allocate nothing.
+ * Thread-safe.
+ */
+public class EmbeddingCache {
+    public static final int DEFAULT_CAPACITY = 32;
+    public static final int DEFAULT_MAX_DISTANCE = 4;
+
+    private final int capacity;
+    private final int dimension;
+    private final int maxDistance;
+    private final long[] hashes;
+    private final long[] lastUsed;
+    private final float[] embeddings;
+    private int size = 0;
+    private long clock = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public EmbeddingCache(int dimension) {
+        this(DEFAULT_CAPACITY, dimension, DEFAULT_MAX_DISTANCE);
+    }
+
+    public EmbeddingCache(int capacity, int dimension, int maxDistance) {
+        this.capacity = capacity;
+        this.dimension = dimension;
+        this.maxDistance = maxDistance;
+        hashes = new long[capacity];
+        lastUsed = new long[capacity];
+        embeddings = new float[capacity * dimension];
+    }
+
+    /**
+     * Copies the embedding of the closest cached frame into {@code out} if its hash is within the
+     * Hamming distance threshold.
+     *
+     * @return true on a hit
+     */
+    public synchronized boolean get(long hash, float[] out) {
+        int best = closest(hash);
+        if (best < 0) {
+            misses++;
+            return false;
+        }
+        hits++;
+        lastUsed[best] = ++clock;
+        System.arraycopy(embeddings, best * dimension, out, 0, dimension);
+        return true;
+    }
+
+    /**
+     * Stores {@code embedding} under {@code hash}. An entry within the Hamming distance threshold is
+     * replaced, since every later lookup would match it anyway; otherwise the embedding takes a free
+     * slot or evicts the least recently used entry when full.
+     */
+    public synchronized void put(long hash, float[] embedding) {
+        // A near-duplicate is refreshed rather than filling the cache with copies of one frame.
+        int slot = closest(hash);
+        if (slot < 0) {
+            slot = freeSlot();
+        }
+        hashes[slot] = hash;
+        lastUsed[slot] = ++clock;
+        System.arraycopy(embedding, 0, embeddings, slot * dimension, dimension);
+    }
+
+    /** A free slot, or the least recently used one when full. */
+    private int freeSlot() {
+        if (size < capacity) {
+            return size++;
+        }
+        int slot = 0;
+        for (int i = 1; i < size; i++) {
+            if (lastUsed[i] < lastUsed[slot]) {
+                slot = i;
+            }
+        }
+        evictions++;
+        return slot;
+    }
+
+    /** Index of the stored hash closest to {@code hash} within the threshold, or -1. */
+    private int closest(long hash) {
+        int best = -1;
+        int bestDistance = maxDistance + 1;
+        for (int i = 0; i < size; i++) {
+            int distance = Long.bitCount(hashes[i] ^ hash);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    public synchronized void clear() {
+        size = 0;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /** Hits over all lookups, or 0 before the first lookup. */
+    public synchronized float getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0.0f : (float) hits / lookups;
+    }
+}
@@ -0,0 +1,23 @@
+package com.android.safesphere.ml;
+
+/**
+ * Brute-force scan over every label; the reference the approximate indexes are measured against.
+ * The softmax denominator is exact.
+ */
+public class ExactLabelIndex implements LabelIndex {
+    private final SceneVocabulary vocabulary;
+
+    public ExactLabelIndex(SceneVocabulary vocabulary) {
+        this.vocabulary = vocabulary;
+    }
+
+    @Override
+    public void search(float[] normalizedQuery, LabelMatches matches) {
+        matches.reset(vocabulary);
+        for (int i = 0; i < vocabulary.size(); i++) {
+            float score = vocabulary.similarity(i, normalizedQuery);
+            matches.offer(i, score);
+            matches.accumulate(score, 1);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.android.safesphere.ml;
+
+import org.opencv.core.Mat;
+import org.opencv.video.Video;
+
+/** Dense Farneback flow on the full frame: the most accurate and by far the most expensive engine. */
+public class FarnebackMotionEstimator implements MotionEstimator {
+    private final Mat opticalFlow = new Mat();
+
+    @Override
+    public void estimate(Mat previous, Mat current, FlowSamples out) {
+        Video.calcOpticalFlowFarneback(previous, current, opticalFlow, 0.5, 3, 15, 3, 5, 1.2, 0);
+        int vectors = (int) opticalFlow.total();
+        opticalFlow.get(0, 0, out.reserve(vectors));
+        out.setCount(vectors);
+    }
+
+    @Override
+    public void release() {
+        opticalFlow.release();
+    }
+}
@@ -0,0 +1,115 @@
+package com.android.safesphere.ml;
+
+import java.util.Arrays;
+
+/**
+ * Scores a dense motion field: magnitudes more than two standard deviations above the mean count as
+ * anomalies, and the score is their share of all vectors in percent, weighted by how fast they move.
+ *
+ * <p>One pass accumulates the magnitude sum, the sum of squares and a histogram of magnitudes (count,
+ * sum and range per 1/{@link #BINS_PER_PIXEL} px bin). The threshold is then applied to the histogram
+ * instead of a second pass over the field; only the bin containing the threshold is split, by linear
+ * interpolation over the range of values it actually holds, so the result is within that one bin of
+ * the exact two-pass score and exact when the bin holds a single value. Magnitudes of
+ * {@link #HISTOGRAM_RANGE} px or more are kept as they are and compared exactly, so heavy tails of
+ * fast motion cost no accuracy.
+ *
+ * <p>Buffers are reused across calls. Not thread-safe.
+ */
+final class FlowAnomalyScorer {
+    static final int BINS_PER_PIXEL = 16;
+    static final int HISTOGRAM_RANGE = 64; // Pixels covered by the histogram.
+    private static final int BINS = HISTOGRAM_RANGE * BINS_PER_PIXEL;
+
+    private final int[] counts = new int[BINS];
+    private final double[] sums = new double[BINS];
+    private final float[] minimums = new float[BINS];
+    private final float[] maximums = new float[BINS];
+    private float[] outliers = new float[256]; // Magnitudes past the histogram.
+    private int outlierCount;
+
+    /**
+     * Scores {@code vectors} interleaved (dx, dy) motion vectors, 0 or more; callers cap it at 100.
+     * {@code scale} converts vectors measured on a downscaled image back to source pixels.
+     */
+    float score(float[] flow, int vectors, float scale) {
+        if (vectors == 0) {
+            return 0.0f;
+        }
+        Arrays.fill(counts, 0);
+        Arrays.fill(sums, 0.0);
+        Arrays.fill(minimums, Float.MAX_VALUE);
+        Arrays.fill(maximums, 0.0f);
+        outlierCount = 0;
+        double sum = 0.0;
+        double sumSquares = 0.0;
+        for (int i = 0, offset = 0; i < vectors; i++, offset += 2) {
+            float dx = flow[offset] * scale;
+            float dy = flow[offset + 1] * scale;
+            float squared = dx * dx + dy * dy;
+            float magnitude = (float) Math.sqrt(squared);
+            sum += magnitude;
+            sumSquares += squared;
+            int bin = (int) (magnitude * BINS_PER_PIXEL);
+            if (bin < BINS) {
+                counts[bin]++;
+                sums[bin] += magnitude;
+                minimums[bin] = Math.min(minimums[bin], magnitude);
+                maximums[bin] = Math.max(maximums[bin], magnitude);
+            } else {
+                addOutlier(magnitude);
+            }
+        }
+
+        double mean = sum / vectors;
+        double stdDev = Math.sqrt(Math.max(0.0, sumSquares / vectors - mean * mean));
+        double threshold = mean + (2.0 * stdDev);
+
+        double anomalies = 0.0;
+        double anomalySum = 0.0;
+        int thresholdBin = (int) (threshold * BINS_PER_PIXEL);
+        if (thresholdBin < BINS) {
+            if (counts[thresholdBin] > 0) {
+                // Share of the threshold's bin lying above the threshold, assuming values spread evenly.
+                double above = aboveShare(minimums[thresholdBin], maximums[thresholdBin], threshold);
+                anomalies += counts[thresholdBin] * above;
+                anomalySum += sums[thresholdBin] * above;
+            }
+            for (int bin = thresholdBin + 1; bin < BINS; bin++) {
+                anomalies += counts[bin];
+                anomalySum += sums[bin];
+            }
+        }
+        for (int i = 0; i < outlierCount; i++) {
+            if (outliers[i] > threshold) {
+                anomalies++;
+                anomalySum += outliers[i];
+            }
+        }
+        if (anomalies < 0.5) {
+            return 0.0f;
+        }
+
+        float anomalyAreaScore = ((float) anomalies / (float) vectors) * 100.0f;
+        double meanIntensityOfAnomalies = anomalySum / anomalies;
+        float intensityMultiplier = (float) Math.max(1.0, meanIntensityOfAnomalies / 7.0);
+        return anomalyAreaScore * intensityMultiplier;
+    }
+
+    private static double aboveShare(float minimum, float maximum, double threshold) {
+        if (maximum <= threshold) {
+            return 0.0;
+        }
+        if (minimum > threshold) {
+            return 1.0;
+        }
+        return (maximum - threshold) / (maximum - minimum);
+    }
+
+    private void addOutlier(float magnitude) {
+        if (outlierCount == outliers.length) {
+            outliers = Arrays.copyOf(outliers, outliers.length * 2);
+        }
+        outliers[outlierCount++] = magnitude;
+    }
+}
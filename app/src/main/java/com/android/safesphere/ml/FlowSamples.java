@@ -0,0 +1,32 @@
+package com.android.safesphere.ml;
+
+/**
+ * Motion vectors produced by a {@link MotionEstimator}: interleaved (dx, dy) pairs in source-frame
+ * pixels. The backing array grows on demand and is reused across frames.
+ */
+public class FlowSamples {
+    private float[] values = new float[0];
+    private int count;
+
+    /** Makes room for {@code vectors} pairs and returns the backing array, cleared of the old count. */
+    public float[] reserve(int vectors) {
+        if (values.length < 2 * vectors) {
+            values = new float[2 * vectors];
+        }
+        count = 0;
+        return values;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    /** Number of (dx, dy) pairs. */
+    public int count() {
+        return count;
+    }
+
+    public float[] values() {
+        return values;
+    }
+}
@@ -0,0 +1,29 @@
+package com.android.safesphere.ml;
+
+/**
+ * Everything the analyzers found on one frame, joined into the final risk score. Stages that timed
+ * out or were skipped contribute their neutral value and are flagged in {@link #missingStages}.
+ */
+public class FrameAnalysis {
+    public final int riskScore;
+    public final ClassificationResult sceneResult;
+    public final float motionScore;
+    public final float lightingRisk;
+    public final boolean dangerousObjectFound;
+    // Bit set of AnalysisOrchestrator.Stage ordinals whose result did not arrive in time.
+    public final int missingStages;
+
+    public FrameAnalysis(int riskScore, ClassificationResult sceneResult, float motionScore, float lightingRisk,
+                         boolean dangerousObjectFound, int missingStages) {
+        this.riskScore = riskScore;
+        this.sceneResult = sceneResult;
+        this.motionScore = motionScore;
+        this.lightingRisk = lightingRisk;
+        this.dangerousObjectFound = dangerousObjectFound;
+        this.missingStages = missingStages;
+    }
+
+    public boolean isComplete() {
+        return missingStages == 0;
+    }
+}
@@ -0,0 +1,328 @@
+package com.android.safesphere.ml;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import androidx.camera.core.ImageProxy;
+import org.opencv.android.Utils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * One frame as every analyzer needs it, converted at most once: the RGBA and gray Mats, a gray image
+ * at flow resolution for motion estimation, and ARGB pixels scaled to each model's input size. Every
+ * product is computed lazily on first use and cached until the next {@link #reset}.
+ *
+ * <p>A context wraps either a decoded bitmap or a live camera frame. For a YUV camera frame the gray
+ * image is copied straight from the Y plane and the color bitmap is only converted if an analyzer
+ * asks for it; the frame must stay open until analysis is done.
+ *
+ * <p>Instances are meant to be reused frame after frame so the Mats and pixel buffers are allocated
+ * once. Products are guarded by their own locks, so analyzers running concurrently on the same frame
+ * can share it.
+ *
+ * <p>Analysis tasks that may outlive the call that started them, such as the late stages of
+ * {@link AnalysisOrchestrator}, hold the frame with {@link #retain()} until they finish.
+ * {@link #reset} and {@link #release} wait for them; whoever frees the bitmap or camera image
+ * behind a frame must call {@link #awaitIdle()} first.
+ */
+public class FrameContext {
+    /** Widest gray image handed to motion estimation; larger frames are area-downscaled first. */
+    public static final int DEFAULT_FLOW_WIDTH = 640;
+    private static final int MAX_SCALED_SIZES = 4;
+
+    private final int flowWidth;
+    private int width;
+    private int height;
+    private long timestampNanos;
+
+    private final Object bitmapLock = new Object();
+    private Bitmap bitmap;
+    private ImageProxy image;
+    // Set when the bitmap was converted from the camera frame, which makes it ours to recycle.
+    private boolean ownsBitmap;
+
+    private final Object rgbaLock = new Object();
+    private final Mat rgba = new Mat();
+    private boolean rgbaValid;
+
+    private final Object grayLock = new Object();
+    private final Mat gray = new Mat();
+    private boolean grayValid;
+
+    private final Object flowLock = new Object();
+    private final Mat flowGray = new Mat();
+    private final Size flowSize = new Size();
+    private Mat flowGrayResult;
+
+    private final ScaledPixels[] scaled = new ScaledPixels[MAX_SCALED_SIZES];
+    private final Paint scalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    // Number of analysis tasks still reading this frame.
+    private final Object usersLock = new Object();
+    private int users = 0;
+
+    public FrameContext() {
+        this(DEFAULT_FLOW_WIDTH);
+    }
+
+    /** @param flowWidth widest flow-resolution image; {@code Integer.MAX_VALUE} keeps the full resolution */
+    public FrameContext(int flowWidth) {
+        this.flowWidth = flowWidth;
+    }
+
+    /** Starts a new frame; cached products of the previous frame are invalidated, their buffers kept. */
+    public FrameContext reset(Bitmap bitmap) {
+        return reset(bitmap, 0L);
+    }
+
+    /** Starts a new frame captured at {@code timestampNanos}. */
+    public FrameContext reset(Bitmap bitmap, long timestampNanos) {
+        awaitIdle();
+        recycleOwnedBitmap();
+        this.bitmap = bitmap;
+        this.image = null;
+        this.width = bitmap.getWidth();
+        this.height = bitmap.getHeight();
+        this.timestampNanos = timestampNanos;
+        invalidate();
+        return this;
+    }
+
+    /**
+     * Starts a new frame from a CameraX YUV_420_888 image, timestamped with the image's sensor
+     * timestamp. The caller keeps ownership of {@code image} and closes it after analysis.
+     */
+    public FrameContext reset(ImageProxy image) {
+        awaitIdle();
+        recycleOwnedBitmap();
+        this.bitmap = null;
+        this.image = image;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.timestampNanos = image.getImageInfo().getTimestamp();
+        invalidate();
+        return this;
+    }
+
+    /** Marks the frame as read by a task that may outlive the current call; pair with {@link #unretain()}. */
+    public void retain() {
+        synchronized (usersLock) {
+            users++;
+        }
+    }
+
+    public void unretain() {
+        synchronized (usersLock) {
+            if (--users == 0) {
+                usersLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Blocks until no retaining task reads the frame any more. Not interruptible: freeing a frame
+     * that is still being read would be a use-after-free in native code. An interrupt is kept
+     * pending for the caller.
+     */
+    public void awaitIdle() {
+        boolean interrupted = false;
+        synchronized (usersLock) {
+            while (users > 0) {
+                try {
+                    usersLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void invalidate() {
+        rgbaValid = false;
+        grayValid = false;
+        flowGrayResult = null;
+        for (ScaledPixels entry : scaled) {
+            if (entry != null) {
+                entry.valid = false;
+            }
+        }
+    }
+
+    private void recycleOwnedBitmap() {
+        if (ownsBitmap && bitmap != null) {
+            bitmap.recycle();
+        }
+        ownsBitmap = false;
+    }
+
+    /** The frame as an ARGB bitmap; converted from the camera frame on first use. */
+    public Bitmap bitmap() {
+        synchronized (bitmapLock) {
+            if (bitmap == null && image != null) {
+                bitmap = image.toBitmap();
+                ownsBitmap = true;
+            }
+            return bitmap;
+        }
+    }
+
+    public long timestampNanos() {
+        return timestampNanos;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public Mat rgba() {
+        synchronized (rgbaLock) {
+            if (!rgbaValid) {
+                Utils.bitmapToMat(bitmap(), rgba);
+                rgbaValid = true;
+            }
+            return rgba;
+        }
+    }
+
+    /** Full-resolution 8-bit gray. Shared: callers must not modify it. */
+    public Mat gray() {
+        synchronized (grayLock) {
+            if (!grayValid) {
+                if (image != null) {
+                    copyLumaPlane();
+                } else {
+                    Imgproc.cvtColor(rgba(), gray, Imgproc.COLOR_RGBA2GRAY);
+                }
+                grayValid = true;
+            }
+            return gray;
+        }
+    }
+
+    /** The Y plane of a YUV frame already is the gray image; wrap it with its row stride and copy. */
+    private void copyLumaPlane() {
+        ImageProxy.PlaneProxy luma = image.getPlanes()[0];
+        Mat plane = new Mat(height, width, CvType.CV_8UC1, luma.getBuffer(), luma.getRowStride());
+        plane.copyTo(gray);
+        plane.release();
+    }
+
+    /**
+     * Gray image at most {@code flowWidth} pixels wide, the resolution motion is estimated at. Same
+     * Mat as {@link #gray()} when the frame is already small enough. Callers must not modify it.
+     */
+    public Mat flowGray() {
+        synchronized (flowLock) {
+            if (flowGrayResult == null) {
+                Mat source = gray();
+                if (source.cols() <= flowWidth) {
+                    flowGrayResult = source;
+                } else {
+                    flowSize.width = flowWidth;
+                    flowSize.height = Math.max(1, Math.round(source.rows() * (float) flowWidth / source.cols()));
+                    Imgproc.resize(source, flowGray, flowSize, 0, 0, Imgproc.INTER_AREA);
+                    flowGrayResult = flowGray;
+                }
+            }
+            return flowGrayResult;
+        }
+    }
+
+    /** Source pixels per {@link #flowGray()} pixel, for converting flow back to frame pixels. */
+    public float flowScale() {
+        return width <= flowWidth ? 1.0f : (float) width / flowWidth;
+    }
+
+    /**
+     * The frame bilinearly scaled to {@code width} x {@code height}, as ARGB pixels in row-major
+     * order, e.g. the 224 x 224 CLIP input or the detector input. Shared: callers must not modify it.
+     */
+    public int[] scaledPixels(int width, int height) {
+        ScaledPixels entry = scaledEntry(width, height);
+        synchronized (entry) {
+            if (!entry.valid) {
+                Bitmap bitmap = bitmap();
+                if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                    bitmap.getPixels(entry.pixels, 0, width, 0, 0, width, height);
+                } else {
+                    entry.target.eraseColor(0);
+                    entry.canvas.drawBitmap(bitmap, null, entry.targetRect, scalePaint);
+                    entry.target.getPixels(entry.pixels, 0, width, 0, 0, width, height);
+                }
+                entry.valid = true;
+            }
+            return entry.pixels;
+        }
+    }
+
+    private ScaledPixels scaledEntry(int width, int height) {
+        synchronized (scaled) {
+            int free = -1;
+            for (int i = 0; i < scaled.length; i++) {
+                ScaledPixels entry = scaled[i];
+                if (entry == null) {
+                    if (free < 0) {
+                        free = i;
+                    }
+                } else if (entry.width == width && entry.height == height) {
+                    return entry;
+                }
+            }
+            if (free < 0) {
+                throw new IllegalStateException("More than " + MAX_SCALED_SIZES + " scaled sizes requested.");
+            }
+            scaled[free] = new ScaledPixels(width, height);
+            return scaled[free];
+        }
+    }
+
+    /** Frees the native buffers. The context can still be reused; buffers are then recreated. */
+    public void release() {
+        awaitIdle();
+        recycleOwnedBitmap();
+        bitmap = null;
+        image = null;
+        rgba.release();
+        gray.release();
+        flowGray.release();
+        rgbaValid = false;
+        grayValid = false;
+        flowGrayResult = null;
+        for (int i = 0; i < scaled.length; i++) {
+            if (scaled[i] != null) {
+                scaled[i].target.recycle();
+                scaled[i] = null;
+            }
+        }
+    }
+
+    private static final class ScaledPixels {
+        final int width;
+        final int height;
+        final Bitmap target;
+        final Canvas canvas;
+        final Rect targetRect;
+        final int[] pixels;
+        boolean valid;
+
+        ScaledPixels(int width, int height) {
+            this.width = width;
+            this.height = height;
+            target = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            canvas = new Canvas(target);
+            targetRect = new Rect(0, 0, width, height);
+            pixels = new int[width * height];
+        }
+    }
+}
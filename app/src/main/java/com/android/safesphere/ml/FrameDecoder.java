@@ -0,0 +1,170 @@
+package com.android.safesphere.ml;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageDecoder;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+import android.util.Size;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes photos and sizes video frames at analysis resolution instead of full resolution. Every
+ * analyzer downsizes anyway - CLIP to 224 px, the detector to its 640 px input, motion to a 640 px
+ * wide flow image - so frames are decoded with their shorter side just above {@link #ANALYSIS_SIZE}.
+ * A 12 MP photo then costs about 1/16 of the memory and decode bandwidth.
+ *
+ * <p>Photos keep their EXIF orientation: ImageDecoder applies it itself (API 28+), otherwise it is
+ * read with {@link ExifInterface} and applied after a sub-sampled {@link BitmapFactory} decode.
+ *
+ * <p>Both paths fail the same way: the decode methods never return null and throw an
+ * {@link IOException} if the image cannot be opened or decoded.
+ */
+public final class FrameDecoder {
+    private static final String TAG = "FrameDecoder";
+
+    /** Smallest side, in pixels, a decoded frame should keep: the largest input any analyzer samples. */
+    public static final int ANALYSIS_SIZE = 640;
+
+    private FrameDecoder() {
+    }
+
+    /** Size of a {@code width} x {@code height} frame scaled down so its shorter side is ANALYSIS_SIZE. */
+    public static Size analysisSize(int width, int height) {
+        int shorter = Math.min(width, height);
+        if (shorter <= ANALYSIS_SIZE) {
+            return new Size(width, height);
+        }
+        float scale = (float) ANALYSIS_SIZE / shorter;
+        return new Size(Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)));
+    }
+
+    /**
+     * Largest power-of-two sub-sampling that keeps the shorter side at least ANALYSIS_SIZE, the
+     * {@code inSampleSize} BitmapFactory decodes fastest with.
+     */
+    public static int sampleSize(int width, int height) {
+        int shorter = Math.min(width, height);
+        int sampleSize = 1;
+        while (shorter / (sampleSize * 2) >= ANALYSIS_SIZE) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Decodes the image at {@code uri}, upright, at analysis resolution.
+     *
+     * @throws IOException if the image cannot be opened or decoded
+     */
+    public static Bitmap decode(ContentResolver resolver, Uri uri) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            return decode(ImageDecoder.createSource(resolver, uri));
+        }
+        return decodeLegacy(() -> resolver.openInputStream(uri));
+    }
+
+    /**
+     * Decodes the image file, upright, at analysis resolution.
+     *
+     * @throws IOException if the file cannot be opened or decoded
+     */
+    public static Bitmap decode(File file) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            return decode(ImageDecoder.createSource(file));
+        }
+        return decodeLegacy(() -> new FileInputStream(file));
+    }
+
+    private static Bitmap decode(ImageDecoder.Source source) throws IOException {
+        try {
+            return ImageDecoder.decodeBitmap(source, (decoder, info, src) -> {
+                Size target = analysisSize(info.getSize().getWidth(), info.getSize().getHeight());
+                decoder.setTargetSize(target.getWidth(), target.getHeight());
+                // The analyzers read pixels back, which hardware bitmaps do not allow.
+                decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+            });
+        } catch (RuntimeException e) {
+            // E.g. an unsupported source; report it like any other decode failure.
+            throw new IOException("Cannot decode image.", e);
+        }
+    }
+
+    private interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    private static Bitmap decodeLegacy(StreamOpener opener) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream input = opener.open()) {
+            BitmapFactory.decodeStream(input, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not a decodable image.");
+        }
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap;
+        try (InputStream input = opener.open()) {
+            bitmap = BitmapFactory.decodeStream(input, null, options);
+        }
+        if (bitmap == null) {
+            throw new IOException("Cannot decode image.");
+        }
+
+        int orientation;
+        try (InputStream input = opener.open()) {
+            orientation = new ExifInterface(input).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read EXIF orientation.", e);
+            return bitmap;
+        }
+        return applyOrientation(bitmap, orientation);
+    }
+
+    private static Bitmap applyOrientation(Bitmap bitmap, int orientation) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(270);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(270);
+                matrix.postScale(-1, 1);
+                break;
+            default:
+                return bitmap;
+        }
+        Bitmap upright = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (upright != bitmap) {
+            bitmap.recycle();
+        }
+        return upright;
+    }
+}
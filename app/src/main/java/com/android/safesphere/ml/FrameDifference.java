@@ -0,0 +1,60 @@
+package com.android.safesphere.ml;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Cheap change signal between frames: the mean absolute gray-level difference of
+ * {@link #THUMBNAIL_SIZE}-pixel thumbnails taken from {@link FrameContext#flowGray()}, which motion
+ * estimation needs anyway. A frame is compared with a reference frame, by default the previous one
+ * passed to {@link #update}. The thumbnails are allocated on the first comparison. Not thread-safe.
+ */
+final class FrameDifference {
+    static final int THUMBNAIL_SIZE = 32;
+
+    private Mat thumbnail;
+    private Mat reference;
+    private boolean hasReference = false;
+
+    /** Difference to the previous frame passed in, 0-255, then keeps this frame as the reference. */
+    float update(FrameContext frame) {
+        float difference = compare(frame);
+        keepAsReference();
+        return difference;
+    }
+
+    /** Difference between {@code frame} and the reference, 0-255; 0 if there is no reference yet. */
+    float compare(FrameContext frame) {
+        if (thumbnail == null) {
+            thumbnail = new Mat();
+            reference = new Mat();
+        }
+        Imgproc.resize(frame.flowGray(), thumbnail, new Size(THUMBNAIL_SIZE, THUMBNAIL_SIZE), 0, 0, Imgproc.INTER_AREA);
+        return hasReference
+                ? (float) (Core.norm(thumbnail, reference, Core.NORM_L1) / (THUMBNAIL_SIZE * THUMBNAIL_SIZE))
+                : 0.0f;
+    }
+
+    /** Mean gray level, 0-255, of the frame last passed to {@link #compare}. */
+    float meanLevel() {
+        return (float) Core.mean(thumbnail).val[0];
+    }
+
+    /** Makes the frame last passed to {@link #compare} the reference. */
+    void keepAsReference() {
+        // Swap so the current thumbnail becomes the reference without a copy.
+        Mat swap = reference;
+        reference = thumbnail;
+        thumbnail = swap;
+        hasReference = true;
+    }
+
+    void release() {
+        if (thumbnail != null) {
+            thumbnail.release();
+            reference.release();
+        }
+    }
+}
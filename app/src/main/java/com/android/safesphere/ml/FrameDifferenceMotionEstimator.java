@@ -0,0 +1,82 @@
+package com.android.safesphere.ml;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The cheapest engine: both frames are area-downsampled to {@code targetWidth} pixels wide and motion
+ * is read from the brightness-constancy equation at each pixel. The temporal difference divided by
+ * the spatial gradient gives the normal flow, the motion component along the gradient, without any
+ * search. It underestimates motion along edges and in flat areas, but tracks how much of the frame
+ * moves and how fast.
+ */
+public class FrameDifferenceMotionEstimator implements MotionEstimator {
+    public static final int DEFAULT_TARGET_WIDTH = 160;
+    // Gradients weaker than this (gray levels per pixel) carry no usable motion information.
+    private static final float MIN_GRADIENT = 4.0f;
+
+    private final int targetWidth;
+    private final Mat smallPrevious = new Mat();
+    private final Mat smallCurrent = new Mat();
+    private final Size smallSize = new Size();
+    private byte[] previousPixels = new byte[0];
+    private byte[] currentPixels = new byte[0];
+
+    public FrameDifferenceMotionEstimator() {
+        this(DEFAULT_TARGET_WIDTH);
+    }
+
+    public FrameDifferenceMotionEstimator(int targetWidth) {
+        this.targetWidth = targetWidth;
+    }
+
+    @Override
+    public void estimate(Mat previous, Mat current, FlowSamples out) {
+        int width = Math.min(targetWidth, previous.cols());
+        int height = Math.max(1, Math.round(previous.rows() * (float) width / previous.cols()));
+        float scale = (float) previous.cols() / width;
+        smallSize.width = width;
+        smallSize.height = height;
+        Imgproc.resize(previous, smallPrevious, smallSize, 0, 0, Imgproc.INTER_AREA);
+        Imgproc.resize(current, smallCurrent, smallSize, 0, 0, Imgproc.INTER_AREA);
+
+        int pixels = width * height;
+        if (previousPixels.length != pixels) {
+            previousPixels = new byte[pixels];
+            currentPixels = new byte[pixels];
+        }
+        smallPrevious.get(0, 0, previousPixels);
+        smallCurrent.get(0, 0, currentPixels);
+
+        // Interior pixels only, so the central differences stay inside the image.
+        float[] flow = out.reserve(Math.max(0, (width - 2) * (height - 2)));
+        int vectors = 0;
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1, i = y * width + 1; x < width - 1; x++, i++) {
+                float gradientX = 0.5f * ((currentPixels[i + 1] & 0xFF) - (currentPixels[i - 1] & 0xFF));
+                float gradientY = 0.5f * ((currentPixels[i + width] & 0xFF) - (currentPixels[i - width] & 0xFF));
+                float temporal = (currentPixels[i] & 0xFF) - (previousPixels[i] & 0xFF);
+                float gradientSquared = gradientX * gradientX + gradientY * gradientY;
+                float dx = 0.0f;
+                float dy = 0.0f;
+                if (gradientSquared >= MIN_GRADIENT * MIN_GRADIENT) {
+                    // Normal flow: -It * grad(I) / |grad(I)|^2, scaled back to source pixels.
+                    float factor = -temporal * scale / gradientSquared;
+                    dx = gradientX * factor;
+                    dy = gradientY * factor;
+                }
+                flow[2 * vectors] = dx;
+                flow[2 * vectors + 1] = dy;
+                vectors++;
+            }
+        }
+        out.setCount(vectors);
+    }
+
+    @Override
+    public void release() {
+        smallPrevious.release();
+        smallCurrent.release();
+    }
+}
@@ -0,0 +1,23 @@
+package com.android.safesphere.ml;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+
+/**
+ * A sequence of sampled video frames, decoded on demand. Implementations are used from one thread at
+ * a time, the decode stage of {@link VideoAnalysisPipeline}.
+ */
+public interface FrameSource extends AutoCloseable {
+    /**
+     * Decodes the next sampled frame, or returns null at the end of the stream. The caller owns the
+     * returned bitmap.
+     */
+    Bitmap nextFrame() throws IOException;
+
+    /** Presentation time of the frame last returned by {@link #nextFrame()}, in microseconds. */
+    long frameTimeUs();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,209 @@
+package com.android.safesphere.ml;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Tensor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Turns a frame into an image input tensor (1 x height x width x 3), either float32 values computed
+ * as {@code (pixel - mean) / std} or, for quantized models, UINT8/INT8 bytes produced directly with
+ * the tensor's scale and zero point, so quantized models never see a float input buffer.
+ *
+ * <p>Owns every buffer it needs - the scaled bitmap target, the pixel array, a staging array and the
+ * direct input buffer - so after construction {@link #process(Bitmap)} allocates nothing. Every
+ * channel value goes through a 256-entry lookup table built once. Not thread-safe: each interpreter
+ * should have its own instance.
+ */
+public class ImagePreprocessor {
+    private static final int HASH_ROWS = 8;
+    private static final int HASH_COLUMNS = 9;
+
+    private final int width;
+    private final int height;
+    private final boolean quantized;
+    private final float[] channelValues = new float[256];
+    private final byte[] quantizedChannelValues = new byte[256];
+    private final float[] hashBlocks = new float[HASH_COLUMNS];
+    private final Bitmap scaledBitmap;
+    private final Canvas canvas;
+    private final Paint scalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect targetRect;
+    private final int[] pixels;
+    private final float[] staging;
+    private final byte[] quantizedStaging;
+    private final ByteBuffer inputBuffer;
+
+    /** A float32 preprocessor. */
+    public ImagePreprocessor(int width, int height, float mean, float std) {
+        this(width, height, mean, std, DataType.FLOAT32, 0.0f, 0);
+    }
+
+    /**
+     * @param dataType  FLOAT32, UINT8 or INT8
+     * @param scale     quantization scale of the input tensor; 0 for a quantized input without
+     *                  quantization parameters, which then receives the raw pixel values
+     * @param zeroPoint quantization zero point of the input tensor
+     */
+    public ImagePreprocessor(int width, int height, float mean, float std, DataType dataType, float scale, int zeroPoint) {
+        this.width = width;
+        this.height = height;
+        quantized = dataType == DataType.UINT8 || dataType == DataType.INT8;
+        int minValue = dataType == DataType.INT8 ? -128 : 0;
+        int maxValue = dataType == DataType.INT8 ? 127 : 255;
+        for (int i = 0; i < 256; i++) {
+            channelValues[i] = (i - mean) / std;
+            int value = scale == 0.0f ? i + minValue : Math.round(channelValues[i] / scale) + zeroPoint;
+            quantizedChannelValues[i] = (byte) Math.max(minValue, Math.min(maxValue, value));
+        }
+
+        scaledBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        canvas = new Canvas(scaledBitmap);
+        targetRect = new Rect(0, 0, width, height);
+        pixels = new int[width * height];
+        staging = quantized ? null : new float[width * height * 3];
+        quantizedStaging = quantized ? new byte[width * height * 3] : null;
+        inputBuffer = ByteBuffer.allocateDirect(tensorBytes());
+        inputBuffer.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * A preprocessor matching an NHWC image input tensor's size, data type and quantization
+     * parameters. {@code mean} and {@code std} describe the float values the model was trained on.
+     */
+    public static ImagePreprocessor forTensor(Tensor tensor, float mean, float std) {
+        int[] shape = tensor.shape();
+        Tensor.QuantizationParams params = tensor.quantizationParams();
+        return new ImagePreprocessor(shape[2], shape[1], mean, std, tensor.dataType(),
+                params.getScale(), params.getZeroPoint());
+    }
+
+    public boolean isQuantized() {
+        return quantized;
+    }
+
+    /** Number of bytes one image occupies in the input tensor. */
+    public int tensorBytes() {
+        return quantized ? width * height * 3 : 4 * width * height * 3;
+    }
+
+    /**
+     * Scales {@code bitmap} to the model input size and writes it into the reusable input buffer.
+     * The returned buffer is overwritten by the next call.
+     */
+    public ByteBuffer process(Bitmap bitmap) {
+        readScaledPixels(bitmap);
+        return toInputBuffer();
+    }
+
+    /** Same as {@link #process(Bitmap)}, using the frame's cached pixels at the model input size. */
+    public ByteBuffer process(FrameContext frame) {
+        System.arraycopy(frame.scaledPixels(width, height), 0, pixels, 0, pixels.length);
+        return toInputBuffer();
+    }
+
+    /**
+     * Writes one image at the current position of {@code out}, e.g. one slot of a batched input
+     * tensor, advancing the position by {@link #tensorBytes()}.
+     */
+    public void write(Bitmap bitmap, ByteBuffer out) {
+        load(bitmap);
+        writeLoaded(out);
+    }
+
+    /**
+     * Scales {@code bitmap} into the reusable pixel array without converting it yet, and returns a
+     * 64-bit difference hash of the result. Callers can use the hash to skip inference on
+     * near-duplicate frames before paying for {@link #toInputBuffer()} or {@link #writeLoaded}.
+     */
+    public long load(Bitmap bitmap) {
+        readScaledPixels(bitmap);
+        return differenceHash();
+    }
+
+    /**
+     * Same as {@link #load(Bitmap)}, taking the scaled pixels from {@code frame} so analyzers sharing
+     * an input size scale the frame only once.
+     */
+    public long load(FrameContext frame) {
+        System.arraycopy(frame.scaledPixels(width, height), 0, pixels, 0, pixels.length);
+        return differenceHash();
+    }
+
+    /** Converts the last {@link #load loaded} image into the reusable input buffer. */
+    public ByteBuffer toInputBuffer() {
+        inputBuffer.clear();
+        writeLoaded(inputBuffer);
+        inputBuffer.rewind();
+        return inputBuffer;
+    }
+
+    /** Converts the last {@link #load loaded} image at the current position of {@code out}. */
+    public void writeLoaded(ByteBuffer out) {
+        if (quantized) {
+            byte[] lookup = quantizedChannelValues;
+            for (int pixel = 0, offset = 0; pixel < pixels.length; pixel++) {
+                final int val = pixels[pixel];
+                quantizedStaging[offset++] = lookup[(val >> 16) & 0xFF]; // Red
+                quantizedStaging[offset++] = lookup[(val >> 8) & 0xFF];  // Green
+                quantizedStaging[offset++] = lookup[val & 0xFF];         // Blue
+            }
+            out.put(quantizedStaging);
+            return;
+        }
+
+        float[] lookup = channelValues;
+        for (int pixel = 0, offset = 0; pixel < pixels.length; pixel++) {
+            final int val = pixels[pixel];
+            staging[offset++] = lookup[(val >> 16) & 0xFF]; // Red
+            staging[offset++] = lookup[(val >> 8) & 0xFF];  // Green
+            staging[offset++] = lookup[val & 0xFF];         // Blue
+        }
+        out.asFloatBuffer().put(staging);
+        out.position(out.position() + 4 * staging.length);
+    }
+
+    private void readScaledPixels(Bitmap bitmap) {
+        Bitmap source = bitmap;
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            // Bilinear downscale into the reusable target instead of Bitmap.createScaledBitmap.
+            scaledBitmap.eraseColor(0);
+            canvas.drawBitmap(bitmap, null, targetRect, scalePaint);
+            source = scaledBitmap;
+        }
+        source.getPixels(pixels, 0, width, 0, 0, width, height);
+    }
+
+    /**
+     * dHash: block-average the luma of the scaled image on a 9 x 8 grid and set one bit per pair of
+     * horizontally adjacent blocks, 1 when the left block is brighter.
+     */
+    private long differenceHash() {
+        long hash = 0L;
+        for (int row = 0; row < HASH_ROWS; row++) {
+            int y0 = row * height / HASH_ROWS;
+            int y1 = (row + 1) * height / HASH_ROWS;
+            for (int column = 0; column < HASH_COLUMNS; column++) {
+                int x0 = column * width / HASH_COLUMNS;
+                int x1 = (column + 1) * width / HASH_COLUMNS;
+                int sum = 0;
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0, pixel = y * width + x0; x < x1; x++, pixel++) {
+                        final int val = pixels[pixel];
+                        sum += (((val >> 16) & 0xFF) * 77 + ((val >> 8) & 0xFF) * 150 + (val & 0xFF) * 29) >> 8;
+                    }
+                }
+                hashBlocks[column] = (float) sum / ((y1 - y0) * (x1 - x0));
+            }
+            for (int column = 1; column < HASH_COLUMNS; column++) {
+                hash = (hash << 1) | (hashBlocks[column - 1] > hashBlocks[column] ? 1L : 0L);
+            }
+        }
+        return hash;
+    }
+}
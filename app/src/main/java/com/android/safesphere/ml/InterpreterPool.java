@@ -0,0 +1,242 @@
+package com.android.safesphere.ml;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * A bounded pool of inference sessions for one model, e.g. {@link SceneClassifier} or
+ * {@link ObjectDetector} instances. Each session owns its interpreter and its preprocessing scratch,
+ * so sessions checked out by different threads can run in parallel, while the model file itself is
+ * mapped once and shared through {@link ModelFiles}.
+ *
+ * <p>Sessions are created lazily up to {@code maxSize}; once all are checked out, {@link #acquire()}
+ * blocks until one is released or a slot frees up. Time spent waiting is recorded so undersized pools show up in the
+ * metrics. A session that fails the pool's usability check, e.g. one whose model failed to load, is
+ * closed when released instead of being pooled, so the next acquisition loads a fresh one. All state,
+ * including the idle sessions, is guarded by the pool's monitor, which waiting callers wait on.
+ * Thread-safe.
+ */
+public class InterpreterPool<T extends AutoCloseable> {
+    private static final String TAG = "InterpreterPool";
+
+    /** Builds one session. Called on the thread that first needs it; may be slow. */
+    public interface Factory<T> {
+        T create();
+    }
+
+    private final String name;
+    private final Factory<T> factory;
+    private final Predicate<T> usable;
+    private final int maxSize;
+    private final ArrayDeque<T> idle;
+    private final List<T> all = new ArrayList<>();
+    private boolean closed = false;
+
+    private long acquisitions = 0;
+    private long waits = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+
+    public InterpreterPool(String name, int maxSize, Factory<T> factory) {
+        this(name, maxSize, factory, session -> true);
+    }
+
+    /** @param usable whether a session may be pooled again; unusable ones are closed on release */
+    public InterpreterPool(String name, int maxSize, Factory<T> factory, Predicate<T> usable) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1.");
+        }
+        this.name = name;
+        this.maxSize = maxSize;
+        this.factory = factory;
+        this.usable = usable;
+        idle = new ArrayDeque<>(maxSize);
+    }
+
+    /** Checks out a session, creating one if the pool is not full yet, otherwise waiting for one. */
+    public T acquire() throws InterruptedException {
+        return checkOut(-1);
+    }
+
+    /** Like {@link #acquire()}, but gives up after {@code timeout} and returns null. */
+    public T acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        return checkOut(Math.max(0, unit.toNanos(timeout)));
+    }
+
+    /**
+     * Takes an idle session, or creates one if a slot is free, otherwise waits on the monitor until a
+     * release, a failed creation or {@link #close()} changes that. A negative timeout waits forever.
+     *
+     * @return the session, or null on timeout
+     */
+    private T checkOut(long timeoutNanos) throws InterruptedException {
+        long start = System.nanoTime();
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Pool " + name + " is closed.");
+            }
+            acquisitions++;
+            boolean waited = false;
+            while (true) {
+                T session = idle.poll();
+                if (session != null || all.size() < maxSize) {
+                    if (waited) {
+                        recordWait(System.nanoTime() - start);
+                    }
+                    if (session != null) {
+                        return session;
+                    }
+                    // Reserve the slot before the (slow) creation so concurrent callers cannot overshoot.
+                    all.add(null);
+                    break;
+                }
+                if (closed) {
+                    throw new IllegalStateException("Pool " + name + " is closed.");
+                }
+                long remaining = timeoutNanos - (System.nanoTime() - start);
+                if (timeoutNanos >= 0 && remaining <= 0) {
+                    recordWait(System.nanoTime() - start);
+                    return null;
+                }
+                waited = true;
+                if (timeoutNanos < 0) {
+                    wait();
+                } else {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+        }
+        return create();
+    }
+
+    /**
+     * Returns a session to the pool. Sessions released after {@link #close()}, and unusable ones,
+     * are closed instead; an unusable session also frees its slot for a new one.
+     */
+    public void release(T session) {
+        if (session == null) {
+            return;
+        }
+        boolean discard = !usable.test(session);
+        synchronized (this) {
+            if (!closed && !discard) {
+                idle.add(session);
+                notifyAll();
+                return;
+            }
+            if (discard) {
+                all.remove(session);
+                notifyAll(); // A waiting caller can create a session in the freed slot.
+                Log.w(TAG, "Discarding unusable " + name + " session.");
+            }
+        }
+        closeQuietly(session);
+    }
+
+    /** Creates sessions up front so the first frames do not pay for loading the model. */
+    public void prewarm(int count) {
+        List<T> created = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                if (closed || all.size() >= Math.min(count, maxSize)) {
+                    break;
+                }
+                all.add(null);
+            }
+            created.add(create());
+        }
+        for (T session : created) {
+            release(session);
+        }
+    }
+
+    /** Creates a session in a slot reserved by the caller, freeing the slot if creation fails. */
+    private T create() {
+        long start = System.nanoTime();
+        T session;
+        try {
+            session = factory.create();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                all.remove(null);
+                notifyAll();
+            }
+            throw e;
+        }
+        int size;
+        synchronized (this) {
+            all.set(all.indexOf(null), session);
+            size = all.size();
+        }
+        Log.i(TAG, String.format("Created %s session %d/%d in %.1f ms.", name, size, maxSize,
+                (System.nanoTime() - start) / 1_000_000.0));
+        return session;
+    }
+
+    private synchronized void recordWait(long nanos) {
+        waits++;
+        totalWaitNanos += nanos;
+        maxWaitNanos = Math.max(maxWaitNanos, nanos);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /** Sessions created so far. */
+    public synchronized int getSize() {
+        return all.size();
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    public synchronized long getAcquisitionCount() {
+        return acquisitions;
+    }
+
+    /** Acquisitions that had to wait for a session to be released. */
+    public synchronized long getWaitCount() {
+        return waits;
+    }
+
+    /** Mean wait over all acquisitions, including the ones that did not wait. */
+    public synchronized float getAverageWaitMillis() {
+        return acquisitions == 0 ? 0.0f : totalWaitNanos / 1_000_000.0f / acquisitions;
+    }
+
+    public synchronized float getMaxWaitMillis() {
+        return maxWaitNanos / 1_000_000.0f;
+    }
+
+    /**
+     * Closes the idle sessions now and every checked-out session when it is released. Callers
+     * waiting in {@link #acquire()} fail with an IllegalStateException.
+     */
+    public void close() {
+        List<T> sessions;
+        synchronized (this) {
+            closed = true;
+            sessions = new ArrayList<>(idle);
+            idle.clear();
+            notifyAll();
+        }
+        for (T session : sessions) {
+            closeQuietly(session);
+        }
+    }
+
+    private void closeQuietly(T session) {
+        try {
+            session.close();
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to close " + name + " session.", e);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.android.safesphere.ml;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the fastest CPU configuration (thread count, XNNPACK, FP16 relaxation) for a model on this
+ * device and remembers it, keyed by the SHA-256 of the model file so a re-downloaded model is tuned
+ * again.
+ *
+ * <p>{@link #tune} benchmarks on zero-filled inputs and is slow (seconds for the CLIP model), so it is
+ * meant to run once, off the UI thread, right after the models are downloaded. It also hashes the
+ * file and persists the hash with the file's size and modification time. {@link #options} and
+ * {@link #isTuned} never hash: they only look the hash up by size and modification time, so they
+ * cost a preferences read, and a model that changed since it was tuned gets the old defaults until
+ * it is tuned again.
+ */
+public class InterpreterTuner {
+    private static final String TAG = "InterpreterTuner";
+    private static final String PREF_KEY = "interpreter_tuning";
+    private static final String CONFIG_PREFIX = "config_";
+    private static final String HASH_PREFIX = "hash_";
+    private static final String SIZE_PREFIX = "size_";
+    private static final String MTIME_PREFIX = "mtime_";
+
+    private static final int DEFAULT_THREADS = 4;
+    private static final int WARMUP_RUNS = 1;
+    private static final int TIMED_RUNS = 3;
+
+    /** One interpreter configuration, persisted as {@code "threads,xnnpack,fp16"}. */
+    public static final class Config {
+        public final int numThreads;
+        public final boolean useXnnpack;
+        public final boolean allowFp16;
+
+        public Config(int numThreads, boolean useXnnpack, boolean allowFp16) {
+            this.numThreads = numThreads;
+            this.useXnnpack = useXnnpack;
+            this.allowFp16 = allowFp16;
+        }
+
+        public Interpreter.Options toOptions() {
+            Interpreter.Options options = new Interpreter.Options();
+            options.setNumThreads(numThreads);
+            options.setUseXNNPACK(useXnnpack);
+            options.setAllowFp16PrecisionForFp32(allowFp16);
+            return options;
+        }
+
+        String encode() {
+            return numThreads + "," + useXnnpack + "," + allowFp16;
+        }
+
+        static Config decode(String value) {
+            String[] parts = value.split(",");
+            if (parts.length != 3) {
+                return null;
+            }
+            try {
+                return new Config(Integer.parseInt(parts[0]), Boolean.parseBoolean(parts[1]), Boolean.parseBoolean(parts[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return numThreads + " threads, XNNPACK " + (useXnnpack ? "on" : "off") + ", FP16 " + (allowFp16 ? "on" : "off");
+        }
+    }
+
+    /** Interpreter options for {@code modelFile}: the tuned configuration if there is one, else the defaults. */
+    public static Interpreter.Options options(Context context, File modelFile) {
+        Config config = savedConfig(context, modelFile, false);
+        if (config == null) {
+            config = defaultConfig();
+        } else {
+            Log.d(TAG, "Using tuned configuration for " + modelFile.getName() + ": " + config);
+        }
+        return config.toOptions();
+    }
+
+    /** Whether this exact file has been tuned. Reads preferences, so keep it off the UI thread. */
+    public static boolean isTuned(Context context, File modelFile) {
+        return savedConfig(context, modelFile, false) != null;
+    }
+
+    /**
+     * Benchmarks {@code modelFile} and persists the fastest configuration, unless this exact file has
+     * already been tuned. Searches one dimension at a time: thread counts with XNNPACK on, then XNNPACK
+     * off and FP16 on at the best thread count, which needs 6 configurations instead of all 16.
+     */
+    public static Config tune(Context context, File modelFile) {
+        Config saved = savedConfig(context, modelFile, true);
+        if (saved != null) {
+            return saved;
+        }
+        long start = System.nanoTime();
+
+        Config best = null;
+        long bestNanos = Long.MAX_VALUE;
+        for (int threads : threadCandidates()) {
+            Config candidate = new Config(threads, true, false);
+            long nanos = benchmark(modelFile, candidate);
+            if (nanos < bestNanos) {
+                bestNanos = nanos;
+                best = candidate;
+            }
+        }
+        if (best == null) {
+            Log.e(TAG, "Could not benchmark " + modelFile.getName() + ", keeping the defaults.");
+            return defaultConfig();
+        }
+        Config[] toggles = {
+                new Config(best.numThreads, false, false),
+                new Config(best.numThreads, best.useXnnpack, true),
+        };
+        for (Config candidate : toggles) {
+            long nanos = benchmark(modelFile, candidate);
+            if (nanos < bestNanos) {
+                bestNanos = nanos;
+                best = candidate;
+            }
+        }
+
+        Log.i(TAG, String.format("Tuned %s in %.1f s: %s, %.1f ms per run.", modelFile.getName(),
+                (System.nanoTime() - start) / 1_000_000_000.0, best, bestNanos / 1_000_000.0));
+        String hash = modelHash(context, modelFile, true);
+        if (hash != null) {
+            prefs(context).edit().putString(CONFIG_PREFIX + hash, best.encode()).apply();
+        }
+        return best;
+    }
+
+    private static Config defaultConfig() {
+        return new Config(Math.min(DEFAULT_THREADS, Runtime.getRuntime().availableProcessors()), true, false);
+    }
+
+    private static List<Integer> threadCandidates() {
+        int cores = Math.max(1, Runtime.getRuntime().availableProcessors());
+        List<Integer> candidates = new ArrayList<>();
+        for (int threads : new int[]{1, 2, 4, cores}) {
+            if (threads <= cores && !candidates.contains(threads)) {
+                candidates.add(threads);
+            }
+        }
+        return candidates;
+    }
+
+    /** Median wall time of one inference, or {@code Long.MAX_VALUE} if the configuration fails. */
+    private static long benchmark(File modelFile, Config config) {
+        Interpreter interpreter = null;
+        try {
+            interpreter = new Interpreter(modelFile, config.toOptions());
+            Object[] inputs = new Object[interpreter.getInputTensorCount()];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = zeroBuffer(interpreter.getInputTensor(i));
+            }
+            Map<Integer, Object> outputs = new HashMap<>();
+            for (int i = 0; i < interpreter.getOutputTensorCount(); i++) {
+                outputs.put(i, zeroBuffer(interpreter.getOutputTensor(i)));
+            }
+
+            long[] timings = new long[TIMED_RUNS];
+            for (int run = 0; run < WARMUP_RUNS + TIMED_RUNS; run++) {
+                for (Object input : inputs) {
+                    ((ByteBuffer) input).rewind();
+                }
+                for (Object output : outputs.values()) {
+                    ((ByteBuffer) output).rewind();
+                }
+                long start = System.nanoTime();
+                interpreter.runForMultipleInputsOutputs(inputs, outputs);
+                if (run >= WARMUP_RUNS) {
+                    timings[run - WARMUP_RUNS] = System.nanoTime() - start;
+                }
+            }
+            Arrays.sort(timings);
+            long median = timings[TIMED_RUNS / 2];
+            Log.d(TAG, String.format("%s (%s): %.1f ms", modelFile.getName(), config, median / 1_000_000.0));
+            return median;
+        } catch (Exception e) {
+            Log.w(TAG, "Configuration failed for " + modelFile.getName() + " (" + config + ")", e);
+            return Long.MAX_VALUE;
+        } finally {
+            if (interpreter != null) {
+                interpreter.close();
+            }
+        }
+    }
+
+    private static ByteBuffer zeroBuffer(Tensor tensor) {
+        return ByteBuffer.allocateDirect(tensor.numBytes()).order(ByteOrder.nativeOrder());
+    }
+
+    private static Config savedConfig(Context context, File modelFile, boolean mayHash) {
+        String hash = modelHash(context, modelFile, mayHash);
+        if (hash == null) {
+            return null;
+        }
+        String value = prefs(context).getString(CONFIG_PREFIX + hash, null);
+        return value == null ? null : Config.decode(value);
+    }
+
+    /**
+     * SHA-256 of the model file. Hashing a 100+ MB model takes a noticeable fraction of a second, so
+     * the digest is persisted with the file's size and modification time and reused while both match.
+     * Without a matching digest the file is only hashed if {@code mayHash}, otherwise null is returned.
+     */
+    private static String modelHash(Context context, File modelFile, boolean mayHash) {
+        if (!modelFile.exists()) {
+            return null;
+        }
+        SharedPreferences prefs = prefs(context);
+        String name = modelFile.getName();
+        long size = modelFile.length();
+        long modified = modelFile.lastModified();
+        String cached = prefs.getString(HASH_PREFIX + name, null);
+        if (cached != null && prefs.getLong(SIZE_PREFIX + name, -1) == size
+                && prefs.getLong(MTIME_PREFIX + name, -1) == modified) {
+            return cached;
+        }
+        if (!mayHash) {
+            return null;
+        }
+
+        try (InputStream input = new FileInputStream(modelFile)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] chunk = new byte[64 * 1024];
+            int count;
+            while ((count = input.read(chunk)) != -1) {
+                digest.update(chunk, 0, count);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            String hash = hex.toString();
+            prefs.edit()
+                    .putString(HASH_PREFIX + name, hash)
+                    .putLong(SIZE_PREFIX + name, size)
+                    .putLong(MTIME_PREFIX + name, modified)
+                    .apply();
+            return hash;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.e(TAG, "Failed to hash " + modelFile.getName(), e);
+            return null;
+        }
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREF_KEY, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,370 @@
+package com.android.safesphere.ml;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Approximate inverted-file index over a {@link SceneVocabulary}: labels are clustered with spherical
+ * k-means and a query only scans the members of the {@code probeCount} clusters whose centroids are
+ * closest to it. With about sqrt(N) clusters and sqrt(clusters) probes a search touches roughly
+ * N^(3/4) rows instead of N.
+ *
+ * <p>With a softmax temperature set, the denominator needs every label, and at low temperatures a
+ * mean-based estimate for unscored labels is far too low. Each cluster instead records its radius,
+ * the largest angle between a member and the centroid, which bounds what any member can score
+ * against a query. After the regular probes, further clusters are scanned by descending bound until
+ * all clusters left could add at most {@link #DENOMINATOR_TOLERANCE} of the denominator; those are
+ * left out. Scanned labels contribute their exact scores.
+ *
+ * <p>Building is the expensive part, so the index is persisted as {@link #FILE_NAME} next to the app's
+ * other model files and reloaded as long as the vocabulary fingerprint still matches. Not thread-safe:
+ * the probe list is reusable scratch.
+ */
+public class IvfLabelIndex implements LabelIndex {
+    private static final String TAG = "IvfLabelIndex";
+    public static final String FILE_NAME = "scene_vocab.ivf";
+
+    private static final int MAGIC = 0x46565353; // "SSVF"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int KMEANS_ITERATIONS = 8;
+    private static final int TRAINING_POINTS_PER_LIST = 64;
+    static final double DENOMINATOR_TOLERANCE = 0.01; // Largest share of the softmax left unscanned.
+    private static final double RADIUS_SLACK = 1e-3; // Radians, covers rounding of normalized rows.
+
+    private final SceneVocabulary vocabulary;
+    private final int listCount;
+    private final int dimension;
+    private final float[] centroids;   // listCount rows of dimension floats, L2-normalized
+    private final int[] listOffsets;   // Members of list l are listMembers[listOffsets[l] .. listOffsets[l + 1])
+    private final int[] listMembers;
+    private final float[] listRadius;   // Largest angle between a list's members and its centroid.
+    private final float[] listScores;   // Per-query scratch: centroid similarities.
+    private final boolean[] probed;     // Per-query scratch.
+    private final LabelMatches boundLists; // Per-query scratch: unprobed lists by member upper bound.
+    private final double[] tailBounds;  // Per-query scratch: suffix sums of boundLists' bounds.
+    private LabelMatches probeLists;
+
+    private IvfLabelIndex(SceneVocabulary vocabulary, float[] centroids, int[] listOffsets, int[] listMembers) {
+        this.vocabulary = vocabulary;
+        this.dimension = vocabulary.dimension();
+        this.listCount = listOffsets.length - 1;
+        this.centroids = centroids;
+        this.listOffsets = listOffsets;
+        this.listMembers = listMembers;
+        this.listRadius = radius(vocabulary, centroids, listOffsets, listMembers);
+        this.listScores = new float[listCount];
+        this.probed = new boolean[listCount];
+        this.boundLists = new LabelMatches(listCount);
+        this.tailBounds = new double[listCount + 1];
+        setProbeCount((int) Math.ceil(Math.sqrt(listCount)));
+    }
+
+    private static float[] radius(SceneVocabulary vocabulary, float[] centroids, int[] listOffsets, int[] listMembers) {
+        int listCount = listOffsets.length - 1;
+        int dimension = vocabulary.dimension();
+        float[] radius = new float[listCount];
+        float[] centroid = new float[dimension];
+        for (int l = 0; l < listCount; l++) {
+            System.arraycopy(centroids, l * dimension, centroid, 0, dimension);
+            double largest = 0.0;
+            for (int m = listOffsets[l]; m < listOffsets[l + 1]; m++) {
+                largest = Math.max(largest, angle(vocabulary.similarity(listMembers[m], centroid)));
+            }
+            radius[l] = (float) (largest + RADIUS_SLACK);
+        }
+        return radius;
+    }
+
+    /**
+     * Reads the index persisted in {@code directory} if it was built for {@code vocabulary}, otherwise
+     * builds a fresh one and writes it there for the next start. Building can take seconds for large
+     * vocabularies, so call this off the UI thread.
+     */
+    public static IvfLabelIndex loadOrBuild(File directory, SceneVocabulary vocabulary) {
+        File file = new File(directory, FILE_NAME);
+        if (file.exists()) {
+            try {
+                return read(file, vocabulary);
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding stale or unreadable label index: " + e.getMessage());
+            }
+        }
+
+        long start = System.nanoTime();
+        IvfLabelIndex index = build(vocabulary, (int) Math.max(1, Math.round(Math.sqrt(vocabulary.size()))));
+        Log.i(TAG, String.format("Built %d-list index over %d labels in %.1f ms.", index.listCount,
+                vocabulary.size(), (System.nanoTime() - start) / 1_000_000.0));
+        try {
+            index.write(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to persist label index.", e);
+        }
+        return index;
+    }
+
+    /** Clusters the vocabulary into {@code listCount} lists with spherical k-means. */
+    public static IvfLabelIndex build(SceneVocabulary vocabulary, int listCount) {
+        int size = vocabulary.size();
+        int dimension = vocabulary.dimension();
+        listCount = Math.max(1, Math.min(listCount, size));
+
+        // Train on an evenly strided sample; the full vocabulary is only needed for the final assignment.
+        int trainingStride = Math.max(1, size / (listCount * TRAINING_POINTS_PER_LIST));
+        float[] centroids = new float[listCount * dimension];
+        float[] row = new float[dimension];
+        for (int l = 0; l < listCount && size > 0; l++) {
+            vocabulary.copyEmbedding((int) ((long) l * size / listCount), row);
+            System.arraycopy(row, 0, centroids, l * dimension, dimension);
+        }
+
+        float[] sums = new float[listCount * dimension];
+        int[] counts = new int[listCount];
+        for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+            Arrays.fill(sums, 0.0f);
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < size; i += trainingStride) {
+                vocabulary.copyEmbedding(i, row);
+                int list = nearestCentroid(centroids, listCount, dimension, row);
+                counts[list]++;
+                int sumOffset = list * dimension;
+                for (int j = 0; j < dimension; j++) {
+                    sums[sumOffset + j] += row[j];
+                }
+            }
+            for (int l = 0; l < listCount; l++) {
+                // An empty cluster keeps its previous centroid rather than collapsing to zero.
+                if (counts[l] > 0) {
+                    normalizeInto(sums, l * dimension, dimension, centroids);
+                }
+            }
+        }
+
+        int[] assignment = new int[size];
+        int[] listOffsets = new int[listCount + 1];
+        for (int i = 0; i < size; i++) {
+            vocabulary.copyEmbedding(i, row);
+            assignment[i] = nearestCentroid(centroids, listCount, dimension, row);
+            listOffsets[assignment[i] + 1]++;
+        }
+        for (int l = 0; l < listCount; l++) {
+            listOffsets[l + 1] += listOffsets[l];
+        }
+        int[] listMembers = new int[size];
+        int[] cursor = Arrays.copyOf(listOffsets, listCount);
+        for (int i = 0; i < size; i++) {
+            listMembers[cursor[assignment[i]]++] = i;
+        }
+        return new IvfLabelIndex(vocabulary, centroids, listOffsets, listMembers);
+    }
+
+    /**
+     * Reads an index written by {@link #write}, failing with an IOException if it belongs to a
+     * different vocabulary or is truncated or corrupt.
+     */
+    public static IvfLabelIndex read(File file, SceneVocabulary vocabulary) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Label index is truncated.");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a label index file.");
+            }
+            long fingerprint = buffer.getLong();
+            int size = buffer.getInt();
+            int dimension = buffer.getInt();
+            int listCount = buffer.getInt();
+            if (fingerprint != vocabulary.fingerprint() || size != vocabulary.size()
+                    || dimension != vocabulary.dimension()) {
+                throw new IOException("Label index was built for a different vocabulary.");
+            }
+            // Checked before allocating anything sized by the header.
+            if (listCount < 1 || listCount > Math.max(1, size)
+                    || channel.size() != HEADER_SIZE + 4L * ((long) listCount * dimension + listCount + 1 + size)) {
+                throw new IOException("Label index is truncated or corrupt (" + listCount + " lists, "
+                        + channel.size() + " bytes).");
+            }
+
+            buffer.position(HEADER_SIZE);
+            float[] centroids = new float[listCount * dimension];
+            int[] listOffsets = new int[listCount + 1];
+            int[] listMembers = new int[size];
+            buffer.asFloatBuffer().get(centroids);
+            buffer.position(buffer.position() + 4 * centroids.length);
+            buffer.asIntBuffer().get(listOffsets);
+            buffer.position(buffer.position() + 4 * listOffsets.length);
+            buffer.asIntBuffer().get(listMembers);
+            checkLists(listOffsets, listMembers, size);
+            return new IvfLabelIndex(vocabulary, centroids, listOffsets, listMembers);
+        } catch (RuntimeException e) {
+            // Anything the checks above missed must still end in the rebuild fallback, not a crash.
+            throw new IOException("Label index is corrupt.", e);
+        }
+    }
+
+    private static void checkLists(int[] listOffsets, int[] listMembers, int size) throws IOException {
+        if (listOffsets[0] != 0 || listOffsets[listOffsets.length - 1] != size) {
+            throw new IOException("Label index lists do not cover the vocabulary.");
+        }
+        for (int l = 1; l < listOffsets.length; l++) {
+            if (listOffsets[l] < listOffsets[l - 1]) {
+                throw new IOException("Label index list offsets are not ascending.");
+            }
+        }
+        for (int member : listMembers) {
+            if (member < 0 || member >= size) {
+                throw new IOException("Label index member " + member + " is out of range.");
+            }
+        }
+    }
+
+    /** Persists the index atomically (write to a temp file, then rename). */
+    public void write(File file) throws IOException {
+        int totalSize = HEADER_SIZE + 4 * (centroids.length + listOffsets.length + listMembers.length);
+        ByteBuffer buffer = ByteBuffer.allocate(totalSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(vocabulary.fingerprint())
+                .putInt(vocabulary.size()).putInt(dimension).putInt(listCount);
+        buffer.position(HEADER_SIZE);
+        buffer.asFloatBuffer().put(centroids);
+        buffer.position(buffer.position() + 4 * centroids.length);
+        buffer.asIntBuffer().put(listOffsets);
+        buffer.position(buffer.position() + 4 * listOffsets.length);
+        buffer.asIntBuffer().put(listMembers);
+        buffer.rewind();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+             FileChannel channel = raf.getChannel()) {
+            channel.truncate(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /** Number of clusters scanned per query; more probes raise recall and cost. */
+    public void setProbeCount(int probeCount) {
+        probeLists = new LabelMatches(Math.max(1, Math.min(probeCount, listCount)));
+    }
+
+    public int listCount() {
+        return listCount;
+    }
+
+    @Override
+    public void search(float[] normalizedQuery, LabelMatches matches) {
+        probeLists.reset(vocabulary);
+        for (int l = 0; l < listCount; l++) {
+            listScores[l] = dot(centroids, l * dimension, normalizedQuery, dimension);
+            probeLists.offer(l, listScores[l]);
+            probed[l] = false;
+        }
+
+        matches.reset(vocabulary);
+        for (int p = 0; p < probeLists.count(); p++) {
+            scan(probeLists.index(p), normalizedQuery, matches);
+        }
+        if (matches.hasSoftmax()) {
+            scanForDenominator(normalizedQuery, matches);
+        }
+    }
+
+    private void scan(int list, float[] normalizedQuery, LabelMatches matches) {
+        probed[list] = true;
+        for (int m = listOffsets[list]; m < listOffsets[list + 1]; m++) {
+            int index = listMembers[m];
+            float score = vocabulary.similarity(index, normalizedQuery);
+            matches.offer(index, score);
+            matches.accumulate(score, 1);
+        }
+    }
+
+    /**
+     * Scans unprobed lists by descending upper bound on their members' scores until the bounds of
+     * the lists left add up to at most {@link #DENOMINATOR_TOLERANCE} of the denominator so far.
+     */
+    private void scanForDenominator(float[] normalizedQuery, LabelMatches matches) {
+        boundLists.reset(vocabulary);
+        for (int l = 0; l < listCount; l++) {
+            if (!probed[l] && listOffsets[l + 1] > listOffsets[l]) {
+                // Angles obey the triangle inequality: no member is closer to the query than this.
+                double gap = Math.max(0.0, angle(listScores[l]) - listRadius[l]);
+                boundLists.offer(l, (float) Math.cos(gap));
+            }
+        }
+        int count = boundLists.count();
+        if (count == 0) {
+            return;
+        }
+        // Suffix sums of count * exp(bound / T), relative to the largest bound so exp() stays in range.
+        float temperature = matches.softmaxTemperature();
+        double topLogit = boundLists.score(0) / temperature;
+        tailBounds[count] = 0.0;
+        for (int i = count - 1; i >= 0; i--) {
+            int list = boundLists.index(i);
+            tailBounds[i] = tailBounds[i + 1] + (listOffsets[list + 1] - listOffsets[list])
+                    * Math.exp(boundLists.score(i) / temperature - topLogit);
+        }
+        double logTolerance = Math.log(DENOMINATOR_TOLERANCE);
+        for (int i = 0; i < count; i++) {
+            if (Math.log(tailBounds[i]) + topLogit <= logTolerance + matches.logDenominator()) {
+                return;
+            }
+            scan(boundLists.index(i), normalizedQuery, matches);
+        }
+    }
+
+    /** Angle in radians between two unit vectors with cosine {@code similarity}. */
+    private static double angle(float similarity) {
+        return Math.acos(Math.max(-1.0f, Math.min(1.0f, similarity)));
+    }
+
+    private static int nearestCentroid(float[] centroids, int listCount, int dimension, float[] row) {
+        int best = 0;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        for (int l = 0; l < listCount; l++) {
+            float score = dot(centroids, l * dimension, row, dimension);
+            if (score > bestScore) {
+                bestScore = score;
+                best = l;
+            }
+        }
+        return best;
+    }
+
+    private static float dot(float[] matrix, int offset, float[] vector, int dimension) {
+        float dotProduct = 0.0f;
+        for (int j = 0; j < dimension; j++) {
+            dotProduct += matrix[offset + j] * vector[j];
+        }
+        return dotProduct;
+    }
+
+    private static void normalizeInto(float[] source, int offset, int length, float[] target) {
+        double norm = 0.0;
+        for (int j = 0; j < length; j++) {
+            norm += source[offset + j] * source[offset + j];
+        }
+        if (norm == 0.0) {
+            return;
+        }
+        float invNorm = (float) (1.0 / Math.sqrt(norm));
+        for (int j = 0; j < length; j++) {
+            target[offset + j] = source[offset + j] * invNorm;
+        }
+    }
+}
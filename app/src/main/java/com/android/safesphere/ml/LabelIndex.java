@@ -0,0 +1,17 @@
+package com.android.safesphere.ml;
+
+/**
+ * Finds the labels of a {@link SceneVocabulary} closest to an image embedding.
+ *
+ * <p>Implementations trade exactness for speed: {@link ExactLabelIndex} scans every label,
+ * {@link QuantizedLabelIndex} scans int8 rows and {@link IvfLabelIndex} only visits the clusters
+ * nearest to the query. Instances are not thread-safe unless stated otherwise.
+ */
+public interface LabelIndex {
+
+    /**
+     * Fills {@code matches} with up to {@code matches.capacity()} labels, best first, scored by exact
+     * cosine similarity against {@code normalizedQuery}.
+     */
+    void search(float[] normalizedQuery, LabelMatches matches);
+}
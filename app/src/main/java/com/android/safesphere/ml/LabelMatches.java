@@ -0,0 +1,128 @@
+package com.android.safesphere.ml;
+
+/**
+ * The best {@code capacity} labels found by a {@link LabelIndex}, kept sorted best first in
+ * primitive arrays so a search allocates nothing.
+ *
+ * <p>With a softmax temperature set, a search also accumulates the softmax denominator over every
+ * label of the vocabulary, not just the kept ones: exactly where the index scores every label,
+ * estimated where it does not. {@link #probability} is then the match's share of the full softmax.
+ */
+public class LabelMatches {
+    private final int[] indices;
+    private final float[] scores;
+    private SceneVocabulary vocabulary;
+    private int count;
+
+    // Softmax denominator, kept relative to the largest logit seen so exp() stays in range.
+    private float temperature = 0.0f;
+    private float maxLogit;
+    private double expSum;
+
+    public LabelMatches(int capacity) {
+        indices = new int[capacity];
+        scores = new float[capacity];
+    }
+
+    /** Empties the list before a search over {@code vocabulary}. */
+    public void reset(SceneVocabulary vocabulary) {
+        this.vocabulary = vocabulary;
+        count = 0;
+        maxLogit = Float.NEGATIVE_INFINITY;
+        expSum = 0.0;
+    }
+
+    /** Enables the softmax denominator at {@code temperature}; 0 (the default) turns it off. */
+    public void setSoftmaxTemperature(float temperature) {
+        this.temperature = temperature;
+    }
+
+    public boolean hasSoftmax() {
+        return temperature > 0.0f;
+    }
+
+    public float softmaxTemperature() {
+        return temperature;
+    }
+
+    /** Natural log of the denominator accumulated so far, in logits (score / temperature). */
+    public double logDenominator() {
+        return maxLogit + Math.log(expSum);
+    }
+
+    /**
+     * Adds {@code weight} labels scoring {@code score} to the softmax denominator. Indexes call this
+     * once for every label of the vocabulary, with an estimate for labels they do not score exactly.
+     */
+    public void accumulate(float score, int weight) {
+        if (temperature <= 0.0f || weight <= 0) {
+            return;
+        }
+        float logit = score / temperature;
+        if (logit > maxLogit) {
+            expSum = expSum * Math.exp(maxLogit - logit) + weight;
+            maxLogit = logit;
+        } else {
+            expSum += weight * Math.exp(logit - maxLogit);
+        }
+    }
+
+    /** Replaces one label's estimated score in the denominator by its exact score. */
+    public void correct(float estimatedScore, float exactScore) {
+        if (temperature <= 0.0f) {
+            return;
+        }
+        accumulate(exactScore, 1);
+        expSum = Math.max(Double.MIN_VALUE, expSum - Math.exp(estimatedScore / temperature - maxLogit));
+    }
+
+    /** Softmax probability of the {@code rank}-th best match over the whole vocabulary. */
+    public float probability(int rank) {
+        if (temperature <= 0.0f) {
+            throw new IllegalStateException("No softmax temperature set.");
+        }
+        return (float) (Math.exp(scores[rank] / temperature - maxLogit) / expSum);
+    }
+
+    /** Inserts a candidate if it beats the current worst match; k is small, so insertion beats a heap. */
+    public void offer(int index, float score) {
+        int capacity = indices.length;
+        if (capacity == 0 || (count == capacity && score <= scores[count - 1])) {
+            return;
+        }
+        int position = count < capacity ? count++ : count - 1;
+        while (position > 0 && scores[position - 1] < score) {
+            indices[position] = indices[position - 1];
+            scores[position] = scores[position - 1];
+            position--;
+        }
+        indices[position] = index;
+        scores[position] = score;
+    }
+
+    public int capacity() {
+        return indices.length;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    /** Vocabulary index of the {@code rank}-th best match. */
+    public int index(int rank) {
+        return indices[rank];
+    }
+
+    /** Cosine similarity of the {@code rank}-th best match. */
+    public float score(int rank) {
+        return scores[rank];
+    }
+
+    public String label(int rank) {
+        return vocabulary.label(indices[rank]);
+    }
+
+    public float risk(int rank) {
+        return vocabulary.risk(indices[rank]);
+    }
+}
@@ -0,0 +1,79 @@
+package com.android.safesphere.ml;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Label side of the scene similarity search: one vocabulary together with the indexes built over it.
+ * Never modified once published, so a vocabulary update never touches the interpreter and a frame is
+ * always scored against a consistent set.
+ */
+final class LabelSpace {
+    final SceneVocabulary vocabulary;
+    final SceneClassifier.MatchingMode mode;
+    final LabelIndex exactIndex;
+    final LabelIndex labelIndex;
+
+    private LabelSpace(SceneVocabulary vocabulary, SceneClassifier.MatchingMode mode, LabelIndex exactIndex,
+                       LabelIndex labelIndex) {
+        this.vocabulary = vocabulary;
+        this.mode = mode;
+        this.exactIndex = exactIndex;
+        this.labelIndex = labelIndex;
+    }
+
+    /** Builds the indexes for {@code mode}; an approximate index is persisted in {@code indexDirectory}. */
+    static LabelSpace create(File indexDirectory, SceneVocabulary vocabulary, SceneClassifier.MatchingMode mode) {
+        LabelIndex exactIndex = new ExactLabelIndex(vocabulary);
+        LabelIndex labelIndex;
+        switch (mode) {
+            case QUANTIZED:
+                labelIndex = new QuantizedLabelIndex(vocabulary);
+                break;
+            case APPROXIMATE:
+                labelIndex = IvfLabelIndex.loadOrBuild(indexDirectory, vocabulary);
+                break;
+            default:
+                labelIndex = exactIndex;
+                break;
+        }
+        return new LabelSpace(vocabulary, mode, exactIndex, labelIndex);
+    }
+
+    /**
+     * The current snapshot. Writers build the replacement and publish it under one lock, so a mode
+     * switch and a vocabulary update never undo each other; readers only read the reference.
+     */
+    static final class Publisher {
+        private final File indexDirectory;
+        private final AtomicReference<LabelSpace> current;
+        private final Object swapLock = new Object();
+
+        Publisher(File indexDirectory, SceneVocabulary vocabulary, SceneClassifier.MatchingMode mode) {
+            this.indexDirectory = indexDirectory;
+            this.current = new AtomicReference<>(create(indexDirectory, vocabulary, mode));
+        }
+
+        LabelSpace get() {
+            return current.get();
+        }
+
+        /** Rebuilds the current vocabulary's indexes for {@code mode} and publishes them. */
+        LabelSpace setMatchingMode(SceneClassifier.MatchingMode mode) {
+            synchronized (swapLock) {
+                LabelSpace space = create(indexDirectory, current.get().vocabulary, mode);
+                current.set(space);
+                return space;
+            }
+        }
+
+        /** Builds indexes over {@code vocabulary} in the current mode and publishes them. */
+        LabelSpace updateVocabulary(SceneVocabulary vocabulary) {
+            synchronized (swapLock) {
+                LabelSpace space = create(indexDirectory, vocabulary, current.get().mode);
+                current.set(space);
+                return space;
+            }
+        }
+    }
+}
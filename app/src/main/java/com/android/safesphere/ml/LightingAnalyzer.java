@@ -2,54 +2,114 @@ package com.android.safesphere.ml;
 
 import android.graphics.Bitmap;
 import android.util.Log;
-import org.opencv.android.Utils;
-import org.opencv.core.Core;
-import org.opencv.core.Mat;
-import org.opencv.imgproc.Imgproc;
-import java.util.ArrayList;
-import java.util.List;
-import org.opencv.core.Scalar;
 
+import java.util.Arrays;
+
+/**
+ * Measures how well lit a frame is from the HSV value channel, V = max(R, G, B).
+ *
+ * <p>Reads the bitmap directly in one pass over a strided sample of about {@link #TARGET_SAMPLES}
+ * pixels, accumulating a fixed 256-bin histogram; the mean, percentiles and dark/clipped ratios all
+ * come from that histogram. No Mats, no color conversion, and nothing allocated per frame once the row
+ * buffer fits the frame width. Not thread-safe.
+ */
 public class LightingAnalyzer {
     private static final String TAG = "LightingAnalyzer";
+    private static final int TARGET_SAMPLES = 64 * 1024;
 
-    public float analyzeLighting(Bitmap bitmap) {
-        // Create an OpenCV Mat object to hold the image data
-        Mat frame = new Mat();
-        Utils.bitmapToMat(bitmap, frame);
-
-        // Convert the image from BGR to HSV (Hue, Saturation, Value) color space.
-        // The 'V' channel directly represents the brightness of each pixel.
-        Mat hsvFrame = new Mat();
-        Imgproc.cvtColor(frame, hsvFrame, Imgproc.COLOR_BGR2HSV);
+    private final int[] histogram = new int[256];
+    private int[] rowPixels = new int[0];
+    private final LightingStats stats = new LightingStats();
 
-        // Split the HSV image into its three separate channels (H, S, and V).
-        List<Mat> hsvPlanes = new ArrayList<>();
-        Core.split(hsvFrame, hsvPlanes);
+    /** Compatibility wrapper: the lighting risk (100 - brightness%) the risk calculator expects. */
+    public float analyzeLighting(Bitmap bitmap) {
+        float risk = analyze(bitmap, stats).riskScore();
+        Log.d(TAG, String.format("VERIFY - Anomaly Ratio: %.2f%%", risk));
+        return risk;
+    }
 
-        // Get the 'V' channel, which is the third channel (index 2).
-        Mat valueChannel = hsvPlanes.get(2);
+    /** Lighting risk of a shared frame; sampled straight from its bitmap, which needs no conversion. */
+    public float analyzeLighting(FrameContext frame) {
+        return analyzeLighting(frame.bitmap());
+    }
 
-        // Calculate the mean (average) brightness of all pixels in the 'V' channel.
-        // The result is a Scalar, but since it's a single-channel image, we only need the first value.
-        Scalar meanBrightnessScalar = Core.mean(valueChannel);
-        double meanBrightness = meanBrightnessScalar.val[0];
+    /** Measures {@code frame} into {@code out} and returns it. */
+    public LightingStats analyze(FrameContext frame, LightingStats out) {
+        return analyze(frame.bitmap(), out);
+    }
 
-        // The meanBrightness is a value from 0 (black) to 255 (white).
-        // We scale this to a 0-100 score.
-        float lightingScore = (float) (meanBrightness / 255.0) * 100.0f;
+    /** Measures {@code bitmap} into a new {@link LightingStats}. */
+    public LightingStats analyze(Bitmap bitmap) {
+        return analyze(bitmap, new LightingStats());
+    }
 
+    /** Measures {@code bitmap} into {@code out} and returns it. */
+    public LightingStats analyze(Bitmap bitmap, LightingStats out) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        // Same step in both directions, chosen so about TARGET_SAMPLES pixels are visited.
+        int stride = Math.max(1, (int) Math.sqrt((double) width * height / TARGET_SAMPLES));
+        if (rowPixels.length < width) {
+            rowPixels = new int[width];
+        }
 
-        frame.release();
-        hsvFrame.release();
-        for (Mat mat : hsvPlanes) {
-            mat.release();
+        Arrays.fill(histogram, 0);
+        int samples = 0;
+        for (int y = stride / 2; y < height; y += stride) {
+            bitmap.getPixels(rowPixels, 0, width, 0, y, width, 1);
+            for (int x = stride / 2; x < width; x += stride) {
+                int pixel = rowPixels[x];
+                int value = Math.max((pixel >> 16) & 0xFF, Math.max((pixel >> 8) & 0xFF, pixel & 0xFF));
+                histogram[value]++;
+                samples++;
+            }
         }
+        fillStats(samples, out);
+        return out;
+    }
 
-        // The final risk is the inverse of the lighting score.
-        // Lower brightness (low score) means higher risk.
-        Log.d(TAG, String.format("VERIFY - Anomaly Ratio: %.2f%%", 100.0f - lightingScore));
+    private void fillStats(int samples, LightingStats out) {
+        out.sampleCount = samples;
+        if (samples == 0) {
+            out.meanBrightness = 0.0f;
+            out.percentile5 = out.median = out.percentile95 = 0;
+            out.darkRatio = out.clippedRatio = 0.0f;
+            return;
+        }
 
-        return 100.0f - lightingScore;
+        long sum = 0;
+        int dark = 0;
+        int clipped = 0;
+        int cumulative = 0;
+        int p5Rank = (int) Math.ceil(samples * 0.05);
+        int medianRank = (int) Math.ceil(samples * 0.5);
+        int p95Rank = (int) Math.ceil(samples * 0.95);
+        out.percentile5 = out.median = out.percentile95 = -1;
+        for (int value = 0; value < histogram.length; value++) {
+            int count = histogram[value];
+            if (count == 0) {
+                continue;
+            }
+            sum += (long) value * count;
+            if (value <= LightingStats.DARK_LEVEL) {
+                dark += count;
+            }
+            if (value >= LightingStats.CLIPPED_LEVEL) {
+                clipped += count;
+            }
+            cumulative += count;
+            if (out.percentile5 < 0 && cumulative >= p5Rank) {
+                out.percentile5 = value;
+            }
+            if (out.median < 0 && cumulative >= medianRank) {
+                out.median = value;
+            }
+            if (out.percentile95 < 0 && cumulative >= p95Rank) {
+                out.percentile95 = value;
+            }
+        }
+        out.meanBrightness = (float) sum / samples;
+        out.darkRatio = (float) dark / samples;
+        out.clippedRatio = (float) clipped / samples;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,25 @@
+package com.android.safesphere.ml;
+
+/**
+ * Brightness statistics of one frame, measured on the HSV value channel (max of R, G and B) in the
+ * range 0-255. Instances are refilled by {@link LightingAnalyzer#analyze(android.graphics.Bitmap, LightingStats)}
+ * so callers can keep one per analyzer.
+ */
+public class LightingStats {
+    // Values at or below DARK_LEVEL count as dark, at or above CLIPPED_LEVEL as blown-out highlights.
+    public static final int DARK_LEVEL = 40;
+    public static final int CLIPPED_LEVEL = 250;
+
+    public float meanBrightness;
+    public int percentile5;
+    public int median;
+    public int percentile95;
+    public float darkRatio;    // Share of samples at or below DARK_LEVEL
+    public float clippedRatio; // Share of samples at or above CLIPPED_LEVEL
+    public int sampleCount;
+
+    /** The legacy lighting risk: 0 for a fully white frame, 100 for a black one. */
+    public float riskScore() {
+        return 100.0f - (meanBrightness / 255.0f) * 100.0f;
+    }
+}
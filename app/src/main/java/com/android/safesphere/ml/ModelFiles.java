@@ -0,0 +1,43 @@
+package com.android.safesphere.ml;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of memory-mapped model files, so every interpreter built for the same model
+ * shares one read-only mapping instead of each loading the file. A mapping is reused for as long as
+ * the file's size and modification time are unchanged; a re-downloaded model gets a fresh one.
+ */
+public final class ModelFiles {
+    private static final String TAG = "ModelFiles";
+
+    private static final Map<String, MappedByteBuffer> mappings = new HashMap<>();
+    private static final Map<String, String> stamps = new HashMap<>();
+
+    private ModelFiles() {}
+
+    public static synchronized MappedByteBuffer map(File modelFile) throws IOException {
+        String path = modelFile.getAbsolutePath();
+        String stamp = modelFile.length() + ":" + modelFile.lastModified();
+        MappedByteBuffer mapping = mappings.get(path);
+        if (mapping != null && stamp.equals(stamps.get(path))) {
+            return mapping;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(modelFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        mappings.put(path, mapping);
+        stamps.put(path, stamp);
+        Log.d(TAG, "Mapped " + modelFile.getName() + " (" + mapping.capacity() / (1024 * 1024) + " MB)");
+        return mapping;
+    }
+}
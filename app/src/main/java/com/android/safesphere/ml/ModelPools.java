@@ -0,0 +1,43 @@
+package com.android.safesphere.ml;
+
+import android.content.Context;
+
+/**
+ * The app-wide session pools, so activities check models out instead of each building their own.
+ * Pools are created on first use with the application context and live as long as the process.
+ */
+public final class ModelPools {
+    public static final int DEFAULT_POOL_SIZE = 2;
+
+    private static int poolSize = DEFAULT_POOL_SIZE;
+    private static InterpreterPool<SceneClassifier> sceneClassifiers;
+    private static InterpreterPool<ObjectDetector> objectDetectors;
+
+    private ModelPools() {}
+
+    /**
+     * Maximum number of sessions per model. Each session holds its own interpreter arena and
+     * scratch buffers, so larger pools trade memory for parallelism. Only affects pools not created yet.
+     */
+    public static synchronized void setPoolSize(int size) {
+        poolSize = Math.max(1, size);
+    }
+
+    public static synchronized InterpreterPool<SceneClassifier> sceneClassifiers(Context context) {
+        if (sceneClassifiers == null) {
+            Context appContext = context.getApplicationContext();
+            sceneClassifiers = new InterpreterPool<>("SceneClassifier", poolSize, () -> new SceneClassifier(appContext),
+                    SceneClassifier::isUsable);
+        }
+        return sceneClassifiers;
+    }
+
+    public static synchronized InterpreterPool<ObjectDetector> objectDetectors(Context context) {
+        if (objectDetectors == null) {
+            Context appContext = context.getApplicationContext();
+            objectDetectors = new InterpreterPool<>("ObjectDetector", poolSize, () -> new ObjectDetector(appContext),
+                    ObjectDetector::isUsable);
+        }
+        return objectDetectors;
+    }
+}
@@ -2,125 +2,174 @@ package com.android.safesphere.ml;
 
 import android.graphics.Bitmap;
 import android.util.Log;
-import org.opencv.android.Utils;
 import org.opencv.core.*;
 import org.opencv.imgproc.CLAHE;
 import org.opencv.imgproc.Imgproc;
-import org.opencv.video.Video;
-import java.util.ArrayList;
-import java.util.List;
 
+/**
+ * Scores unusual motion between consecutive frames: motion magnitudes more than two standard
+ * deviations above the frame's mean count as anomalies, weighted by how fast they move. The motion
+ * itself comes from a pluggable {@link MotionEstimator}, so accuracy can be traded for throughput
+ * per device class; {@link #getLastEstimateNanos()} and {@link #getLastScoreNanos()} measure that.
+ *
+ * <p>Every working Mat is a member that is (re)allocated only when the frame size changes, the
+ * previous and current gray frames swap roles instead of being copied, and the flow statistics are
+ * gathered in one pass over the flow field by a {@link FlowAnomalyScorer}, so steady-state frames make
+ * no native allocations.
+ */
 public class MotionAnomalyDetector {
     private static final String TAG = "MotionAnomalyDetector";
-    private Mat prevGrayFrame;
-    private Mat opticalFlow;
+
+    /**
+     * Available motion estimation engines, from most accurate to cheapest. TILED_FARNEBACK matches
+     * FARNEBACK closely but runs tiles in parallel and skips unchanged ones, which pays off on HD frames.
+     */
+    public enum Engine { FARNEBACK, TILED_FARNEBACK, DIS, SPARSE_LK, FRAME_DIFFERENCE }
+
     private CLAHE clahe;
+    private FrameContext bitmapFrame;
+    private Mat grayFrame = new Mat();
+    private Mat prevGrayFrame = new Mat();
+    private final Mat stabilizedPrevFrame = new Mat();
+    private final Mat rotationMatrix = new Mat(2, 3, CvType.CV_64FC1);
+    private final Size frameSize = new Size();
+    private final double[] rotation = new double[6];
+    private boolean hasPrevFrame = false;
+
+    private final Engine engine;
+    private final MotionEstimator estimator;
+    private final FlowSamples flowSamples = new FlowSamples();
+    private long lastEstimateNanos;
+    private long lastScoreNanos;
+    private final FlowAnomalyScorer scorer = new FlowAnomalyScorer();
 
     public MotionAnomalyDetector() {
+        this(Engine.FARNEBACK);
+    }
+
+    public MotionAnomalyDetector(Engine engine) {
+        this.engine = engine;
+        this.estimator = createEstimator(engine);
+    }
+
+    public static MotionEstimator createEstimator(Engine engine) {
+        switch (engine) {
+            case TILED_FARNEBACK:
+                return new TiledFarnebackMotionEstimator();
+            case DIS:
+                return new DisMotionEstimator();
+            case SPARSE_LK:
+                return new SparseLkMotionEstimator();
+            case FRAME_DIFFERENCE:
+                return new FrameDifferenceMotionEstimator();
+            default:
+                return new FarnebackMotionEstimator();
+        }
     }
 
     public float detectAnomalies(Bitmap currentFrameBitmap, float[] rotationVector) {
-        Mat currentFrame = new Mat();
-        Utils.bitmapToMat(currentFrameBitmap, currentFrame);
-        Mat grayFrame = new Mat();
-        Imgproc.cvtColor(currentFrame, grayFrame, Imgproc.COLOR_BGR2GRAY);
+        // Same 640 px flow as shared frames; scoring scales the vectors back to source pixels.
+        if (bitmapFrame == null) {
+            bitmapFrame = new FrameContext();
+        }
+        return detectAnomalies(bitmapFrame.reset(currentFrameBitmap), rotationVector);
+    }
 
+    /**
+     * Scores motion between the previous frame and {@code frame}, estimated on the frame's
+     * flow-resolution gray image. Flow is scaled back to source pixels before scoring, so scores stay
+     * comparable with full-resolution estimation.
+     */
+    public float detectAnomalies(FrameContext frame, float[] rotationVector) {
         if (clahe == null) {
             clahe = Imgproc.createCLAHE(2.0, new Size(8, 8));
         }
-        clahe.apply(grayFrame, grayFrame);
+        // The context's gray image is shared with other analyzers, so equalize into our own buffer.
+        clahe.apply(frame.flowGray(), grayFrame);
 
-        if (prevGrayFrame == null) {
-            prevGrayFrame = grayFrame.clone();
-            currentFrame.release();
+        if (!hasPrevFrame) {
+            swapFrames();
             return 0.0f;
         }
 
-        Mat stabilizedPrevFrame = correctForCameraShake(prevGrayFrame, rotationVector);
-
-        if (!stabilizedPrevFrame.size().equals(grayFrame.size())) {
+        if (prevGrayFrame.rows() != grayFrame.rows() || prevGrayFrame.cols() != grayFrame.cols()) {
             Log.w(TAG, "Frame size mismatch detected! Resizing current frame to match previous frame.");
-            Imgproc.resize(grayFrame, grayFrame, stabilizedPrevFrame.size());
+            Imgproc.resize(grayFrame, grayFrame, prevGrayFrame.size());
         }
-
-        if (opticalFlow == null) {
-            opticalFlow = new Mat();
+        Mat stabilized = correctForCameraShake(prevGrayFrame, rotationVector);
+
+        long start = System.nanoTime();
+        estimator.estimate(stabilized, grayFrame, flowSamples);
+        swapFrames();
+        long estimated = System.nanoTime();
+        float finalMotionScore = scorer.score(flowSamples.values(), flowSamples.count(), frame.flowScale());
+        lastEstimateNanos = estimated - start;
+        lastScoreNanos = System.nanoTime() - estimated;
+
+        // Runs per frame; skip the formatting unless debug logging is enabled for this tag.
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, String.format("VERIFY - Anomaly Ratio: %.2f%% (%s: %.2f ms estimate, %.2f ms score)",
+                    finalMotionScore, engine, lastEstimateNanos / 1_000_000.0, lastScoreNanos / 1_000_000.0));
         }
-
-        Video.calcOpticalFlowFarneback(stabilizedPrevFrame, grayFrame, opticalFlow, 0.5, 3, 15, 3, 5, 1.2, 0);
-
-        Mat magnitude = new Mat();
-        List<Mat> flowPlanes = new ArrayList<>();
-        Core.split(opticalFlow, flowPlanes);
-        Core.magnitude(flowPlanes.get(0), flowPlanes.get(1), magnitude);
-
-        MatOfDouble meanMat = new MatOfDouble();
-        MatOfDouble stdDevMat = new MatOfDouble();
-        Core.meanStdDev(magnitude, meanMat, stdDevMat);
-        double mean = meanMat.get(0, 0)[0];
-        double stdDev = stdDevMat.get(0, 0)[0];
-
-        double threshold = mean + (2.0 * stdDev);
-        Mat anomalyMask = new Mat();
-        Core.compare(magnitude, new Scalar(threshold), anomalyMask, Core.CMP_GT);
-
-        int nonZeroPixels = Core.countNonZero(anomalyMask);
-        if (nonZeroPixels == 0) {
-            releaseMats(currentFrame, grayFrame, stabilizedPrevFrame, magnitude, anomalyMask, meanMat, stdDevMat, flowPlanes);
-            grayFrame.copyTo(prevGrayFrame);
-            return 0.0f;
-        }
-
-        float anomalyAreaScore = ((float) nonZeroPixels / (float) anomalyMask.total()) * 100.0f;
-        Scalar meanIntensityScalar = Core.mean(magnitude, anomalyMask);
-        double meanIntensityOfAnomalies = meanIntensityScalar.val[0];
-        float intensityMultiplier = (float) Math.max(1.0, meanIntensityOfAnomalies / 7.0);
-        float finalMotionScore = anomalyAreaScore * intensityMultiplier;
-
-        grayFrame.copyTo(prevGrayFrame);
-
-        // Release all Mats
-        releaseMats(currentFrame, grayFrame, stabilizedPrevFrame, magnitude, anomalyMask, meanMat, stdDevMat, flowPlanes);
-
-        Log.d(TAG, String.format("VERIFY - Anomaly Ratio: %.2f%%", finalMotionScore));
         return Math.min(100.0f, finalMotionScore);
     }
 
+    /** The current gray frame becomes the previous one; the old previous buffer is reused next frame. */
+    private void swapFrames() {
+        Mat previous = prevGrayFrame;
+        prevGrayFrame = grayFrame;
+        grayFrame = previous;
+        hasPrevFrame = true;
+    }
+
     private Mat correctForCameraShake(Mat frameToWarp, float[] rotationVector) {
         double angleZ = Math.toDegrees(rotationVector[2]);
         if (Math.abs(angleZ) < 0.1) {
-            return frameToWarp.clone();
+            return frameToWarp;
         }
-        Size size = frameToWarp.size();
-        Point center = new Point(size.width / 2, size.height / 2);
-        Mat rotationMatrix = Imgproc.getRotationMatrix2D(center, angleZ, 1.0);
-        Mat warpedFrame = new Mat();
-        Imgproc.warpAffine(frameToWarp, warpedFrame, rotationMatrix, size);
-        rotationMatrix.release();
-        return warpedFrame;
+        frameSize.width = frameToWarp.cols();
+        frameSize.height = frameToWarp.rows();
+
+        // Same matrix as Imgproc.getRotationMatrix2D(center, angleZ, 1.0), written into a reused Mat.
+        double radians = Math.toRadians(angleZ);
+        double alpha = Math.cos(radians);
+        double beta = Math.sin(radians);
+        double centerX = frameSize.width / 2;
+        double centerY = frameSize.height / 2;
+        rotation[0] = alpha;
+        rotation[1] = beta;
+        rotation[2] = (1 - alpha) * centerX - beta * centerY;
+        rotation[3] = -beta;
+        rotation[4] = alpha;
+        rotation[5] = beta * centerX + (1 - alpha) * centerY;
+        rotationMatrix.put(0, 0, rotation);
+
+        Imgproc.warpAffine(frameToWarp, stabilizedPrevFrame, rotationMatrix, frameSize);
+        return stabilizedPrevFrame;
     }
 
-    private void releaseMats(Mat... mats) {
-        for (Mat mat : mats) {
-            if (mat != null) mat.release();
-        }
+    public Engine getEngine() {
+        return engine;
     }
 
-    private void releaseMats(Mat mat, Mat mat2, Mat mat3, Mat mat4, Mat mat5, Mat mat6, Mat mat7, List<Mat> matList) {
-        releaseMats(mat, mat2, mat3, mat4, mat5, mat6, mat7);
-        for (Mat m : matList) {
-            if (m != null) m.release();
-        }
+    /** Time the estimator took on the last frame pair. */
+    public long getLastEstimateNanos() {
+        return lastEstimateNanos;
+    }
+
+    /** Time the anomaly scoring took on the last frame pair. */
+    public long getLastScoreNanos() {
+        return lastScoreNanos;
     }
 
     public void release() {
-        if (prevGrayFrame != null) {
-            prevGrayFrame.release();
-            prevGrayFrame = null;
-        }
-        if (opticalFlow != null) {
-            opticalFlow.release();
-            opticalFlow = null;
+        hasPrevFrame = false;
+        estimator.release();
+        if (bitmapFrame != null) {
+            bitmapFrame.release();
         }
+        grayFrame.release();
+        prevGrayFrame.release();
+        stabilizedPrevFrame.release();
     }
-}
\ No newline at end of file
+}
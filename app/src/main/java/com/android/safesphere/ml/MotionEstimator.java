@@ -0,0 +1,16 @@
+package com.android.safesphere.ml;
+
+import org.opencv.core.Mat;
+
+/**
+ * Estimates motion between two 8-bit gray frames of the same size. Engines differ in how densely and
+ * how accurately they sample the motion, but all report plain pixel displacements so
+ * {@link MotionAnomalyDetector} can score them the same way.
+ */
+public interface MotionEstimator {
+    /** Writes the motion from {@code previous} to {@code current} into {@code out}. */
+    void estimate(Mat previous, Mat current, FlowSamples out);
+
+    /** Frees native buffers; the estimator may be used again afterwards. */
+    void release();
+}
@@ -5,110 +5,438 @@ import android.graphics.Bitmap;
 import android.util.Log;
 import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
 import org.tensorflow.lite.support.common.FileUtil;
-import org.tensorflow.lite.support.image.ImageProcessor;
-import org.tensorflow.lite.support.image.TensorImage;
-import org.tensorflow.lite.support.image.ops.ResizeOp;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
 
-public class ObjectDetector {
+public class ObjectDetector implements AutoCloseable {
     private static final String TAG = "ObjectDetector";
     private static final String MODEL_PATH = "detector_model.tflite";
     private static final String LABELS_PATH = "detector_labels.txt";
     private static final float CONFIDENCE_THRESHOLD = 0.85f; // Threshold for object detection confidence
+    private static final List<String> DANGEROUS_LABELS = Arrays.asList("knife", "pistol");
+
+    // YOLO-style output layout: [1][channels][candidates], channels 0-3 the box, 4 the objectness and
+    // 5.. one score per class.
+    private static final int OBJECTNESS_CHANNEL = 4;
+    private static final int FIRST_CLASS_CHANNEL = 5;
+
+    public static final int DEFAULT_MAX_DETECTIONS = 100;
+    private static final float DEFAULT_IOU_THRESHOLD = 0.45f;
 
     private Interpreter tflite;
     private List<String> labels;
     private int inputWidth;
     private int inputHeight;
-    private TensorImage inputImageBuffer;
-    private ImageProcessor imageProcessor;
+    private ImagePreprocessor preprocessor;
+
+    // Output decoding state, sized once from the output tensor so decoding allocates nothing per frame.
+    private int numChannels;
+    private int numDetections;
+    private DataType outputType;
+    private float outputScale = 1.0f;
+    private int outputZeroPoint = 0;
+    private ByteBuffer outputBuffer;
+    private FloatBuffer outputFloats;
+    private float[] objectness;
+    private byte[] quantizedObjectness;
+    private int[] survivors;
+    private float bestClassScore;
+    private BitSet dangerousClasses;
+
+    // detect() settings and scratch. The candidate arrays are sized for every output candidate on the
+    // first call, so later calls only sort and suppress.
+    private float scoreThreshold = CONFIDENCE_THRESHOLD;
+    private float iouThreshold = DEFAULT_IOU_THRESHOLD;
+    private boolean perClassNms = false;
+    private float[] candidateBoxes;
+    private int[] candidateClasses;
+    private float[] candidateScores;
+    private long[] sortKeys;
+
+    // Timing of the last call, split so detector throughput can be measured apart from decoding.
+    private long lastInferenceNanos;
+    private long lastDecodeNanos;
 
     public ObjectDetector(Context context) {
         try {
             File modelFile = new File(context.getFilesDir(), MODEL_PATH);
-            Interpreter.Options options = new Interpreter.Options();
-            options.setNumThreads(4);
-            tflite = new Interpreter(modelFile, options);
+            tflite = new Interpreter(ModelFiles.map(modelFile), InterpreterTuner.options(context, modelFile));
 
 
             labels = FileUtil.loadLabels(context, LABELS_PATH);
 
-            int[] inputShape = tflite.getInputTensor(0).shape();
-            inputWidth = inputShape[1];
-            inputHeight = inputShape[2];
-            DataType inputDataType = tflite.getInputTensor(0).dataType();
+            // Input: raw 0-255 pixel values for float models, or bytes quantized with the tensor's own
+            // scale and zero point for UINT8/INT8 models.
+            Tensor inputTensor = tflite.getInputTensor(0);
+            preprocessor = ImagePreprocessor.forTensor(inputTensor, 0.0f, 1.0f);
+            inputHeight = inputTensor.shape()[1];
+            inputWidth = inputTensor.shape()[2];
 
-            imageProcessor = new ImageProcessor.Builder()
-                .add(new ResizeOp(inputHeight, inputWidth, ResizeOp.ResizeMethod.BILINEAR))
-                .build();
-            inputImageBuffer = new TensorImage(inputDataType);
+            Tensor outputTensor = tflite.getOutputTensor(0);
+            int[] outputShape = outputTensor.shape();
+            DataType type = outputTensor.dataType();
+            float scale = 1.0f;
+            int zeroPoint = 0;
+            if (type != DataType.FLOAT32 && outputTensor.quantizationParams().getScale() != 0.0f) {
+                scale = outputTensor.quantizationParams().getScale();
+                zeroPoint = outputTensor.quantizationParams().getZeroPoint();
+            }
+            initDecoding(type, outputShape[1], outputShape[2], scale, zeroPoint);
 
         } catch (IOException e) {
             Log.e(TAG, "Error initializing TFLite Object Detector.", e);
+            // A half-initialized detector must not look usable.
+            if (tflite != null) {
+                tflite.close();
+                tflite = null;
+            }
         }
     }
 
+    /**
+     * Decoding-only detector without a model, for tests: {@link #outputBuffer()} is filled by hand
+     * with a [1][channels][candidates] output and decoded with {@link #decodeDangerousObject()} or
+     * {@link #decodeDetections(DetectionList)}.
+     */
+    ObjectDetector(List<String> labels, DataType outputType, int numChannels, int numDetections,
+                   float outputScale, int outputZeroPoint) {
+        this.labels = labels;
+        initDecoding(outputType, numChannels, numDetections, outputScale, outputZeroPoint);
+    }
+
+    private void initDecoding(DataType type, int channels, int detections, float scale, int zeroPoint) {
+        numChannels = channels;
+        numDetections = detections;
+        outputType = type;
+        outputScale = scale;
+        outputZeroPoint = zeroPoint;
+        int bytesPerValue = type == DataType.FLOAT32 ? 4 : 1;
+        outputBuffer = ByteBuffer.allocateDirect(bytesPerValue * channels * detections).order(ByteOrder.nativeOrder());
+        outputFloats = outputBuffer.asFloatBuffer();
+        if (type == DataType.FLOAT32) {
+            objectness = new float[detections];
+        } else {
+            quantizedObjectness = new byte[detections];
+        }
+        survivors = new int[detections];
+
+        // Resolve the dangerous labels to class ids once instead of comparing strings per candidate.
+        dangerousClasses = new BitSet(labels.size());
+        for (int classId = 0; classId < labels.size(); classId++) {
+            if (DANGEROUS_LABELS.contains(labels.get(classId))) {
+                dangerousClasses.set(classId);
+            }
+        }
+    }
+
+    /** Whether the model loaded; a session without one finds nothing and is not pooled again. */
+    public boolean isUsable() {
+        return tflite != null;
+    }
+
     public boolean containsDangerousObject(Bitmap bitmap) {
         if (tflite == null) {
             Log.e(TAG, "Object detector is not initialized.");
             return false;
         }
+        long start = System.nanoTime();
+        runInference(preprocessor.process(bitmap), start);
+        return decodeDangerousObject();
+    }
+
+    /** Same as {@link #containsDangerousObject(Bitmap)}, reusing the frame's pixels at the input size. */
+    public boolean containsDangerousObject(FrameContext frame) {
+        if (tflite == null) {
+            Log.e(TAG, "Object detector is not initialized.");
+            return false;
+        }
+        long start = System.nanoTime();
+        runInference(preprocessor.process(frame), start);
+        return decodeDangerousObject();
+    }
 
-        // 1. Preprocess the image
-        inputImageBuffer.load(bitmap);
-        TensorImage processedImage = imageProcessor.process(inputImageBuffer);
-        ByteBuffer inputBuffer = processedImage.getBuffer();
+    /**
+     * Runs the detector and returns its detections after non-maximum suppression, at most
+     * {@link #DEFAULT_MAX_DETECTIONS}. Allocates a new list; use {@link #detect(Bitmap, DetectionList)}
+     * to reuse one across frames.
+     */
+    public DetectionList detect(Bitmap bitmap) {
+        DetectionList detections = new DetectionList(DEFAULT_MAX_DETECTIONS);
+        detect(bitmap, detections);
+        return detections;
+    }
 
-        // 2. Prepare the output buffer
-        int[] outputShape = tflite.getOutputTensor(0).shape();
-        int numChannels = outputShape[1];
-        int numDetections = outputShape[2];
+    /**
+     * Runs the detector and fills {@code detections} with the best scoring boxes that survive
+     * non-maximum suppression, best first. The list's capacity caps the number of detections kept.
+     */
+    public void detect(Bitmap bitmap, DetectionList detections) {
+        detections.clear();
+        if (tflite == null) {
+            Log.e(TAG, "Object detector is not initialized.");
+            return;
+        }
+        long start = System.nanoTime();
+        runInference(preprocessor.process(bitmap), start);
+        decodeDetections(detections);
+    }
 
-        float[][][] outputArray = new float[1][numChannels][numDetections];
-        Map<Integer, Object> outputs = new HashMap<>();
-        outputs.put(0, outputArray);
+    /** Same as {@link #detect(Bitmap, DetectionList)}, reusing the frame's pixels at the input size. */
+    public void detect(FrameContext frame, DetectionList detections) {
+        detections.clear();
+        if (tflite == null) {
+            Log.e(TAG, "Object detector is not initialized.");
+            return;
+        }
+        long start = System.nanoTime();
+        runInference(preprocessor.process(frame), start);
+        decodeDetections(detections);
+    }
 
-        // 3. Run inference
-        tflite.runForMultipleInputsOutputs(new Object[]{inputBuffer}, outputs);
+    /** Runs inference on an already preprocessed input; {@code start} is when preprocessing began. */
+    private void runInference(ByteBuffer inputBuffer, long start) {
+        // Run inference straight into the preallocated output buffer
+        outputBuffer.rewind();
+        tflite.run(inputBuffer, outputBuffer);
+        lastInferenceNanos = System.nanoTime() - start;
+    }
 
-        // 4. Post-process the YOLO-style output
-        // The output is transposed, so we need to iterate through the 8400 detections
-        for (int i = 0; i < numDetections; i++) {
-            // Get the confidence that this detection is an object
-            float confidence = outputArray[0][4][i];
-
-            // Only process detections with a high enough initial confidence
-            if (confidence >= CONFIDENCE_THRESHOLD) {
-                // Find the class with the highest score among the class scores (channels 5 through 9)
-                float maxClassScore = 0.0f;
-                int maxClassId = -1;
-                for (int j = 5; j < numChannels; j++) {
-                    if (outputArray[0][j][i] > maxClassScore) {
-                        maxClassScore = outputArray[0][j][i];
-                        maxClassId = j - 5; // The class index is the channel index minus 5
-                    }
+    /** The raw output tensor the interpreter writes into. */
+    ByteBuffer outputBuffer() {
+        return outputBuffer;
+    }
+
+    boolean decodeDangerousObject() {
+        long decodeStart = System.nanoTime();
+        boolean found = scanForDangerousObject();
+        lastDecodeNanos = System.nanoTime() - decodeStart;
+        return found;
+    }
+
+    void decodeDetections(DetectionList detections) {
+        long decodeStart = System.nanoTime();
+        int candidates = collectCandidates();
+        suppressNonMaximum(candidates, detections);
+        lastDecodeNanos = System.nanoTime() - decodeStart;
+    }
+
+    private boolean scanForDangerousObject() {
+        // Post-process the YOLO-style output
+        int survivorCount = findObjectnessSurvivors(CONFIDENCE_THRESHOLD);
+        for (int s = 0; s < survivorCount; s++) {
+            int i = survivors[s];
+            float confidence = outputValue(OBJECTNESS_CHANNEL * numDetections + i);
+            int classId = bestClass(i);
+
+            // The final confidence is the object confidence multiplied by the class confidence
+            float finalConfidence = confidence * bestClassScore;
+            if (finalConfidence >= CONFIDENCE_THRESHOLD && classId != -1 && dangerousClasses.get(classId)) {
+                Log.d(TAG, "Detected object: '" + labels.get(classId) + "' with final confidence: " + finalConfidence);
+                return true;
+            }
+        }
+
+        return false; // No objects were detected above the threshold
+    }
+
+    /**
+     * The output is transposed ([channel][candidate]), so the objectness scores of all 8400 candidates
+     * form one contiguous strip. Copies it out in bulk, scans it and stores the candidates reaching
+     * {@code threshold} in {@link #survivors}; class scores are only read for those. Quantized outputs
+     * are compared in the quantized domain without dequantizing the strip.
+     *
+     * @return the number of survivors
+     */
+    private int findObjectnessSurvivors(float threshold) {
+        int count = 0;
+        int stripOffset = OBJECTNESS_CHANNEL * numDetections;
+        if (outputType == DataType.FLOAT32) {
+            outputFloats.position(stripOffset);
+            outputFloats.get(objectness);
+            for (int i = 0; i < numDetections; i++) {
+                if (objectness[i] >= threshold) {
+                    survivors[count++] = i;
                 }
+            }
+            return count;
+        }
+
+        // scale * (q - zeroPoint) >= threshold  <=>  q >= ceil(threshold / scale + zeroPoint)
+        int quantizedThreshold = (int) Math.ceil(threshold / outputScale + outputZeroPoint);
+        int mask = outputType == DataType.UINT8 ? 0xFF : -1;
+        outputBuffer.position(stripOffset);
+        outputBuffer.get(quantizedObjectness);
+        for (int i = 0; i < numDetections; i++) {
+            if ((quantizedObjectness[i] & mask) >= quantizedThreshold) {
+                survivors[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Finds the class with the highest score among the class scores (channels 5 onwards) of candidate
+     * {@code i}, leaving that score in {@link #bestClassScore}. Returns -1 if no class scores above 0.
+     */
+    private int bestClass(int i) {
+        float maxClassScore = 0.0f;
+        int maxClassId = -1;
+        for (int j = FIRST_CLASS_CHANNEL, offset = FIRST_CLASS_CHANNEL * numDetections + i; j < numChannels;
+             j++, offset += numDetections) {
+            float classScore = outputValue(offset);
+            if (classScore > maxClassScore) {
+                maxClassScore = classScore;
+                maxClassId = j - FIRST_CLASS_CHANNEL;
+            }
+        }
+        bestClassScore = maxClassScore;
+        return maxClassId;
+    }
+
+    /** One output value by flat index, dequantized if the output tensor is quantized. */
+    private float outputValue(int offset) {
+        switch (outputType) {
+            case UINT8:
+                return outputScale * ((outputBuffer.get(offset) & 0xFF) - outputZeroPoint);
+            case INT8:
+                return outputScale * (outputBuffer.get(offset) - outputZeroPoint);
+            default:
+                return outputFloats.get(offset);
+        }
+    }
+
+    /**
+     * Copies every candidate scoring at least {@link #scoreThreshold} into the candidate arrays, boxes
+     * converted from center/size to corners, and returns how many there are.
+     */
+    private int collectCandidates() {
+        if (candidateScores == null) {
+            candidateBoxes = new float[4 * numDetections];
+            candidateClasses = new int[numDetections];
+            candidateScores = new float[numDetections];
+            sortKeys = new long[numDetections];
+        }
+
+        int survivorCount = findObjectnessSurvivors(scoreThreshold);
+        int count = 0;
+        for (int s = 0; s < survivorCount; s++) {
+            int i = survivors[s];
+            float confidence = outputValue(OBJECTNESS_CHANNEL * numDetections + i);
+            int classId = bestClass(i);
+            float finalConfidence = confidence * bestClassScore;
+            if (classId == -1 || finalConfidence < scoreThreshold) {
+                continue;
+            }
+
+            float centerX = outputValue(i);
+            float centerY = outputValue(numDetections + i);
+            float halfWidth = 0.5f * outputValue(2 * numDetections + i);
+            float halfHeight = 0.5f * outputValue(3 * numDetections + i);
+            int boxOffset = 4 * count;
+            candidateBoxes[boxOffset] = centerX - halfWidth;
+            candidateBoxes[boxOffset + 1] = centerY - halfHeight;
+            candidateBoxes[boxOffset + 2] = centerX + halfWidth;
+            candidateBoxes[boxOffset + 3] = centerY + halfHeight;
+            candidateClasses[count] = classId;
+            candidateScores[count] = finalConfidence;
+            // Positive float bits sort like the floats themselves; the low word carries the candidate.
+            sortKeys[count] = ((long) Float.floatToIntBits(finalConfidence) << 32) | count;
+            count++;
+        }
+        return count;
+    }
 
-                // The final confidence is the object confidence multiplied by the class confidence
-                float finalConfidence = confidence * maxClassScore;
+    /**
+     * Greedy NMS: sorts the candidates by score once (O(n log n)), then keeps each candidate unless it
+     * overlaps an already kept box of the same class (any class unless {@link #perClassNms}) by more
+     * than {@link #iouThreshold}. Stops once {@code detections} is full.
+     */
+    private void suppressNonMaximum(int count, DetectionList detections) {
+        Arrays.sort(sortKeys, 0, count);
+        for (int k = count - 1; k >= 0 && !detections.isFull(); k--) {
+            int candidate = (int) sortKeys[k];
+            int boxOffset = 4 * candidate;
+            float left = candidateBoxes[boxOffset];
+            float top = candidateBoxes[boxOffset + 1];
+            float right = candidateBoxes[boxOffset + 2];
+            float bottom = candidateBoxes[boxOffset + 3];
+            int classId = candidateClasses[candidate];
 
-                if (finalConfidence >= CONFIDENCE_THRESHOLD) {
-                    String label = (maxClassId != -1 && maxClassId < labels.size()) ? labels.get(maxClassId) : "unknown";
-                    Log.d(TAG, "Detected object: '" + label + "' with final confidence: " + finalConfidence);
-                    if (label.equals("knife") || label.equals("pistol"))
-                        return true;
+            boolean suppressed = false;
+            for (int d = 0; d < detections.count() && !suppressed; d++) {
+                if (perClassNms && detections.classId(d) != classId) {
+                    continue;
                 }
+                suppressed = intersectionOverUnion(left, top, right, bottom, detections.left(d),
+                        detections.top(d), detections.right(d), detections.bottom(d)) > iouThreshold;
+            }
+            if (!suppressed) {
+                detections.add(left, top, right, bottom, classId, candidateScores[candidate]);
             }
         }
+    }
 
-        return false; // No objects were detected above the threshold
+    private static float intersectionOverUnion(float left1, float top1, float right1, float bottom1,
+                                               float left2, float top2, float right2, float bottom2) {
+        float intersectionWidth = Math.min(right1, right2) - Math.max(left1, left2);
+        float intersectionHeight = Math.min(bottom1, bottom2) - Math.max(top1, top2);
+        if (intersectionWidth <= 0.0f || intersectionHeight <= 0.0f) {
+            return 0.0f;
+        }
+        float intersection = intersectionWidth * intersectionHeight;
+        float union = (right1 - left1) * (bottom1 - top1) + (right2 - left2) * (bottom2 - top2) - intersection;
+        return union <= 0.0f ? 0.0f : intersection / union;
+    }
+
+    /** Minimum objectness and final score for {@link #detect}; defaults to the dangerous-object threshold. */
+    public void setScoreThreshold(float scoreThreshold) {
+        this.scoreThreshold = scoreThreshold;
+    }
+
+    /** Overlap above which {@link #detect} drops the lower scoring of two boxes. */
+    public void setIouThreshold(float iouThreshold) {
+        this.iouThreshold = iouThreshold;
+    }
+
+    /** When true, boxes only suppress boxes of their own class. */
+    public void setPerClassNms(boolean perClassNms) {
+        this.perClassNms = perClassNms;
+    }
+
+    /** Label for a class id of {@link DetectionList#classId}, or "unknown". */
+    public String getLabel(int classId) {
+        return labels != null && classId >= 0 && classId < labels.size() ? labels.get(classId) : "unknown";
+    }
+
+    public boolean isDangerous(int classId) {
+        return dangerousClasses != null && classId >= 0 && dangerousClasses.get(classId);
+    }
+
+    public int getInputWidth() {
+        return inputWidth;
+    }
+
+    public int getInputHeight() {
+        return inputHeight;
+    }
+
+    /** Preprocessing plus interpreter time of the last call. */
+    public long getLastInferenceNanos() {
+        return lastInferenceNanos;
+    }
+
+    /** Output decoding (and NMS for {@link #detect}) time of the last call. */
+    public long getLastDecodeNanos() {
+        return lastDecodeNanos;
     }
 
     public void close() {
@@ -0,0 +1,89 @@
+package com.android.safesphere.ml;
+
+/**
+ * An int8 copy of a {@link SceneVocabulary}'s embedding matrix with one scale per row, a quarter of
+ * the size of the float32 rows it is built from.
+ *
+ * <p>{@link #search} quantizes the query once, ranks every label with an integer dot product and
+ * re-scores only the best few candidates exactly. The softmax denominator sums the int8 scores,
+ * with the re-scored candidates, which carry most of the mass, corrected to their exact scores.
+ * Not thread-safe: the quantized query and the candidate list are reusable scratch.
+ */
+public class QuantizedLabelIndex implements LabelIndex {
+    private static final int INT8_MAX = 127;
+    private static final int RESCORE_CANDIDATES = 8;
+
+    private final SceneVocabulary vocabulary;
+    private final int size;
+    private final int dimension;
+    private final byte[] values;
+    private final float[] scales;
+    private final byte[] quantizedQuery;
+    private LabelMatches candidates;
+
+    public QuantizedLabelIndex(SceneVocabulary vocabulary) {
+        this.vocabulary = vocabulary;
+        size = vocabulary.size();
+        dimension = vocabulary.dimension();
+        values = new byte[size * dimension];
+        scales = new float[size];
+        quantizedQuery = new byte[dimension];
+
+        float[] row = new float[dimension];
+        for (int i = 0; i < size; i++) {
+            vocabulary.copyEmbedding(i, row);
+            scales[i] = quantize(row, values, i * dimension);
+        }
+    }
+
+    @Override
+    public void search(float[] normalizedQuery, LabelMatches matches) {
+        float queryScale = quantize(normalizedQuery, quantizedQuery, 0);
+        matches.reset(vocabulary);
+        if (candidates == null || candidates.capacity() < matches.capacity()) {
+            candidates = new LabelMatches(Math.max(RESCORE_CANDIDATES, matches.capacity()));
+        }
+        candidates.reset(vocabulary);
+        for (int i = 0, rowOffset = 0; i < size; i++, rowOffset += dimension) {
+            int dotProduct = 0;
+            for (int j = 0; j < dimension; j++) {
+                dotProduct += values[rowOffset + j] * quantizedQuery[j];
+            }
+            float score = dotProduct * scales[i] * queryScale;
+            candidates.offer(i, score);
+            matches.accumulate(score, 1);
+        }
+
+        // Re-score the shortlist exactly so reported similarities are not quantized.
+        for (int c = 0; c < candidates.count(); c++) {
+            int index = candidates.index(c);
+            float score = vocabulary.similarity(index, normalizedQuery);
+            matches.offer(index, score);
+            matches.correct(candidates.score(c), score);
+        }
+    }
+
+    /**
+     * Symmetric int8 quantization of {@code vector} into {@code out} starting at {@code offset}.
+     *
+     * @return the scale that maps the int8 values back to floats
+     */
+    private float quantize(float[] vector, byte[] out, int offset) {
+        float maxAbs = 0.0f;
+        for (int j = 0; j < dimension; j++) {
+            maxAbs = Math.max(maxAbs, Math.abs(vector[j]));
+        }
+        if (maxAbs == 0.0f) {
+            for (int j = 0; j < dimension; j++) {
+                out[offset + j] = 0;
+            }
+            return 0.0f;
+        }
+        float scale = maxAbs / INT8_MAX;
+        float invScale = 1.0f / scale;
+        for (int j = 0; j < dimension; j++) {
+            out[offset + j] = (byte) Math.round(vector[j] * invScale);
+        }
+        return scale;
+    }
+}
@@ -0,0 +1,213 @@
+package com.android.safesphere.ml;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+import android.util.Size;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Frames at fixed timestamps, or at the times an {@link AdaptiveFrameSampler} asks for, each fetched
+ * with {@link MediaMetadataRetriever#getFrameAtTime} and {@code OPTION_CLOSEST_SYNC}. Timestamps whose
+ * frame cannot be decoded are skipped; a video without a duration cannot be sampled by time and
+ * fails to open rather than yielding nothing. From API 27 the
+ * retriever scales frames down to {@link FrameDecoder#ANALYSIS_SIZE} itself, so full-resolution
+ * bitmaps are never allocated.
+ *
+ * <p>With sync frames seconds apart, several timestamps snap to the same sync frame. A
+ * {@link MediaExtractor} resolves each timestamp to its sync frame first, so a frame is emitted once
+ * and {@link #frameTimeUs()} is the time of the frame actually returned.
+ */
+public class RetrieverFrameSource implements FrameSource {
+    private static final String TAG = "RetrieverFrameSource";
+
+    private final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+    private final MediaExtractor syncIndex; // Resolves timestamps to sync frames; null if unavailable.
+    private final List<Long> timestampsUs; // null when sampled adaptively
+    private final AdaptiveFrameSampler sampler;
+    private long durationUs = -1; // -1 while unknown
+    private int next = 0;
+    private long cursorUs = -1; // Last timestamp requested from the sampler.
+    private long frameTimeUs = -1;
+    private int scaledBound = 0; // Longer side of scaled frames; 0 decodes at full size.
+
+    public RetrieverFrameSource(Context context, Uri videoUri, List<Long> timestampsUs) {
+        this(context, videoUri, timestampsUs, null);
+    }
+
+    /**
+     * Frames at the times {@code sampler} asks for. Fails if the video's duration is unknown, since
+     * the sampler has no other way to tell where the video ends.
+     */
+    public RetrieverFrameSource(Context context, Uri videoUri, AdaptiveFrameSampler sampler) throws IOException {
+        this(context, videoUri, sampler, -1);
+    }
+
+    /**
+     * Like the sampler constructor, but carries on after a frame already emitted at {@code afterUs},
+     * e.g. by a {@link CodecFrameSource} that had to give up: nothing at or before it is emitted.
+     */
+    RetrieverFrameSource(Context context, Uri videoUri, AdaptiveFrameSampler sampler, long afterUs) throws IOException {
+        this(context, videoUri, null, sampler);
+        cursorUs = afterUs;
+        frameTimeUs = afterUs;
+        if (durationUs < 0) {
+            close();
+            throw new IOException("Video duration unknown, cannot sample it by time.");
+        }
+    }
+
+    private RetrieverFrameSource(Context context, Uri videoUri, List<Long> timestampsUs, AdaptiveFrameSampler sampler) {
+        retriever.setDataSource(context, videoUri);
+        this.timestampsUs = timestampsUs;
+        this.sampler = sampler;
+        if (sampler != null) {
+            durationUs = durationUs();
+            if (durationUs >= 0) {
+                sampler.setDurationUs(durationUs);
+            }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            scaledBound = scaledBound();
+        }
+        syncIndex = openSyncIndex(context, videoUri);
+    }
+
+    private static MediaExtractor openSyncIndex(Context context, Uri videoUri) {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(context, videoUri, null);
+            for (int track = 0; track < extractor.getTrackCount(); track++) {
+                String mime = extractor.getTrackFormat(track).getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("video/")) {
+                    extractor.selectTrack(track);
+                    return extractor;
+                }
+            }
+            Log.w(TAG, "No video track to index, repeated sync frames will not be skipped.");
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Sync frames unavailable, repeated sync frames will not be skipped.", e);
+        }
+        extractor.release();
+        return null;
+    }
+
+    /** Time of the sync frame {@code OPTION_CLOSEST_SYNC} picks for {@code timeUs}, or -1 if unknown. */
+    private long syncTimeUs(long timeUs) {
+        if (syncIndex == null) {
+            return -1;
+        }
+        syncIndex.seekTo(timeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        return syncIndex.getSampleTime();
+    }
+
+    /** Duration from the container metadata, or -1 if it is missing. */
+    private long durationUs() {
+        String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+        try {
+            return duration == null ? -1 : Long.parseLong(duration) * 1000;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Unreadable video duration: " + duration, e);
+            return -1;
+        }
+    }
+
+    private int scaledBound() {
+        try {
+            int width = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+            int height = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+            if (Math.min(width, height) <= FrameDecoder.ANALYSIS_SIZE) {
+                return 0;
+            }
+            // A square bound fits the scaled frame whichever way the track is rotated.
+            Size size = FrameDecoder.analysisSize(width, height);
+            return Math.max(size.getWidth(), size.getHeight());
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Video size unknown, frames will be decoded at full size.", e);
+            return 0;
+        }
+    }
+
+    /** One frame every {@code intervalMs} from the start of the video to its end. */
+    public static RetrieverFrameSource atInterval(Context context, Uri videoUri, long intervalMs) {
+        MediaMetadataRetriever probe = new MediaMetadataRetriever();
+        List<Long> timestampsUs = new ArrayList<>();
+        try {
+            probe.setDataSource(context, videoUri);
+            long durationMs = Long.parseLong(probe.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+            for (long timeMs = 0; timeMs < durationMs; timeMs += intervalMs) {
+                timestampsUs.add(timeMs * 1000);
+            }
+        } finally {
+            try {
+                probe.release();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to release the metadata retriever.", e);
+            }
+        }
+        return new RetrieverFrameSource(context, videoUri, timestampsUs);
+    }
+
+    @Override
+    public Bitmap nextFrame() {
+        long timeUs;
+        while ((timeUs = nextTimestampUs()) >= 0) {
+            long syncUs = syncTimeUs(timeUs);
+            if (syncUs >= 0) {
+                if (syncUs <= frameTimeUs) {
+                    continue; // Same sync frame as the last one emitted, or an earlier one.
+                }
+                timeUs = syncUs;
+            }
+            Bitmap frame = scaledBound > 0
+                    ? retriever.getScaledFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC, scaledBound, scaledBound)
+                    : retriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            if (frame != null) {
+                frameTimeUs = timeUs;
+                if (sampler != null) {
+                    sampler.onFrameSampled();
+                }
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /** The next timestamp to fetch, or -1 when there is none. */
+    private long nextTimestampUs() {
+        if (sampler == null) {
+            return next < timestampsUs.size() ? timestampsUs.get(next++) : -1;
+        }
+        long timeUs = sampler.nextSampleUs(cursorUs);
+        if (timeUs < 0 || timeUs >= durationUs) {
+            return -1;
+        }
+        cursorUs = timeUs;
+        return timeUs;
+    }
+
+    @Override
+    public long frameTimeUs() {
+        return frameTimeUs;
+    }
+
+    @Override
+    public void close() {
+        if (syncIndex != null) {
+            syncIndex.release();
+        }
+        try {
+            retriever.release();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to release the metadata retriever.", e);
+        }
+    }
+}
@@ -1,195 +1,399 @@
 package com.android.safesphere.ml;
 
 import android.content.Context;
-import android.content.res.AssetFileDescriptor;
-import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.util.Log;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.channels.FileChannel;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.function.IntToLongFunction;
 
-public class SceneClassifier {
+public class SceneClassifier implements AutoCloseable {
     private static final String TAG = "SceneClassifier";
     private static final String MODEL_PATH = "clip_model.tflite";
-    private static final String SCENE_DATA_PATH = "scene_data.json";
     private static final int INPUT_SIZE = 224;
     private static final int EMBEDDING_SIZE = 512;
+    public static final int MAX_BATCH_SIZE = 4;
 
     private Interpreter interpreter;
-    private final Map<String, Float> sceneRiskMap;
-    private final Map<String, float[]> textEmbeddings;
-    private final Context context;
 
-    private static final float SOFTMAX_TEMPERATURE = 0.015f;
+    // Label lookup strategy. The exact index is always kept as the reference that approximate
+    // modes are compared against on every AGREEMENT_SAMPLE_INTERVAL-th frame.
+    public enum MatchingMode { EXACT, QUANTIZED, APPROXIMATE }
+    private static final int TOP_K = 16;
+    private static final int AGREEMENT_SAMPLE_INTERVAL = 10;
+
+    // Label side of the similarity search, swapped as one immutable snapshot; see LabelSpace.
+    private final LabelSpace.Publisher labelSpace;
+
+    // Agreement statistics for the non-exact modes, owned by the inference thread and restarted
+    // whenever it first sees a new snapshot.
+    private LabelSpace statisticsSpace;
+    private int approximateFrames = 0;
+    private int agreementSamples = 0;
+    private int agreements = 0;
+
+    // Per-frame scratch, reused so scoring allocates nothing once the vocabulary is loaded.
+    // The preprocessor and output decoding follow the model's tensor types, so an int8 export of the
+    // CLIP model is fed quantized bytes directly and only its embedding is dequantized.
+    private final ImagePreprocessor preprocessor;
+    private DataType outputType = DataType.FLOAT32;
+    private float outputScale = 1.0f;
+    private int outputZeroPoint = 0;
+    private final ByteBuffer embeddingOutputBuffer;
+    private final float[] imageEmbedding = new float[EMBEDDING_SIZE];
+    private final LabelMatches matches = new LabelMatches(TOP_K);
+    private final LabelMatches referenceMatches = new LabelMatches(1);
+
+    // Batched inference state. The input is resized to the batch dimension on demand; models exported
+    // with a hard-coded batch of 1 fail the first resize and fall back to one invoke per frame.
+    private int currentBatchSize = 1;
+    private boolean batchingSupported = true;
+    private ByteBuffer batchInputBuffer;
+    private ByteBuffer batchOutputBuffer;
+    private final float[] batchEmbedding = new float[EMBEDDING_SIZE];
+    private final long[] missHashes = new long[MAX_BATCH_SIZE];
+    private final int[] missIndices = new int[MAX_BATCH_SIZE];
+
+    // Raw image embeddings of recent frames keyed by their perceptual hash; near-duplicate frames
+    // skip the CLIP invocation entirely.
+    private final EmbeddingCache embeddingCache = new EmbeddingCache(EMBEDDING_SIZE);
+
+    static final float SOFTMAX_TEMPERATURE = 0.015f;
 
     public SceneClassifier(Context context) {
-        this.context = context;
+        matches.setSoftmaxTemperature(SOFTMAX_TEMPERATURE);
         try {
             File modelFile = new File(context.getFilesDir(), MODEL_PATH);
-            interpreter = new Interpreter(modelFile);
+            interpreter = new Interpreter(ModelFiles.map(modelFile), InterpreterTuner.options(context, modelFile));
+            Tensor outputTensor = interpreter.getOutputTensor(0);
+            outputType = outputTensor.dataType();
+            if (outputType != DataType.FLOAT32 && outputTensor.quantizationParams().getScale() != 0.0f) {
+                outputScale = outputTensor.quantizationParams().getScale();
+                outputZeroPoint = outputTensor.quantizationParams().getZeroPoint();
+            }
         } catch (Exception e) {
             Log.e(TAG, "Error initializing TensorFlow Lite interpreter.", e);
+            // A half-initialized classifier must not look usable.
+            if (interpreter != null) {
+                interpreter.close();
+                interpreter = null;
+            }
+        }
+        // CLIP expects pixels normalized to [-1, 1]: value / 127.5 - 1.
+        preprocessor = interpreter != null
+                ? ImagePreprocessor.forTensor(interpreter.getInputTensor(0), 127.5f, 127.5f)
+                : new ImagePreprocessor(INPUT_SIZE, INPUT_SIZE, 127.5f, 127.5f);
+        embeddingOutputBuffer = ByteBuffer.allocateDirect(embeddingBytes()).order(ByteOrder.nativeOrder());
+        SceneVocabulary vocabulary = SceneVocabulary.load(context);
+        try {
+            checkDimension(vocabulary);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Shipped scene vocabulary does not fit the model, classifying without labels.", e);
+            vocabulary = SceneVocabulary.empty();
         }
-        sceneRiskMap = new HashMap<>();
-        textEmbeddings = new HashMap<>();
-        initializeSceneRiskMap();
+        labelSpace = new LabelSpace.Publisher(context.getFilesDir(), vocabulary, MatchingMode.EXACT);
     }
 
-    private ByteBuffer loadModelFile(Context context) throws IOException {
-        AssetFileDescriptor fileDescriptor = context.getAssets().openFd(MODEL_PATH);
-        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
-        FileChannel fileChannel = inputStream.getChannel();
-        long startOffset = fileDescriptor.getStartOffset();
-        long declaredLength = fileDescriptor.getDeclaredLength();
-        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+    /** Whether the model loaded; a session without one only returns "unknown" and is not pooled again. */
+    public boolean isUsable() {
+        return interpreter != null;
     }
 
-    private void initializeSceneRiskMap() {
-        String jsonString;
-        try {
-            AssetManager assetManager = context.getAssets();
-            InputStream is = assetManager.open(SCENE_DATA_PATH);
-            int size = is.available();
-            byte[] buffer = new byte[size];
-            is.read(buffer);
-            is.close();
-            jsonString = new String(buffer, "UTF-8");
-
-            JSONArray jsonArray = new JSONArray(jsonString);
-            for (int i = 0; i < jsonArray.length(); i++) {
-                JSONObject obj = jsonArray.getJSONObject(i);
-                String label = obj.getString("label");
-                float risk = (float) obj.getDouble("risk");
-
-                JSONArray embeddingArray = obj.getJSONArray("embedding");
-                float[] embedding = new float[EMBEDDING_SIZE];
-                for (int j = 0; j < embeddingArray.length(); j++) {
-                    embedding[j] = (float) embeddingArray.getDouble(j);
-                }
-
-                sceneRiskMap.put(label, risk);
-                textEmbeddings.put(label, embedding);
-            }
-            Log.i(TAG, "Successfully loaded " + textEmbeddings.size() + " scene embeddings from JSON.");
-        } catch (IOException | JSONException e) {
-            Log.e(TAG, "Failed to load or parse scene_data.json!", e);
+    public ClassificationResult classifyScene(Bitmap bitmap) {
+        if (interpreter == null) {
+            Log.e(TAG, "Interpreter not initialized.");
+            return new ClassificationResult(0.0f, "unknown", 0.0f);
         }
+        return classifyLoaded(preprocessor.load(bitmap));
     }
 
-    public Object classifyScene(Bitmap bitmap) {
+    /** Classifies a shared frame, reusing its 224 x 224 pixels if another analyzer already scaled them. */
+    public ClassificationResult classifyScene(FrameContext frame) {
         if (interpreter == null) {
             Log.e(TAG, "Interpreter not initialized.");
-            return 0.0f;
+            return new ClassificationResult(0.0f, "unknown", 0.0f);
         }
+        return classifyLoaded(preprocessor.load(frame));
+    }
 
-        Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap, INPUT_SIZE, INPUT_SIZE, true);
-        ByteBuffer inputBuffer = convertBitmapToByteBuffer(scaledBitmap);
-
-        float[][] imageEmbeddingOutput = new float[1][EMBEDDING_SIZE];
-        interpreter.run(inputBuffer, imageEmbeddingOutput);
-        float[] imageEmbedding = imageEmbeddingOutput[0];
+    /** Classifies the image the preprocessor has loaded, whose perceptual hash is {@code hash}. */
+    private ClassificationResult classifyLoaded(long hash) {
+        if (currentBatchSize != 1) {
+            resizeBatch(1);
+        }
+        if (embeddingCache.get(hash, imageEmbedding)) {
+            return scoreEmbedding(imageEmbedding);
+        }
 
+        embeddingOutputBuffer.rewind();
+        interpreter.run(preprocessor.toInputBuffer(), embeddingOutputBuffer);
+        embeddingOutputBuffer.rewind();
+        readEmbedding(embeddingOutputBuffer, imageEmbedding);
+        embeddingCache.put(hash, imageEmbedding);
+        return scoreEmbedding(imageEmbedding);
+    }
 
-        Map<String, Float> similarityScores = new HashMap<>();
-        for (Map.Entry<String, float[]> entry : textEmbeddings.entrySet()) {
-            String label = entry.getKey();
-            float[] textEmbedding = entry.getValue();
-            similarityScores.put(label, cosineSimilarity(imageEmbedding, textEmbedding));
+    /**
+     * Classifies several frames with one interpreter invocation per {@link #MAX_BATCH_SIZE} frames,
+     * paying the per-invoke overhead once per batch instead of once per frame. Frames found in the
+     * embedding cache are left out of the batch.
+     *
+     * @return one result per bitmap, in the same order
+     */
+    public ClassificationResult[] classifyScenes(List<Bitmap> bitmaps) {
+        if (interpreter == null) {
+            ClassificationResult[] results = new ClassificationResult[bitmaps.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = classifyScene(bitmaps.get(i));
+            }
+            return results;
         }
+        return classifyBatched(bitmaps.size(), i -> preprocessor.load(bitmaps.get(i)));
+    }
 
-        // --- Step 3: Convert similarities to probabilities using Softmax ---
-        Map<String, Float> confidenceScores = softmax(similarityScores, SOFTMAX_TEMPERATURE);
-
-        // --- Step 4: Find the best match from the NEW confidence scores ---
-        String bestMatchLabel = "unknown";
-        float maxConfidence = -1.0f;
+    /** Batched {@link #classifyScene(FrameContext)}; one result per frame, in the same order. */
+    public ClassificationResult[] classifyFrames(List<FrameContext> frames) {
+        if (interpreter == null) {
+            ClassificationResult[] results = new ClassificationResult[frames.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = classifyScene(frames.get(i));
+            }
+            return results;
+        }
+        return classifyBatched(frames.size(), i -> preprocessor.load(frames.get(i)));
+    }
 
-        for (Map.Entry<String, Float> entry : confidenceScores.entrySet()) {
-            String label = entry.getKey();
-            float confidence = entry.getValue();
+    /**
+     * Shared batch loop. {@code loader} loads image {@code i} into the preprocessor and returns its
+     * perceptual hash.
+     */
+    private ClassificationResult[] classifyBatched(int count, IntToLongFunction loader) {
+        ClassificationResult[] results = new ClassificationResult[count];
+        int imageBytes = preprocessor.tensorBytes();
+        int embeddingBytes = embeddingBytes();
+        if (batchInputBuffer == null) {
+            batchInputBuffer = ByteBuffer.allocateDirect(MAX_BATCH_SIZE * imageBytes).order(ByteOrder.nativeOrder());
+            batchOutputBuffer = ByteBuffer.allocateDirect(MAX_BATCH_SIZE * embeddingBytes).order(ByteOrder.nativeOrder());
+        }
+        for (int start = 0; start < results.length; start += MAX_BATCH_SIZE) {
+            int chunkSize = Math.min(MAX_BATCH_SIZE, results.length - start);
+
+            // Hash every frame first; only cache misses are packed into the input tensor.
+            ByteBuffer input = slice(batchInputBuffer, 0, chunkSize * imageBytes);
+            int missCount = 0;
+            for (int i = start; i < start + chunkSize; i++) {
+                long hash = loader.applyAsLong(i);
+                if (embeddingCache.get(hash, batchEmbedding)) {
+                    results[i] = scoreEmbedding(batchEmbedding);
+                    continue;
+                }
+                preprocessor.writeLoaded(input);
+                missHashes[missCount] = hash;
+                missIndices[missCount++] = i;
+            }
+            if (missCount == 0) {
+                continue;
+            }
 
-//            Log.d(TAG, String.format("VERIFY - Confidence for '%s': %.2f%%", label, confidence * 100));
+            runBatch(missCount, imageBytes, embeddingBytes);
 
-            if (confidence > maxConfidence) {
-                maxConfidence = confidence;
-                bestMatchLabel = label;
+            ByteBuffer embeddings = slice(batchOutputBuffer, 0, missCount * embeddingBytes);
+            for (int m = 0; m < missCount; m++) {
+                readEmbedding(embeddings, batchEmbedding);
+                embeddingCache.put(missHashes[m], batchEmbedding);
+                results[missIndices[m]] = scoreEmbedding(batchEmbedding);
             }
         }
-
-        Log.d(TAG, "Best match: '" + bestMatchLabel + "' with confidence: " + maxConfidence);
-        float finalRiskScore = sceneRiskMap.getOrDefault(bestMatchLabel, 0.0f);
-        return new ClassificationResult(finalRiskScore, bestMatchLabel, maxConfidence);
+        return results;
     }
 
-    private Map<String, Float> softmax(Map<String, Float> scores, float temperature) {
-        Map<String, Float> probabilities = new HashMap<>();
-        float sumExp = 0.0f;
+    /**
+     * Runs the first {@code count} images of the batch input buffer, in one invocation when the model
+     * accepts a batch dimension and one slot at a time otherwise.
+     */
+    private void runBatch(int count, int imageBytes, int embeddingBytes) {
+        if (count > 1 && batchingSupported && resizeBatch(count)) {
+            // TFLite requires buffers whose capacity matches the tensor exactly, hence the slices.
+            interpreter.run(slice(batchInputBuffer, 0, count * imageBytes),
+                    slice(batchOutputBuffer, 0, count * embeddingBytes));
+            return;
+        }
+        if (currentBatchSize != 1) {
+            resizeBatch(1);
+        }
+        for (int i = 0; i < count; i++) {
+            interpreter.run(slice(batchInputBuffer, i * imageBytes, imageBytes),
+                    slice(batchOutputBuffer, i * embeddingBytes, embeddingBytes));
+        }
+    }
 
-        // Calculate the sum of the exponentiated scores
-        for (float score : scores.values()) {
-            sumExp += (float) Math.exp(score / temperature);
+    /** Resizes the input to {@code batchSize} images; on failure batching is disabled for good. */
+    private boolean resizeBatch(int batchSize) {
+        try {
+            interpreter.resizeInput(0, new int[]{batchSize, INPUT_SIZE, INPUT_SIZE, 3});
+            interpreter.allocateTensors();
+            currentBatchSize = batchSize;
+            return true;
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            Log.w(TAG, "Model does not support batch size " + batchSize + ", classifying frames one by one.", e);
+            batchingSupported = false;
+            if (batchSize != 1) {
+                resizeBatch(1);
+            }
+            return false;
         }
+    }
+
+    private int embeddingBytes() {
+        return outputType == DataType.FLOAT32 ? 4 * EMBEDDING_SIZE : EMBEDDING_SIZE;
+    }
 
-        // Calculate the softmax probability for each score
-        for (Map.Entry<String, Float> entry : scores.entrySet()) {
-            float probability = (float) (Math.exp(entry.getValue() / temperature) / sumExp);
-            probabilities.put(entry.getKey(), probability);
+    /** Reads one embedding at the position of {@code source}, dequantizing a UINT8/INT8 output. */
+    private void readEmbedding(ByteBuffer source, float[] embedding) {
+        switch (outputType) {
+            case UINT8:
+                for (int j = 0; j < EMBEDDING_SIZE; j++) {
+                    embedding[j] = outputScale * ((source.get() & 0xFF) - outputZeroPoint);
+                }
+                break;
+            case INT8:
+                for (int j = 0; j < EMBEDDING_SIZE; j++) {
+                    embedding[j] = outputScale * (source.get() - outputZeroPoint);
+                }
+                break;
+            default:
+                source.asFloatBuffer().get(embedding);
+                source.position(source.position() + 4 * EMBEDDING_SIZE);
+                break;
         }
+    }
 
-        return probabilities;
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.clear();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice().order(ByteOrder.nativeOrder());
     }
 
-    private float cosineSimilarity(float[] vec1, float[] vec2) {
-        if (vec1 == null || vec2 == null || vec1.length != vec2.length) {
-            return 0.0f;
+    /** Matches one raw image embedding against the vocabulary. Normalizes {@code imageEmbedding} in place. */
+    private ClassificationResult scoreEmbedding(float[] imageEmbedding) {
+        normalize(imageEmbedding, 0, EMBEDDING_SIZE);
+
+        // --- Step 2: Find the closest labels by cosine similarity ---
+        // Read the snapshot once so a concurrent swap cannot mix two vocabularies within one frame.
+        LabelSpace space = labelSpace.get();
+        space.labelIndex.search(imageEmbedding, matches);
+        if (matches.count() == 0) {
+            Log.e(TAG, "No scene embeddings loaded.");
+            return new ClassificationResult(0.0f, "unknown", 0.0f);
         }
-        float dotProduct = 0.0f;
-        float norm1 = 0.0f;
-        float norm2 = 0.0f;
-        for (int i = 0; i < vec1.length; i++) {
-            dotProduct += vec1[i] * vec2[i];
-            norm1 += vec1[i] * vec1[i];
-            norm2 += vec2[i] * vec2[i];
+        if (space.labelIndex != space.exactIndex) {
+            trackAgreement(space, imageEmbedding);
         }
-        float magnitude1 = (float) Math.sqrt(norm1);
-        float magnitude2 = (float) Math.sqrt(norm2);
-        if (magnitude1 == 0 || magnitude2 == 0) {
-            return 0.0f;
+
+        // --- Step 3: Convert similarities to probabilities using Softmax ---
+        // The index accumulated the denominator over every label (estimated for labels an
+        // approximate index did not score). Matches are sorted, so the best similarity is also the
+        // best confidence.
+        String bestMatchLabel = matches.label(0);
+        float maxConfidence = matches.probability(0);
+        Log.d(TAG, "Best match: '" + bestMatchLabel + "' with confidence: " + maxConfidence);
+        return new ClassificationResult(matches.risk(0), bestMatchLabel, maxConfidence);
+    }
+
+    /**
+     * Switches how labels are looked up. {@link MatchingMode#QUANTIZED} builds an int8 copy of the
+     * embeddings; {@link MatchingMode#APPROXIMATE} loads the IVF index persisted next to the model
+     * files, building it first if the vocabulary changed, which can take a while for large vocabularies.
+     * Frames classified meanwhile keep using the previous mode.
+     */
+    public void setMatchingMode(MatchingMode mode) {
+        labelSpace.setMatchingMode(mode);
+    }
+
+    /**
+     * Replaces the labels, risks and text embeddings without reloading the CLIP model. Indexes for the
+     * current matching mode are built on the calling thread before the swap, so call this off the UI
+     * thread; classification continues against the old vocabulary until the new one is ready.
+     */
+    public void updateVocabulary(SceneVocabulary vocabulary) {
+        checkDimension(vocabulary);
+        long start = System.nanoTime();
+        labelSpace.updateVocabulary(vocabulary);
+        Log.i(TAG, String.format("Swapped in %d scene labels in %.1f ms.", vocabulary.size(),
+                (System.nanoTime() - start) / 1_000_000.0));
+    }
+
+    private static void checkDimension(SceneVocabulary vocabulary) {
+        if (vocabulary.size() > 0 && vocabulary.dimension() != EMBEDDING_SIZE) {
+            throw new IllegalArgumentException("Vocabulary dimension " + vocabulary.dimension()
+                    + " does not match the " + EMBEDDING_SIZE + "-d image embeddings.");
         }
-        return dotProduct / (magnitude1 * magnitude2);
     }
 
+    public SceneVocabulary getVocabulary() {
+        return labelSpace.get().vocabulary;
+    }
 
-    private ByteBuffer convertBitmapToByteBuffer(Bitmap bitmap) {
-        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(4 * INPUT_SIZE * INPUT_SIZE * 3);
-        byteBuffer.order(ByteOrder.nativeOrder());
+    /** The perceptual-hash embedding cache, e.g. for reading its hit and miss counters. */
+    public EmbeddingCache getEmbeddingCache() {
+        return embeddingCache;
+    }
 
-        int[] intValues = new int[INPUT_SIZE * INPUT_SIZE];
-        bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+    public MatchingMode getMatchingMode() {
+        return labelSpace.get().mode;
+    }
 
-        int pixel = 0;
-        for (int i = 0; i < INPUT_SIZE; ++i) {
-            for (int j = 0; j < INPUT_SIZE; ++j) {
-                final int val = intValues[pixel++];
-                // Normalization for FLOAT models. We'll use the [-1, 1] range.
-                byteBuffer.putFloat((((val >> 16) & 0xFF) / 127.5f) - 1.0f); // Red
-                byteBuffer.putFloat((((val >> 8) & 0xFF) / 127.5f) - 1.0f);  // Green
-                byteBuffer.putFloat(((val & 0xFF) / 127.5f) - 1.0f);        // Blue
-            }
+    /**
+     * Fraction of sampled frames where the current non-exact matching mode picked the same best label
+     * as the exact scan, or NaN if no frame has been sampled yet.
+     */
+    public float getAgreementRate() {
+        return agreementSamples == 0 ? Float.NaN : (float) agreements / agreementSamples;
+    }
+
+    private void trackAgreement(LabelSpace space, float[] imageEmbedding) {
+        if (space != statisticsSpace) {
+            statisticsSpace = space;
+            approximateFrames = 0;
+            agreementSamples = 0;
+            agreements = 0;
+        }
+        if (approximateFrames++ % AGREEMENT_SAMPLE_INTERVAL != 0) {
+            return;
+        }
+        space.exactIndex.search(imageEmbedding, referenceMatches);
+        agreementSamples++;
+        if (referenceMatches.index(0) == matches.index(0)) {
+            agreements++;
+        }
+        Log.d(TAG, String.format("VERIFY - %s agreement: %.1f%% over %d samples",
+                space.mode, getAgreementRate() * 100, agreementSamples));
+    }
+
+    /**
+     * Scales {@code length} floats starting at {@code offset} to unit L2 norm. Zero vectors are left
+     * untouched, so they score 0 against everything just like the old cosine similarity did.
+     */
+    private static void normalize(float[] vector, int offset, int length) {
+        float norm = 0.0f;
+        for (int i = offset; i < offset + length; i++) {
+            norm += vector[i] * vector[i];
+        }
+        if (norm == 0.0f) {
+            return;
+        }
+        float invNorm = (float) (1.0 / Math.sqrt(norm));
+        for (int i = offset; i < offset + length; i++) {
+            vector[i] *= invNorm;
         }
-        return byteBuffer;
     }
 
     public void close() {
@@ -0,0 +1,412 @@
+package com.android.safesphere.ml;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * The label side of scene classification: labels, their risk values and their L2-normalized
+ * CLIP text embeddings, read straight out of a compact binary file.
+ *
+ * <p>Binary layout (all values little-endian, produced by the {@code compileSceneVocabulary}
+ * Gradle task from {@code scene_data.json}):
+ * <pre>
+ *   0  int   magic ({@link #MAGIC})
+ *   4  int   format version ({@link #VERSION})
+ *   8  int   label count N
+ *  12  int   embedding dimension D
+ *  16  int   element type ({@link #ELEMENT_FLOAT32} or {@link #ELEMENT_FLOAT16})
+ *  20  int   label table offset
+ *  24  int   risks offset
+ *  28  int   embeddings offset
+ *  label table: int[N + 1] byte offsets into the UTF-8 blob that follows them
+ *  risks:       float32[N]
+ *  embeddings:  N rows of D float32 or float16 values, each row already L2-normalized
+ * </pre>
+ * The file is memory-mapped and viewed through {@link FloatBuffer}/{@link ShortBuffer}, so loading
+ * does no parsing and the embedding matrix never gets copied onto the Java heap. The header is still
+ * checked strictly - sections in order, aligned, inside the file, label offsets monotonic, and the
+ * embeddings ending exactly at the end of the file - so a writer that drifts from this layout fails
+ * to load with an {@link IOException} instead of producing garbage scores.
+ */
+public final class SceneVocabulary {
+    private static final String TAG = "SceneVocabulary";
+    static final String BINARY_PATH = "scene_vocab.bin";
+    static final String JSON_PATH = "scene_data.json";
+
+    static final int MAGIC = 0x42565353; // "SSVB"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int ELEMENT_FLOAT32 = 0;
+    static final int ELEMENT_FLOAT16 = 1;
+    private static final int EMBEDDING_ALIGNMENT = 64;
+    private static final int FINGERPRINT_VALUES_PER_ROW = 16;
+
+    private final ByteBuffer buffer; // Keeps the mapping alive for the views below.
+    private final int size;
+    private final int dimension;
+    private final IntBuffer labelOffsets;
+    private final int labelBlobOffset;
+    private final FloatBuffer risks;
+    private final FloatBuffer embeddings;      // Non-null for float32 files
+    private final ShortBuffer halfEmbeddings;  // Non-null for float16 files
+    private final String[] decodedLabels;
+
+    private SceneVocabulary(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a scene vocabulary file.");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported scene vocabulary version " + buffer.getInt(4));
+        }
+        size = buffer.getInt(8);
+        dimension = buffer.getInt(12);
+        int elementType = buffer.getInt(16);
+        int labelTableOffset = buffer.getInt(20);
+        int risksOffset = buffer.getInt(24);
+        int embeddingsOffset = buffer.getInt(28);
+        if (elementType != ELEMENT_FLOAT32 && elementType != ELEMENT_FLOAT16) {
+            throw new IOException("Unknown scene vocabulary element type " + elementType);
+        }
+        validateLayout(elementType == ELEMENT_FLOAT32 ? 4 : 2, labelTableOffset, risksOffset, embeddingsOffset);
+
+        labelOffsets = view(labelTableOffset).asIntBuffer();
+        labelBlobOffset = labelTableOffset + 4 * (size + 1);
+        risks = view(risksOffset).asFloatBuffer();
+        if (elementType == ELEMENT_FLOAT32) {
+            embeddings = view(embeddingsOffset).asFloatBuffer();
+            halfEmbeddings = null;
+        } else {
+            embeddings = null;
+            halfEmbeddings = view(embeddingsOffset).asShortBuffer();
+        }
+        decodedLabels = new String[size];
+    }
+
+    /** Checks the header against the layout above; sizes are computed in longs so nothing can overflow. */
+    private void validateLayout(int bytesPerValue, int labelTableOffset, int risksOffset, int embeddingsOffset)
+            throws IOException {
+        long capacity = buffer.capacity();
+        if (size < 0 || dimension < 0) {
+            throw new IOException("Invalid scene vocabulary shape " + size + " x " + dimension);
+        }
+        long blobStart = labelTableOffset + 4L * size + 4;
+        long embeddingsEnd = embeddingsOffset + (long) bytesPerValue * size * dimension;
+        if (labelTableOffset != HEADER_SIZE
+                || risksOffset % 4 != 0 || risksOffset < blobStart
+                || embeddingsOffset % EMBEDDING_ALIGNMENT != 0 || embeddingsOffset < risksOffset + 4L * size
+                || embeddingsEnd != capacity) {
+            throw new IOException(String.format("Invalid scene vocabulary layout: labels at %d, risks at %d, "
+                            + "embeddings at %d for %d x %d values in %d bytes", labelTableOffset, risksOffset,
+                    embeddingsOffset, size, dimension, capacity));
+        }
+        long blobSize = risksOffset - blobStart;
+        int previous = 0;
+        for (int i = 0; i <= size; i++) {
+            int offset = buffer.getInt(labelTableOffset + 4 * i);
+            if ((i == 0 && offset != 0) || offset < previous || offset > blobSize) {
+                throw new IOException("Invalid scene vocabulary label offset " + offset + " for label " + i);
+            }
+            previous = offset;
+        }
+    }
+
+    /**
+     * Loads the vocabulary shipped with the app, preferring the prebuilt binary asset and falling
+     * back to parsing {@code scene_data.json} when the binary is missing (e.g. an IDE build that
+     * skipped the Gradle task). Returns an empty vocabulary if neither can be read.
+     */
+    public static SceneVocabulary load(Context context) {
+        long start = System.nanoTime();
+        try {
+            SceneVocabulary vocabulary = fromAsset(context, BINARY_PATH);
+            Log.i(TAG, String.format("Mapped %d scene embeddings in %.2f ms.", vocabulary.size(),
+                    (System.nanoTime() - start) / 1_000_000.0));
+            return vocabulary;
+        } catch (IOException e) {
+            Log.w(TAG, "Binary scene vocabulary unavailable, falling back to " + JSON_PATH, e);
+        }
+        try (InputStream is = context.getAssets().open(JSON_PATH)) {
+            SceneVocabulary vocabulary = fromJson(is);
+            Log.i(TAG, "Successfully loaded " + vocabulary.size() + " scene embeddings from JSON.");
+            return vocabulary;
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Failed to load or parse " + JSON_PATH + "!", e);
+        }
+        return empty();
+    }
+
+    /** Memory-maps a binary vocabulary asset. The asset must be stored uncompressed in the APK. */
+    public static SceneVocabulary fromAsset(Context context, String assetPath) throws IOException {
+        try (AssetFileDescriptor fileDescriptor = context.getAssets().openFd(assetPath);
+             FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
+             FileChannel fileChannel = inputStream.getChannel()) {
+            long startOffset = fileDescriptor.getStartOffset();
+            long declaredLength = fileDescriptor.getDeclaredLength();
+            return new SceneVocabulary(fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength));
+        }
+    }
+
+    /**
+     * Memory-maps a binary vocabulary file outside the APK, e.g. an updated risk table downloaded
+     * into {@code filesDir}. The mapping stays valid after the file is replaced or deleted.
+     */
+    public static SceneVocabulary fromFile(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel fileChannel = raf.getChannel()) {
+            return new SceneVocabulary(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size()));
+        }
+    }
+
+    /** Wraps an already encoded vocabulary, e.g. one mapped from a file outside the APK. */
+    public static SceneVocabulary fromBuffer(ByteBuffer buffer) throws IOException {
+        return new SceneVocabulary(buffer);
+    }
+
+    /**
+     * Parses the legacy JSON format ({@code [{"label", "risk", "embedding": [...]}, ...]}) and encodes
+     * it into the binary layout on the heap, so both sources share one read path.
+     */
+    public static SceneVocabulary fromJson(InputStream is) throws IOException, JSONException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[16 * 1024];
+        int count;
+        while ((count = is.read(chunk)) != -1) {
+            bytes.write(chunk, 0, count);
+        }
+        JSONArray jsonArray = new JSONArray(bytes.toString("UTF-8"));
+
+        int numLabels = jsonArray.length();
+        int dimension = numLabels > 0 ? jsonArray.getJSONObject(0).getJSONArray("embedding").length() : 0;
+        String[] labels = new String[numLabels];
+        float[] risks = new float[numLabels];
+        float[] embeddings = new float[numLabels * dimension];
+        for (int i = 0; i < numLabels; i++) {
+            JSONObject obj = jsonArray.getJSONObject(i);
+            labels[i] = obj.getString("label");
+            risks[i] = (float) obj.getDouble("risk");
+
+            JSONArray embeddingArray = obj.getJSONArray("embedding");
+            int length = Math.min(embeddingArray.length(), dimension);
+            for (int j = 0; j < length; j++) {
+                embeddings[i * dimension + j] = (float) embeddingArray.getDouble(j);
+            }
+        }
+        return new SceneVocabulary(encode(labels, risks, embeddings, dimension));
+    }
+
+    /** An empty vocabulary; classification against it always reports "unknown". */
+    public static SceneVocabulary empty() {
+        try {
+            return new SceneVocabulary(encode(new String[0], new float[0], new float[0], 0));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encodes labels, risks and row-major embeddings into the float32 binary layout, L2-normalizing
+     * every row. Mirrors the Gradle task so runtime-built vocabularies are interchangeable with shipped ones.
+     */
+    static ByteBuffer encode(String[] labels, float[] risks, float[] embeddings, int dimension) {
+        int numLabels = labels.length;
+        byte[][] labelBytes = new byte[numLabels][];
+        int blobSize = 0;
+        for (int i = 0; i < numLabels; i++) {
+            labelBytes[i] = labels[i].getBytes(StandardCharsets.UTF_8);
+            blobSize += labelBytes[i].length;
+        }
+
+        int labelTableOffset = HEADER_SIZE;
+        int risksOffset = align(labelTableOffset + 4 * (numLabels + 1) + blobSize, 4);
+        int embeddingsOffset = align(risksOffset + 4 * numLabels, EMBEDDING_ALIGNMENT);
+        int totalSize = embeddingsOffset + 4 * numLabels * dimension;
+
+        ByteBuffer out = ByteBuffer.allocate(totalSize).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(VERSION).putInt(numLabels).putInt(dimension).putInt(ELEMENT_FLOAT32)
+                .putInt(labelTableOffset).putInt(risksOffset).putInt(embeddingsOffset);
+
+        int blobOffset = 0;
+        for (int i = 0; i < numLabels; i++) {
+            out.putInt(blobOffset);
+            blobOffset += labelBytes[i].length;
+        }
+        out.putInt(blobOffset);
+        for (byte[] bytes : labelBytes) {
+            out.put(bytes);
+        }
+
+        out.position(risksOffset);
+        for (int i = 0; i < numLabels; i++) {
+            out.putFloat(risks[i]);
+        }
+
+        out.position(embeddingsOffset);
+        for (int i = 0; i < numLabels; i++) {
+            int rowOffset = i * dimension;
+            double norm = 0.0;
+            for (int j = 0; j < dimension; j++) {
+                norm += embeddings[rowOffset + j] * embeddings[rowOffset + j];
+            }
+            // Zero rows stay zero, so they score 0 against everything.
+            float invNorm = norm > 0.0 ? (float) (1.0 / Math.sqrt(norm)) : 0.0f;
+            for (int j = 0; j < dimension; j++) {
+                out.putFloat(embeddings[rowOffset + j] * invNorm);
+            }
+        }
+        out.rewind();
+        return out;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public float risk(int index) {
+        return risks.get(index);
+    }
+
+    /** Label text, decoded from the mapped UTF-8 blob on first access and cached afterwards. */
+    public String label(int index) {
+        String label = decodedLabels[index];
+        if (label == null) {
+            int start = labelOffsets.get(index);
+            int end = labelOffsets.get(index + 1);
+            byte[] bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(labelBlobOffset + start + i);
+            }
+            label = new String(bytes, StandardCharsets.UTF_8);
+            decodedLabels[index] = label;
+        }
+        return label;
+    }
+
+    /**
+     * Cosine similarity of label {@code index} against an already L2-normalized query, which is a
+     * plain dot product because every stored row is normalized too.
+     */
+    public float similarity(int index, float[] normalizedQuery) {
+        int rowOffset = index * dimension;
+        float dotProduct = 0.0f;
+        if (embeddings != null) {
+            for (int j = 0; j < dimension; j++) {
+                dotProduct += embeddings.get(rowOffset + j) * normalizedQuery[j];
+            }
+        } else {
+            float[] halfTable = HalfTable.VALUES;
+            for (int j = 0; j < dimension; j++) {
+                dotProduct += halfTable[halfEmbeddings.get(rowOffset + j) & 0xFFFF] * normalizedQuery[j];
+            }
+        }
+        return dotProduct;
+    }
+
+    /** Copies the normalized embedding of label {@code index} into {@code out} (length >= dimension()). */
+    public void copyEmbedding(int index, float[] out) {
+        int rowOffset = index * dimension;
+        for (int j = 0; j < dimension; j++) {
+            out[j] = embeddings != null
+                    ? embeddings.get(rowOffset + j)
+                    : HalfTable.VALUES[halfEmbeddings.get(rowOffset + j) & 0xFFFF];
+        }
+    }
+
+    /**
+     * Scores every label against {@code normalizedQuery} into {@code scores} (length >= size())
+     * and returns the index of the best one, or -1 for an empty vocabulary.
+     */
+    public int scoreAll(float[] normalizedQuery, float[] scores) {
+        int bestIndex = -1;
+        for (int i = 0; i < size; i++) {
+            float score = similarity(i, normalizedQuery);
+            scores[i] = score;
+            if (bestIndex < 0 || score > scores[bestIndex]) {
+                bestIndex = i;
+            }
+        }
+        return bestIndex;
+    }
+
+    /**
+     * A cheap checksum identifying this vocabulary's contents, used to tie derived data such as a
+     * persisted {@link IvfLabelIndex} to the vocabulary it was built from. Covers the header, label
+     * table, risks and a few leading values of every embedding row.
+     */
+    public long fingerprint() {
+        CRC32 crc = new CRC32();
+        int embeddingsOffset = buffer.getInt(28);
+        for (int i = 0; i < embeddingsOffset; i++) {
+            crc.update(buffer.get(i));
+        }
+        int bytesPerValue = embeddings != null ? 4 : 2;
+        int sampled = Math.min(dimension, FINGERPRINT_VALUES_PER_ROW) * bytesPerValue;
+        for (int i = 0; i < size; i++) {
+            int rowStart = embeddingsOffset + i * dimension * bytesPerValue;
+            for (int b = 0; b < sampled; b++) {
+                crc.update(buffer.get(rowStart + b));
+            }
+        }
+        return crc.getValue();
+    }
+
+    private ByteBuffer view(int offset) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        // slice() resets the byte order, so it has to be set again before taking typed views.
+        return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int align(int value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+    /** Lazily built float16 -> float32 lookup table, only paid for when a half-precision file is loaded. */
+    private static final class HalfTable {
+        static final float[] VALUES = new float[1 << 16];
+
+        static {
+            for (int bits = 0; bits < VALUES.length; bits++) {
+                VALUES[bits] = halfToFloat(bits);
+            }
+        }
+
+        private static float halfToFloat(int half) {
+            int sign = (half >>> 15) & 0x1;
+            int exponent = (half >>> 10) & 0x1F;
+            int mantissa = half & 0x3FF;
+            float magnitude;
+            if (exponent == 0) {
+                magnitude = (float) (mantissa * Math.pow(2, -24)); // Subnormal
+            } else if (exponent == 0x1F) {
+                magnitude = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+            } else {
+                magnitude = (float) ((1.0 + mantissa / 1024.0) * Math.pow(2, exponent - 15));
+            }
+            return sign == 0 ? magnitude : -magnitude;
+        }
+    }
+}
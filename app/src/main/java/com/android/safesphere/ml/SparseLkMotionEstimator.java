@@ -0,0 +1,98 @@
+package com.android.safesphere.ml;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Size;
+import org.opencv.video.Video;
+
+/**
+ * Pyramidal Lucas-Kanade tracking of a fixed grid of points, one every {@code gridStep} pixels. Only
+ * points that were tracked successfully produce a vector. The grid is rebuilt only when the frame
+ * size changes.
+ */
+public class SparseLkMotionEstimator implements MotionEstimator {
+    public static final int DEFAULT_GRID_STEP = 16;
+    private static final Size WINDOW_SIZE = new Size(21, 21);
+    private static final int MAX_PYRAMID_LEVEL = 3;
+
+    private final int gridStep;
+    private final MatOfPoint2f gridPoints = new MatOfPoint2f();
+    private final MatOfPoint2f trackedPoints = new MatOfPoint2f();
+    private final MatOfByte status = new MatOfByte();
+    private final MatOfFloat errors = new MatOfFloat();
+    private float[] gridCoordinates = new float[0];
+    private float[] trackedCoordinates = new float[0];
+    private byte[] statusValues = new byte[0];
+    private int gridWidth = -1;
+    private int gridHeight = -1;
+
+    public SparseLkMotionEstimator() {
+        this(DEFAULT_GRID_STEP);
+    }
+
+    public SparseLkMotionEstimator(int gridStep) {
+        this.gridStep = gridStep;
+    }
+
+    @Override
+    public void estimate(Mat previous, Mat current, FlowSamples out) {
+        if (previous.cols() != gridWidth || previous.rows() != gridHeight) {
+            buildGrid(previous.cols(), previous.rows());
+        }
+        int points = statusValues.length;
+        if (points == 0) {
+            out.reserve(0);
+            return;
+        }
+
+        Video.calcOpticalFlowPyrLK(previous, current, gridPoints, trackedPoints, status, errors,
+                WINDOW_SIZE, MAX_PYRAMID_LEVEL);
+        trackedPoints.get(0, 0, trackedCoordinates);
+        status.get(0, 0, statusValues);
+
+        float[] flow = out.reserve(points);
+        int vectors = 0;
+        for (int p = 0; p < points; p++) {
+            if (statusValues[p] == 0) {
+                continue;
+            }
+            flow[2 * vectors] = trackedCoordinates[2 * p] - gridCoordinates[2 * p];
+            flow[2 * vectors + 1] = trackedCoordinates[2 * p + 1] - gridCoordinates[2 * p + 1];
+            vectors++;
+        }
+        out.setCount(vectors);
+    }
+
+    private void buildGrid(int width, int height) {
+        gridWidth = width;
+        gridHeight = height;
+        int columns = Math.max(0, (width - gridStep / 2 + gridStep - 1) / gridStep);
+        int rows = Math.max(0, (height - gridStep / 2 + gridStep - 1) / gridStep);
+        int points = columns * rows;
+        gridCoordinates = new float[2 * points];
+        trackedCoordinates = new float[2 * points];
+        statusValues = new byte[points];
+        for (int row = 0, p = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++, p++) {
+                gridCoordinates[2 * p] = gridStep / 2 + column * gridStep;
+                gridCoordinates[2 * p + 1] = gridStep / 2 + row * gridStep;
+            }
+        }
+        if (points > 0) {
+            gridPoints.alloc(points);
+            gridPoints.put(0, 0, gridCoordinates);
+        }
+    }
+
+    @Override
+    public void release() {
+        gridPoints.release();
+        trackedPoints.release();
+        status.release();
+        errors.release();
+        gridWidth = -1;
+        gridHeight = -1;
+    }
+}
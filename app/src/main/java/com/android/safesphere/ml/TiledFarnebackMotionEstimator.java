@@ -0,0 +1,216 @@
+package com.android.safesphere.ml;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.video.Video;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Farneback flow computed per tile in parallel. The frame is cut into tiles of about
+ * {@link #TILE_SIZE} pixels, each padded with context, and every tile's core region is stitched into
+ * one dense field in frame order.
+ *
+ * <p>The padding, {@link #TILE_OVERLAP}, is the averaging window's reach at the coarsest pyramid
+ * level, {@code WINSIZE * 2^(LEVELS - 1)} frame pixels, and padded origins are aligned to that level
+ * so tile and frame pyramids sample the same grid. Flow near the seams still differs slightly from
+ * the full-frame result: the iterations carry the Gaussian-weighted window a little further than one
+ * window, so vectors within a few pixels of a seam can disagree, mostly under large motion that only
+ * the coarsest level resolves.
+ *
+ * <p>Tiles whose pixels barely changed since the previous frame (mean absolute difference below
+ * {@link #CHANGE_THRESHOLD} gray levels) are not run through Farneback at all and report zero motion,
+ * so the cost follows both the number of cores and how much of the scene is moving.
+ */
+public class TiledFarnebackMotionEstimator implements MotionEstimator {
+    private static final int TILE_SIZE = 256;
+    // Same Farneback parameters as FarnebackMotionEstimator.
+    private static final double PYR_SCALE = 0.5;
+    private static final int LEVELS = 3;
+    private static final int WINSIZE = 15;
+    private static final int ITERATIONS = 3;
+    private static final int POLY_N = 5;
+    private static final double POLY_SIGMA = 1.2;
+    private static final int COARSEST_STEP = 1 << (LEVELS - 1); // Frame pixels per coarsest-level pixel.
+    private static final int TILE_OVERLAP = WINSIZE * COARSEST_STEP;
+    private static final double CHANGE_THRESHOLD = 1.5;
+    private static final ForkJoinPool TILE_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private Tile[] tiles = new Tile[0];
+    private int frameWidth = -1;
+    private int frameHeight = -1;
+    private int lastSkippedTiles;
+
+    @Override
+    public void estimate(Mat previous, Mat current, FlowSamples out) {
+        int width = previous.cols();
+        int height = previous.rows();
+        if (width != frameWidth || height != frameHeight) {
+            buildTiles(width, height);
+        }
+        float[] flow = out.reserve(width * height);
+
+        TILE_POOL.invoke(new TileAction(previous, current, flow, 0, tiles.length));
+
+        int skipped = 0;
+        for (Tile tile : tiles) {
+            if (tile.skipped) {
+                skipped++;
+            }
+        }
+        lastSkippedTiles = skipped;
+        out.setCount(width * height);
+    }
+
+    /** Number of tiles skipped as unchanged on the last frame pair. */
+    public int getLastSkippedTiles() {
+        return lastSkippedTiles;
+    }
+
+    public int getTileCount() {
+        return tiles.length;
+    }
+
+    private void buildTiles(int width, int height) {
+        release();
+        frameWidth = width;
+        frameHeight = height;
+        int columns = Math.max(1, Math.round((float) width / TILE_SIZE));
+        int rows = Math.max(1, Math.round((float) height / TILE_SIZE));
+        tiles = new Tile[columns * rows];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int coreLeft = column * width / columns;
+                int coreRight = (column + 1) * width / columns;
+                int coreTop = row * height / rows;
+                int coreBottom = (row + 1) * height / rows;
+                tiles[row * columns + column] = new Tile(coreLeft, coreTop, coreRight, coreBottom, width, height);
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        for (Tile tile : tiles) {
+            tile.release();
+        }
+        tiles = new Tile[0];
+        frameWidth = -1;
+        frameHeight = -1;
+    }
+
+    /** Splits the tile range in halves until single tiles remain. */
+    private final class TileAction extends RecursiveAction {
+        private final Mat previous;
+        private final Mat current;
+        private final float[] flow;
+        private final int from;
+        private final int to;
+
+        TileAction(Mat previous, Mat current, float[] flow, int from, int to) {
+            this.previous = previous;
+            this.current = current;
+            this.flow = flow;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                tiles[from].compute(previous, current, flow, frameWidth);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new TileAction(previous, current, flow, from, middle),
+                    new TileAction(previous, current, flow, middle, to));
+        }
+    }
+
+    /** One tile: its padded region, the core it owns in the output, and reusable buffers. */
+    private static final class Tile {
+        final Rect padded;
+        final int coreLeft;
+        final int coreTop;
+        final int coreRight;
+        final int coreBottom;
+        final Mat flow = new Mat();
+        final float[] values;
+        final TileView previousView = new TileView();
+        final TileView currentView = new TileView();
+        boolean skipped;
+
+        Tile(int coreLeft, int coreTop, int coreRight, int coreBottom, int frameWidth, int frameHeight) {
+            this.coreLeft = coreLeft;
+            this.coreTop = coreTop;
+            this.coreRight = coreRight;
+            this.coreBottom = coreBottom;
+            // Aligned down so the tile's pyramid levels sample the frame's grid.
+            int left = Math.max(0, coreLeft - TILE_OVERLAP) / COARSEST_STEP * COARSEST_STEP;
+            int top = Math.max(0, coreTop - TILE_OVERLAP) / COARSEST_STEP * COARSEST_STEP;
+            int right = Math.min(frameWidth, coreRight + TILE_OVERLAP);
+            int bottom = Math.min(frameHeight, coreBottom + TILE_OVERLAP);
+            padded = new Rect(left, top, right - left, bottom - top);
+            values = new float[2 * padded.width * padded.height];
+        }
+
+        void compute(Mat previous, Mat current, float[] out, int frameWidth) {
+            Mat previousTile = previousView.of(previous, padded);
+            Mat currentTile = currentView.of(current, padded);
+            double meanDifference = Core.norm(previousTile, currentTile, Core.NORM_L1) / (padded.width * padded.height);
+            skipped = meanDifference < CHANGE_THRESHOLD;
+            int coreWidth = coreRight - coreLeft;
+            if (skipped) {
+                for (int y = coreTop; y < coreBottom; y++) {
+                    int offset = 2 * (y * frameWidth + coreLeft);
+                    Arrays.fill(out, offset, offset + 2 * coreWidth, 0.0f);
+                }
+                return;
+            }
+
+            Video.calcOpticalFlowFarneback(previousTile, currentTile, flow, PYR_SCALE, LEVELS, WINSIZE, ITERATIONS,
+                    POLY_N, POLY_SIGMA, 0);
+            flow.get(0, 0, values);
+            for (int y = coreTop; y < coreBottom; y++) {
+                int source = 2 * ((y - padded.y) * padded.width + (coreLeft - padded.x));
+                System.arraycopy(values, source, out, 2 * (y * frameWidth + coreLeft), 2 * coreWidth);
+            }
+        }
+
+        void release() {
+            flow.release();
+            previousView.release();
+            currentView.release();
+        }
+    }
+
+    /**
+     * A submat header over a parent frame, kept across frames. The motion detector swaps the same two
+     * gray Mats every frame, so the header is only rebuilt when the parent's pixel buffer moves.
+     * submat() never copies pixels.
+     */
+    private static final class TileView {
+        private Mat view;
+        private long parentAddress;
+
+        Mat of(Mat parent, Rect region) {
+            long address = parent.dataAddr();
+            if (view == null || address != parentAddress) {
+                release();
+                view = parent.submat(region);
+                parentAddress = address;
+            }
+            return view;
+        }
+
+        void release() {
+            if (view != null) {
+                view.release();
+                view = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.android.safesphere.ml;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Analyzes a video as a pipeline of three stages so decoding never waits for the models and the models
+ * never wait for the decoder:
+ * <ol>
+ *   <li>decode: a dedicated thread pulls frames from a {@link FrameSource} into a bounded queue;</li>
+ *   <li>infer: the calling thread takes whatever frames are ready, up to one CLIP batch, and runs them
+ *       through the {@link AnalysisOrchestrator}, which spreads the analyzers over its own workers
+ *       and, through an {@link AnalyzerCascade}, skips CLIP and YOLO on frames that did not change;</li>
+ *   <li>fuse: results are folded, in frame order, into an exponential moving average of the risk and
+ *       its peak.</li>
+ * </ol>
+ *
+ * <p>Frames travel in a fixed set of {@link FrameContext}s. The decoder must take a free one before
+ * decoding, so at most {@code queueCapacity + MAX_BATCH_SIZE} decoded frames exist at any time no
+ * matter how far the decoder could run ahead.
+ *
+ * <p>With an {@link AdaptiveFrameSampler} attached, every decoded frame and every fused result is fed
+ * back to it, so the source's sampling rate follows what the video is doing.
+ */
+public class VideoAnalysisPipeline {
+    private static final String TAG = "VideoAnalysisPipeline";
+    private static final float RISK_ALPHA = 0.4f; // How quickly the cumulative risk follows the frame risk.
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    /** Camera rotation between two frame timestamps, e.g. from the gyroscope. */
+    public interface RotationSource {
+        float[] rotationBetween(long startUs, long endUs);
+    }
+
+    /** Peak of the cumulative risk over the video and the scene at that moment. */
+    public static final class Result {
+        public final int peakRisk;
+        public final ClassificationResult resultAtPeak; // null if no frame could be analyzed
+        public final int framesAnalyzed;
+        public final long elapsedNanos;
+        public final float cascadeSkipRatio; // Share of frames that reused scene and object results.
+
+        Result(int peakRisk, ClassificationResult resultAtPeak, int framesAnalyzed, long elapsedNanos,
+               float cascadeSkipRatio) {
+            this.peakRisk = peakRisk;
+            this.resultAtPeak = resultAtPeak;
+            this.framesAnalyzed = framesAnalyzed;
+            this.elapsedNanos = elapsedNanos;
+            this.cascadeSkipRatio = cascadeSkipRatio;
+        }
+    }
+
+    private final AnalysisOrchestrator orchestrator;
+    private final MotionAnomalyDetector motionDetector;
+    private final int queueCapacity;
+    private RotationSource rotationSource;
+    private AdaptiveFrameSampler sampler;
+
+    // Fusion state of the current run.
+    private float cumulativeRisk;
+    private float maxCumulativeRisk;
+    private ClassificationResult resultAtMaxRisk;
+    private int framesAnalyzed;
+    private long previousFrameUs;
+
+    public VideoAnalysisPipeline(AnalysisOrchestrator orchestrator, MotionAnomalyDetector motionDetector) {
+        this(orchestrator, motionDetector, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public VideoAnalysisPipeline(AnalysisOrchestrator orchestrator, MotionAnomalyDetector motionDetector, int queueCapacity) {
+        this.orchestrator = orchestrator;
+        this.motionDetector = motionDetector;
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    /** Rotation fed to motion estimation; without one every frame pair counts as unrotated. */
+    public void setRotationSource(RotationSource rotationSource) {
+        this.rotationSource = rotationSource;
+    }
+
+    /** Sampler to feed frame changes and results back to; it must be the one driving the source. */
+    public void setSampler(AdaptiveFrameSampler sampler) {
+        this.sampler = sampler;
+    }
+
+    /**
+     * Analyzes every frame of {@code source} and returns the peak cumulative risk. Blocks until the
+     * source is exhausted; the source stays open and is closed by the caller.
+     */
+    public Result run(FrameSource source) throws InterruptedException {
+        long start = System.nanoTime();
+        cumulativeRisk = 0.0f;
+        maxCumulativeRisk = -1.0f;
+        resultAtMaxRisk = null;
+        framesAnalyzed = 0;
+        previousFrameUs = -1;
+
+        int poolSize = queueCapacity + SceneClassifier.MAX_BATCH_SIZE;
+        BlockingQueue<FrameContext> free = new ArrayBlockingQueue<>(poolSize);
+        // One extra slot so the end marker always fits.
+        BlockingQueue<FrameContext> decoded = new ArrayBlockingQueue<>(poolSize + 1);
+        List<FrameContext> contexts = new ArrayList<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            FrameContext context = new FrameContext();
+            contexts.add(context);
+            free.add(context);
+        }
+        FrameContext endOfStream = new FrameContext();
+        AnalyzerCascade cascade = new AnalyzerCascade();
+
+        Thread decoder = new Thread(() -> decode(source, free, decoded, endOfStream), "VideoDecode");
+        decoder.start();
+        try {
+            infer(decoded, free, endOfStream, cascade);
+        } finally {
+            decoder.interrupt();
+            decoder.join();
+            for (FrameContext context : decoded) {
+                recycleFrame(context);
+            }
+            for (FrameContext context : contexts) {
+                context.release();
+            }
+            cascade.release();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        float skipRatio = cascade.getSkipRatio();
+        Log.d(TAG, String.format("Analyzed %d frames in %.1f s (%.2f frames/s), %.0f%% without CLIP and YOLO",
+                framesAnalyzed, elapsed / 1_000_000_000.0, framesAnalyzed * 1_000_000_000.0 / Math.max(1, elapsed),
+                skipRatio * 100));
+        return new Result(Math.round(maxCumulativeRisk), resultAtMaxRisk, framesAnalyzed, elapsed, skipRatio);
+    }
+
+    private void decode(FrameSource source, BlockingQueue<FrameContext> free,
+                        BlockingQueue<FrameContext> decoded, FrameContext endOfStream) {
+        try {
+            while (true) {
+                // Taking a free context first is the backpressure: no decoding past the pool.
+                FrameContext context = free.take();
+                Bitmap frame = source.nextFrame();
+                if (frame == null) {
+                    break;
+                }
+                context.reset(frame, TimeUnit.MICROSECONDS.toNanos(source.frameTimeUs()));
+                if (sampler != null) {
+                    sampler.onFrameDecoded(context);
+                }
+                decoded.put(context);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Log.e(TAG, "Video decoding failed", e);
+        } finally {
+            decoded.offer(endOfStream);
+        }
+    }
+
+    private void infer(BlockingQueue<FrameContext> decoded, BlockingQueue<FrameContext> free,
+                       FrameContext endOfStream, AnalyzerCascade cascade) throws InterruptedException {
+        List<FrameContext> batch = new ArrayList<>(SceneClassifier.MAX_BATCH_SIZE);
+        float[][] rotations = new float[SceneClassifier.MAX_BATCH_SIZE][];
+        boolean ended = false;
+        while (!ended) {
+            FrameContext first = decoded.take();
+            if (first == endOfStream) {
+                break;
+            }
+            batch.add(first);
+            // Whatever else is already decoded joins the batch; never wait for a full one.
+            while (batch.size() < SceneClassifier.MAX_BATCH_SIZE) {
+                FrameContext next = decoded.poll();
+                if (next == null) {
+                    break;
+                }
+                if (next == endOfStream) {
+                    ended = true;
+                    break;
+                }
+                batch.add(next);
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                rotations[i] = rotationFor(TimeUnit.NANOSECONDS.toMicros(batch.get(i).timestampNanos()));
+            }
+            FrameAnalysis[] analyses = orchestrator.analyze(batch, rotations, motionDetector, cascade);
+            for (int i = 0; i < analyses.length; i++) {
+                fuse(analyses[i]);
+                recycleFrame(batch.get(i));
+                free.put(batch.get(i));
+            }
+            batch.clear();
+        }
+    }
+
+    private float[] rotationFor(long frameUs) {
+        float[] rotation = previousFrameUs < 0 || rotationSource == null
+                ? new float[3]
+                : rotationSource.rotationBetween(previousFrameUs, frameUs);
+        previousFrameUs = frameUs;
+        return rotation;
+    }
+
+    private void fuse(FrameAnalysis analysis) {
+        framesAnalyzed++;
+        cumulativeRisk = (RISK_ALPHA * analysis.riskScore) + ((1.0f - RISK_ALPHA) * cumulativeRisk);
+        Log.d(TAG, String.format("Frame Risk: %d%% and Cumulative Risk: %.2f%%", analysis.riskScore, cumulativeRisk));
+        if (cumulativeRisk > maxCumulativeRisk) {
+            maxCumulativeRisk = cumulativeRisk;
+            resultAtMaxRisk = analysis.sceneResult;
+        }
+        if (sampler != null) {
+            sampler.onFrameAnalyzed(analysis, cumulativeRisk);
+        }
+    }
+
+    private static void recycleFrame(FrameContext context) {
+        context.awaitIdle(); // A stage that timed out may still read the bitmap.
+        Bitmap bitmap = context.bitmap();
+        if (bitmap != null && !bitmap.isRecycled()) {
+            bitmap.recycle();
+        }
+    }
+}
@@ -56,13 +56,15 @@ public class BatchAnalysisActivity extends AppCompatActivity {
     private RiskCalculator riskCalculator;
     private AlertManager alertManager;
     private ObjectDetector objectDetector;
+    private AnalysisOrchestrator orchestrator;
+    // Reused for every image on the analysis thread; each image is converted once for all analyzers.
+    private final FrameContext imageContext = new FrameContext();
 
 
     private List<AnalysisItem> analysisItems = new ArrayList<>();
     private ResultsAdapter adapter;
     private ExecutorService analysisExecutor;
 
-    private static final int VIDEO_SAMPLING_INTERVAL_MS = SafeSphereApp.VIDEO_SAMPLING_INTERVAL_MS;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -91,13 +93,37 @@ public class BatchAnalysisActivity extends AppCompatActivity {
     }
 
     private void initDependencies() {
-        analysisExecutor = Executors.newSingleThreadExecutor();
-        sceneClassifier = new SceneClassifier(this);
         motionAnomalyDetector = new MotionAnomalyDetector();
         lightingAnalyzer = new LightingAnalyzer();
         riskCalculator = new RiskCalculator();
         alertManager = new AlertManager(this);
-        objectDetector = new ObjectDetector(this);
+        analysisExecutor = Executors.newSingleThreadExecutor();
+        analysisExecutor.execute(this::checkOutModels);
+    }
+
+    // Models come from the app-wide pools. They are checked out on the executor so the UI thread
+    // never waits for a model to load or for another screen to hand one back.
+    private void checkOutModels() {
+        try {
+            sceneClassifier = ModelPools.sceneClassifiers(this).acquire();
+            objectDetector = ModelPools.objectDetectors(this).acquire();
+            orchestrator = new AnalysisOrchestrator(sceneClassifier, objectDetector, lightingAnalyzer, riskCalculator);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.e(TAG, "Interrupted while waiting for models.", e);
+        }
+    }
+
+    private void returnModels() {
+        // Waits for any stage still running late, so the models go back idle.
+        if (orchestrator != null) {
+            orchestrator.close();
+            orchestrator = null;
+        }
+        ModelPools.sceneClassifiers(this).release(sceneClassifier);
+        ModelPools.objectDetectors(this).release(objectDetector);
+        sceneClassifier = null;
+        objectDetector = null;
     }
 
     // Prepares the list of items, extracting thumbnails and filenames
@@ -145,68 +171,45 @@ public class BatchAnalysisActivity extends AppCompatActivity {
 
     // --- ANALYSIS LOGIC (Adapted from DetectionActivity) ---
     private void analyzeImage(AnalysisItem item) {
-        try (InputStream inputStream = getContentResolver().openInputStream(item.uri)) {
-            Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-            if (bitmap != null) {
-                boolean objectFound = objectDetector.containsDangerousObject(bitmap);
-                item.result = (ClassificationResult) sceneClassifier.classifyScene(bitmap);
-                item.riskScore = riskCalculator.calculateRiskScore(item.result.riskScore, 0, lightingAnalyzer.analyzeLighting(bitmap), objectFound);
-                item.alertInfo = alertManager.getAlertInfo(item.riskScore);
-                bitmap.recycle();
-            }
+        Bitmap bitmap;
+        try {
+            bitmap = FrameDecoder.decode(getContentResolver(), item.uri);
         } catch (IOException e) {
-            Log.e(TAG, "Failed to analyze image", e);
+            Log.e(TAG, "Failed to decode image", e);
+            return;
         }
+        FrameContext frame = imageContext.reset(bitmap);
+        FrameAnalysis analysis = orchestrator.analyze(frame, new float[3], null);
+        item.result = analysis.sceneResult;
+        item.riskScore = analysis.riskScore;
+        item.alertInfo = alertManager.getAlertInfo(item.riskScore);
+        frame.awaitIdle(); // A stage that timed out may still read the bitmap.
+        bitmap.recycle();
     }
 
     private void analyzeVideo(AnalysisItem item) {
         MotionAnomalyDetector videoMotionDetector = new MotionAnomalyDetector();
-        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-
-        try {
-            retriever.setDataSource(this, item.uri);
-
-            // ... (cumulative risk logic is the same)
-            float cumulativeRisk = 0.0f;
-            float maxCumulativeRisk = -1.0f;
-            ClassificationResult resultAtMaxRisk = null;
-            final float alpha = 0.4f;
-
-            String durationStr = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-            long durationMs = Long.parseLong(durationStr);
-
-            for (long timeMs = 0; timeMs < durationMs; timeMs += 500) {
-                Bitmap frame = retriever.getFrameAtTime(timeMs * 1000, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
-                if (frame != null) {
-                    // Use the new, local instance of the detector
-                    float motionScore = videoMotionDetector.detectAnomalies(frame, new float[3]);
-
-                    boolean objectFound = objectDetector.containsDangerousObject(frame);
-                    ClassificationResult frameResult = (ClassificationResult) sceneClassifier.classifyScene(frame);
-                    float lightingRisk = lightingAnalyzer.analyzeLighting(frame);
-                    int finalFrameRisk = riskCalculator.calculateRiskScore(frameResult.riskScore, motionScore, lightingRisk, objectFound);
-
-                    cumulativeRisk = (alpha * finalFrameRisk) + ((1.0f - alpha) * cumulativeRisk);
-                    if (cumulativeRisk > maxCumulativeRisk) {
-                        maxCumulativeRisk = cumulativeRisk;
-                        resultAtMaxRisk = frameResult;
-                    }
-                    frame.recycle();
-                }
-            }
-            item.riskScore = Math.round(maxCumulativeRisk);
-            item.result = resultAtMaxRisk;
+        AdaptiveFrameSampler sampler = new AdaptiveFrameSampler(SafeSphereApp.VIDEO_MIN_SAMPLING_INTERVAL_MS,
+                SafeSphereApp.VIDEO_MAX_SAMPLING_INTERVAL_MS, SafeSphereApp.VIDEO_FRAME_BUDGET);
+
+        // Decoding, inference and the cumulative (EMA) risk run as overlapping stages, with a new,
+        // local instance of the motion detector. Imported videos carry no gyroscope data.
+        VideoAnalysisPipeline pipeline = new VideoAnalysisPipeline(orchestrator, videoMotionDetector);
+        pipeline.setSampler(sampler);
+        try (FrameSource source = CodecFrameSource.open(this, item.uri, sampler)) {
+            VideoAnalysisPipeline.Result result = pipeline.run(source);
+            item.riskScore = result.peakRisk;
+            item.result = result.resultAtPeak;
             item.alertInfo = alertManager.getAlertInfo(item.riskScore);
-
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.e(TAG, "Video analysis interrupted", e);
         } catch (Exception e) {
             Log.e(TAG, "Failed to analyze video", e);
         } finally {
-            try {
-                retriever.release();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+            orchestrator.awaitStragglers(); // A late motion stage may still use the detector.
             videoMotionDetector.release();
+            sampler.release();
         }
     }
 
@@ -249,9 +252,11 @@ public class BatchAnalysisActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        // Queued behind any running analysis, so the models are only returned once it is done.
+        analysisExecutor.execute(this::returnModels);
+        analysisExecutor.execute(imageContext::release);
+        analysisExecutor.execute(motionAnomalyDetector::release);
         analysisExecutor.shutdown();
-        sceneClassifier.close();
-        motionAnomalyDetector.release();
         alertManager.release();
     }
 
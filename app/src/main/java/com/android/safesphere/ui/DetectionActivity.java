@@ -3,7 +3,6 @@ package com.android.safesphere.ui;
 import android.annotation.SuppressLint;
 import android.content.ContentValues;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.os.Bundle;
@@ -11,6 +10,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.provider.MediaStore;
 import android.util.Log;
+import android.util.Size;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
@@ -18,9 +18,13 @@ import android.widget.*;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.camera.core.CameraSelector;
+import androidx.camera.core.ImageAnalysis;
 import androidx.camera.core.ImageCapture;
 import androidx.camera.core.ImageCaptureException;
+import androidx.camera.core.ImageProxy;
 import androidx.camera.core.Preview;
+import androidx.camera.core.resolutionselector.ResolutionSelector;
+import androidx.camera.core.resolutionselector.ResolutionStrategy;
 import androidx.camera.lifecycle.ProcessCameraProvider;
 import androidx.camera.video.*;
 import androidx.camera.view.PreviewView;
@@ -35,8 +39,6 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -55,6 +57,8 @@ public class DetectionActivity extends AppCompatActivity {
     private TextView captureInstructions;
     private ProgressBar recordingProgress;
     private ConstraintLayout processingOverlay;
+    private Button liveModeButton;
+    private TextView liveRiskText;
 
 
     // ML Models and Managers
@@ -64,12 +68,16 @@ public class DetectionActivity extends AppCompatActivity {
     private MotionAnomalyDetector motionAnomalyDetector;
     private LightingAnalyzer lightingAnalyzer;
     private ObjectDetector objectDetector;
+    private AnalysisOrchestrator orchestrator;
 
     // CameraX and Threading
     private ExecutorService cameraExecutor;
     private ImageCapture imageCapture;
     private VideoCapture<Recorder> videoCapture;
     private Recording currentRecording;
+    private ProcessCameraProvider cameraProvider;
+    private Preview preview;
+    private ImageAnalysis imageAnalysis;
 
     // State
     private Bitmap capturedBitmap = null;
@@ -77,6 +85,17 @@ public class DetectionActivity extends AppCompatActivity {
     private File capturedPhotoFile = null;
     private boolean isRecording = false;
 
+    // Live mode. Frames are analyzed on cameraExecutor, which also owns the live state below, so the
+    // models are never used from two threads. KEEP_ONLY_LATEST drops frames while one is analyzed.
+    private volatile boolean liveMode = false;
+    private final FrameContext liveFrame = new FrameContext();
+    private MotionAnomalyDetector liveMotionDetector;
+    private AnalyzerCascade liveCascade; // Reuses scene and object results while the view is unchanged.
+    private long lastLiveFrameTimestamp = 0;
+    private float liveCumulativeRisk = 0.0f;
+    private static final float LIVE_RISK_ALPHA = 0.4f;
+    private static final Size LIVE_ANALYSIS_RESOLUTION = new Size(640, 480);
+
     // Animation Handler
     private final Handler animationHandler = new Handler(Looper.getMainLooper());
     private Runnable animationRunnable;
@@ -85,8 +104,6 @@ public class DetectionActivity extends AppCompatActivity {
     private GyroscopeManager gyroscopeManager;
     private long lastFrameTimestamp = 0;
 
-    private static final int VIDEO_SAMPLING_INTERVAL_MS = SafeSphereApp.VIDEO_SAMPLING_INTERVAL_MS;
-
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -101,6 +118,8 @@ public class DetectionActivity extends AppCompatActivity {
         captureInstructions = findViewById(R.id.capture_instructions);
         recordingProgress = findViewById(R.id.recording_progress);
         processingOverlay = findViewById(R.id.processing_overlay);
+        liveModeButton = findViewById(R.id.live_mode_button);
+        liveRiskText = findViewById(R.id.live_risk_text);
 
         gyroscopeManager = new GyroscopeManager(this);
 
@@ -109,15 +128,40 @@ public class DetectionActivity extends AppCompatActivity {
         setupCaptureButtonListeners();
 
         analyzeButton.setOnClickListener(v -> analyzeCapturedMedia());
+        liveModeButton.setOnClickListener(v -> setLiveMode(!liveMode));
     }
 
     private void initDependencies() {
-        cameraExecutor = Executors.newSingleThreadExecutor();
-        sceneClassifier = new SceneClassifier(this);
         riskCalculator = new RiskCalculator();
         alertManager = new AlertManager(this);
         lightingAnalyzer = new LightingAnalyzer();
-        objectDetector = new ObjectDetector(this);
+        cameraExecutor = Executors.newSingleThreadExecutor();
+        cameraExecutor.execute(this::checkOutModels);
+    }
+
+    // Models come from the app-wide pools. They are checked out on the executor so the UI thread
+    // never waits for a model to load or for another screen to hand one back.
+    private void checkOutModels() {
+        try {
+            sceneClassifier = ModelPools.sceneClassifiers(this).acquire();
+            objectDetector = ModelPools.objectDetectors(this).acquire();
+            orchestrator = new AnalysisOrchestrator(sceneClassifier, objectDetector, lightingAnalyzer, riskCalculator);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.e(TAG, "Interrupted while waiting for models.", e);
+        }
+    }
+
+    private void returnModels() {
+        // Waits for any stage still running late, so the models go back idle.
+        if (orchestrator != null) {
+            orchestrator.close();
+            orchestrator = null;
+        }
+        ModelPools.sceneClassifiers(this).release(sceneClassifier);
+        ModelPools.objectDetectors(this).release(objectDetector);
+        sceneClassifier = null;
+        objectDetector = null;
     }
 
     @Override
@@ -137,8 +181,8 @@ public class DetectionActivity extends AppCompatActivity {
         ListenableFuture<ProcessCameraProvider> cameraProviderFuture = ProcessCameraProvider.getInstance(this);
         cameraProviderFuture.addListener(() -> {
             try {
-                ProcessCameraProvider cameraProvider = cameraProviderFuture.get();
-                Preview preview = new Preview.Builder().build();
+                cameraProvider = cameraProviderFuture.get();
+                preview = new Preview.Builder().build();
                 preview.setSurfaceProvider(cameraPreview.getSurfaceProvider());
                 imageCapture = new ImageCapture.Builder().build();
 
@@ -148,10 +192,19 @@ public class DetectionActivity extends AppCompatActivity {
                         .build();
                 videoCapture = VideoCapture.withOutput(recorder);
 
-                CameraSelector cameraSelector = CameraSelector.DEFAULT_BACK_CAMERA;
-                cameraProvider.unbindAll();
-                // Bind all three use cases
-                cameraProvider.bindToLifecycle(this, cameraSelector, preview, imageCapture, videoCapture);
+                // Live analysis: upright YUV frames near the flow resolution, only the latest one kept.
+                imageAnalysis = new ImageAnalysis.Builder()
+                        .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
+                        .setOutputImageFormat(ImageAnalysis.OUTPUT_IMAGE_FORMAT_YUV_420_888)
+                        .setOutputImageRotationEnabled(true)
+                        .setResolutionSelector(new ResolutionSelector.Builder()
+                                .setResolutionStrategy(new ResolutionStrategy(LIVE_ANALYSIS_RESOLUTION,
+                                        ResolutionStrategy.FALLBACK_RULE_CLOSEST_HIGHER_THEN_LOWER))
+                                .build())
+                        .build();
+                imageAnalysis.setAnalyzer(cameraExecutor, this::analyzeLiveFrame);
+
+                bindUseCases();
             } catch (Exception e) {
                 Log.e(TAG, "Failed to start camera.", e);
                 Toast.makeText(this, "Failed to start camera.", Toast.LENGTH_SHORT).show();
@@ -159,6 +212,99 @@ public class DetectionActivity extends AppCompatActivity {
         }, ContextCompat.getMainExecutor(this));
     }
 
+    // Many devices cannot stream analysis frames while also recording, so live mode swaps the
+    // capture use cases for the analysis one.
+    private void bindUseCases() {
+        if (cameraProvider == null) return;
+        CameraSelector cameraSelector = CameraSelector.DEFAULT_BACK_CAMERA;
+        cameraProvider.unbindAll();
+        if (liveMode) {
+            cameraProvider.bindToLifecycle(this, cameraSelector, preview, imageAnalysis);
+        } else {
+            // Bind all three capture use cases
+            cameraProvider.bindToLifecycle(this, cameraSelector, preview, imageCapture, videoCapture);
+        }
+    }
+
+    private void setLiveMode(boolean enabled) {
+        liveMode = enabled;
+        if (enabled) {
+            gyroscopeManager.reset();
+            cameraExecutor.execute(() -> {
+                liveMotionDetector = new MotionAnomalyDetector();
+                liveCascade = new AnalyzerCascade();
+                lastLiveFrameTimestamp = 0;
+                liveCumulativeRisk = 0.0f;
+            });
+        } else {
+            cameraExecutor.execute(this::releaseLiveState);
+        }
+        liveModeButton.setText(enabled ? "Stop Live" : "Live");
+        liveRiskText.setText("Live Risk: --");
+        liveRiskText.setVisibility(enabled ? View.VISIBLE : View.GONE);
+        captureButton.setVisibility(enabled ? View.GONE : View.VISIBLE);
+        captureInstructions.setVisibility(enabled ? View.GONE : View.VISIBLE);
+        try {
+            bindUseCases();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to switch live mode.", e);
+            Toast.makeText(this, "Failed to switch live mode.", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void releaseLiveState() {
+        if (orchestrator != null) {
+            orchestrator.awaitStragglers(); // A late motion stage may still use the detector.
+        }
+        if (liveMotionDetector != null) {
+            liveMotionDetector.release();
+            liveMotionDetector = null;
+        }
+        if (liveCascade != null) {
+            liveCascade.release();
+            liveCascade = null;
+        }
+        liveFrame.release();
+    }
+
+    /**
+     * Analyzes one camera frame straight from its YUV planes. The gyroscope rotation is integrated
+     * between the sensor timestamps of consecutive frames, which share the sensor event time base.
+     */
+    private void analyzeLiveFrame(ImageProxy image) {
+        try {
+            if (!liveMode || liveMotionDetector == null || liveCascade == null || orchestrator == null) {
+                return;
+            }
+            long start = System.nanoTime();
+            FrameContext frame = liveFrame.reset(image);
+            float[] rotation = gyroscopeManager.getIntegratedRotation(lastLiveFrameTimestamp, frame.timestampNanos());
+            lastLiveFrameTimestamp = frame.timestampNanos();
+
+            FrameAnalysis analysis = orchestrator.analyze(frame, rotation, liveMotionDetector, liveCascade);
+            int frameRisk = analysis.riskScore;
+            ClassificationResult sceneResult = analysis.sceneResult;
+
+            liveCumulativeRisk = (LIVE_RISK_ALPHA * frameRisk) + ((1.0f - LIVE_RISK_ALPHA) * liveCumulativeRisk);
+            int riskToShow = Math.round(liveCumulativeRisk);
+            Log.d(TAG, String.format("Live frame risk: %d%%, cumulative: %d%% (%.1f ms)",
+                    frameRisk, riskToShow, (System.nanoTime() - start) / 1_000_000.0));
+            runOnUiThread(() -> showLiveRisk(riskToShow, sceneResult));
+        } catch (Exception e) {
+            Log.e(TAG, "Live frame analysis failed", e);
+        } finally {
+            liveFrame.awaitIdle(); // A stage that timed out may still read the camera image.
+            image.close();
+        }
+    }
+
+    private void showLiveRisk(int riskScore, ClassificationResult result) {
+        if (!liveMode) return;
+        AlertManager.AlertInfo info = alertManager.getAlertInfo(riskScore);
+        liveRiskText.setBackgroundColor(info.color);
+        liveRiskText.setText(String.format("Live Risk: %d%% (%s)\n%s", riskScore, info.levelText, result.bestMatchLabel));
+    }
+
     @SuppressLint("ClickableViewAccessibility")
     private void setupCaptureButtonListeners() {
         Handler longPressHandler = new Handler(Looper.getMainLooper());
@@ -193,7 +339,15 @@ public class DetectionActivity extends AppCompatActivity {
         imageCapture.takePicture(outputOptions, cameraExecutor, new ImageCapture.OnImageSavedCallback() {
             @Override
             public void onImageSaved(ImageCapture.@NotNull OutputFileResults outputFileResults) {
-                capturedBitmap = BitmapFactory.decodeFile(capturedPhotoFile .getAbsolutePath());
+                try {
+                    // Analysis resolution is plenty for the preview and keeps a 12 MP capture off the heap.
+                    capturedBitmap = FrameDecoder.decode(capturedPhotoFile);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to decode captured photo", e);
+                    capturedBitmap = null;
+                    new Handler(Looper.getMainLooper()).post(this::resetToPreviewState);
+                    return;
+                }
                 new Handler(Looper.getMainLooper()).post(() -> {
                     // Show ImageView for the photo
                     capturedVideoUri = null;
@@ -311,12 +465,13 @@ public class DetectionActivity extends AppCompatActivity {
 
     private void analyzeImage(Bitmap bitmap) {
         cameraExecutor.execute(() -> {
-            boolean objectFound = objectDetector.containsDangerousObject(bitmap);
-
-            ClassificationResult sceneResult = (ClassificationResult) sceneClassifier.classifyScene(bitmap);
-            float motionScore = 0.0f;
-            float lightingRisk = lightingAnalyzer.analyzeLighting(bitmap);
-            int riskScore = riskCalculator.calculateRiskScore(sceneResult.riskScore, motionScore, lightingRisk, objectFound);
+            // Converted and scaled once, shared by every analyzer.
+            FrameContext frame = new FrameContext().reset(bitmap);
+            // A still image has no motion; the other analyzers run concurrently.
+            FrameAnalysis analysis = orchestrator.analyze(frame, new float[3], null);
+            frame.release();
+            int riskScore = analysis.riskScore;
+            ClassificationResult sceneResult = analysis.sceneResult;
 
             new Handler(Looper.getMainLooper()).post(() -> showAnalysisResultDialog(riskScore, sceneResult));
         });
@@ -326,94 +481,32 @@ public class DetectionActivity extends AppCompatActivity {
         Toast.makeText(this, "Analyzing video... This may take a moment.", Toast.LENGTH_SHORT).show();
 
         cameraExecutor.execute(() -> {
-            float cumulativeRisk = 0.0f;
-            float maxCumulativeRisk = -1.0f; // Track the peak risk during the video
-            ClassificationResult resultAtMaxRisk = null; // Store the details of the peak risk moment
-
-            // Alpha determines how quickly the score adapts. 0.4 is a good starting point.
-            final float alpha = 0.4f;
-
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+            VideoAnalysisPipeline.Result result = null;
 
             try {
-                retriever.setDataSource(this, videoUri);
-                List<Long> frameTimestampsUs = new ArrayList<>(); // Timestamps in Microseconds
-                String durationStr = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-                long durationMs = Long.parseLong(durationStr);
-
-                // We still define an interval to avoid analyzing too many frames.
-                long samplingIntervalUs = VIDEO_SAMPLING_INTERVAL_MS * 1000L;
-                long lastAddedTimestampUs = -samplingIntervalUs; // Initialize to allow the first frame at t=0
-
-                for (long timeUs = 0; timeUs < durationMs * 1000; timeUs += VIDEO_SAMPLING_INTERVAL_MS * 1000) {
-                    Bitmap frame = retriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
-                    if (frame != null) {
-                        long actualTimestampUs = timeUs; // In a real scenario, API 30's getFramesAtTime would be better. This is a good approximation.
-                        if (actualTimestampUs >= lastAddedTimestampUs + samplingIntervalUs) {
-                            frameTimestampsUs.add(actualTimestampUs);
-                            lastAddedTimestampUs = actualTimestampUs;
-                        }
-                        frame.recycle();
-                    }
-                }
-                if (frameTimestampsUs.isEmpty()) { // Add first frame if none were found
-                    frameTimestampsUs.add(0L);
-                }
-
-                for (int i = 0; i < frameTimestampsUs.size(); i++) {
-                    long currentFrameTimestampUs = frameTimestampsUs.get(i);
-                    Bitmap currentFrame = retriever.getFrameAtTime(currentFrameTimestampUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
-
-                    if (currentFrame != null) {
-                        float motionScore = 0.0f;
-
-                        if (i > 0) {
-                            long lastFrameTimestampUs = frameTimestampsUs.get(i - 1);
-                            long currentNanos = TimeUnit.MICROSECONDS.toNanos(currentFrameTimestampUs);
-                            long lastNanos = TimeUnit.MICROSECONDS.toNanos(lastFrameTimestampUs);
-
-                            float[] rotation = gyroscopeManager.getIntegratedRotation(lastNanos, currentNanos);
-                            motionScore = motionAnomalyDetector.detectAnomalies(currentFrame, rotation);
-                        } else {
-                            // For the very first frame, just initialize the detector.
-                            motionScore = motionAnomalyDetector.detectAnomalies(currentFrame, new float[3]);
-                        }
-
-                        boolean objectFound = objectDetector.containsDangerousObject(currentFrame);
-                        ClassificationResult currentFrameResult = (ClassificationResult) sceneClassifier.classifyScene(currentFrame);
-
-                        // Get other risk factors for the frame (e.g., lighting)
-                        float lightingRisk = lightingAnalyzer.analyzeLighting(currentFrame);
-
-                        int finalFrameRisk = riskCalculator.calculateRiskScore(currentFrameResult.riskScore, motionScore, lightingRisk, objectFound);
-
-                        // --- Update cumulative score using EMA ---
-                        cumulativeRisk = (alpha * finalFrameRisk) + ((1.0f - alpha) * cumulativeRisk);
-
-                        Log.d(TAG, String.format("Frame Risk: %d%% and Cumulative Risk: %.2f%%", finalFrameRisk, cumulativeRisk));
-
-
-                        // Check if this is the highest cumulative risk we've seen so far
-                        if (cumulativeRisk > maxCumulativeRisk) {
-                            maxCumulativeRisk = cumulativeRisk;
-                            resultAtMaxRisk = currentFrameResult;
-                        }
-
-                        lastFrameTimestamp = currentFrameTimestampUs;
-                    }
+                // Decoding, inference and the cumulative (EMA) risk run as overlapping stages. The video
+                // is decoded forward once; the sampler keeps few frames of static stretches and many
+                // around events.
+                AdaptiveFrameSampler sampler = new AdaptiveFrameSampler(SafeSphereApp.VIDEO_MIN_SAMPLING_INTERVAL_MS,
+                        SafeSphereApp.VIDEO_MAX_SAMPLING_INTERVAL_MS, SafeSphereApp.VIDEO_FRAME_BUDGET);
+                VideoAnalysisPipeline pipeline = new VideoAnalysisPipeline(orchestrator, motionAnomalyDetector);
+                pipeline.setSampler(sampler);
+                pipeline.setRotationSource((startUs, endUs) -> gyroscopeManager.getIntegratedRotation(
+                        TimeUnit.MICROSECONDS.toNanos(startUs), TimeUnit.MICROSECONDS.toNanos(endUs)));
+                try (FrameSource source = CodecFrameSource.open(this, videoUri, sampler)) {
+                    result = pipeline.run(source);
+                } finally {
+                    sampler.release();
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Log.e(TAG, "Video analysis interrupted", e);
             } catch (Exception e) {
                 Log.e(TAG, "Failed during video analysis", e);
-            } finally {
-                try {
-                    retriever.release();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
             }
 
-            int finalScoreToShowTemp = Math.round(maxCumulativeRisk);
-            ClassificationResult finalResultToShowTemp = resultAtMaxRisk;
+            int finalScoreToShowTemp = result == null ? 0 : result.peakRisk;
+            ClassificationResult finalResultToShowTemp = result == null ? null : result.resultAtPeak;
 
             if (finalResultToShowTemp == null) {
                 finalScoreToShowTemp = 0;
@@ -521,6 +614,7 @@ public class DetectionActivity extends AppCompatActivity {
     private void updateUiForAnalysis() {
         captureButton.setVisibility(View.GONE);
         captureInstructions.setVisibility(View.GONE);
+        liveModeButton.setVisibility(View.GONE);
         capturedImagePreview.setVisibility(View.VISIBLE);
         analyzeButton.setVisibility(View.VISIBLE);
     }
@@ -541,6 +635,7 @@ public class DetectionActivity extends AppCompatActivity {
         analyzeButton.setVisibility(View.GONE);
         captureButton.setVisibility(View.VISIBLE);
         captureInstructions.setVisibility(View.VISIBLE);
+        liveModeButton.setVisibility(View.VISIBLE);
     }
 
 
@@ -557,10 +652,15 @@ public class DetectionActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        // Queued behind any running analysis, so the models are only returned once it is done.
+        liveMode = false;
+        cameraExecutor.execute(this::releaseLiveState);
+        cameraExecutor.execute(this::returnModels);
+        // After the orchestrator is closed, so no late motion stage still uses the detector.
+        cameraExecutor.execute(() -> {
+            if (motionAnomalyDetector != null) motionAnomalyDetector.release();
+        });
         cameraExecutor.shutdown();
-        if (sceneClassifier != null) sceneClassifier.close();
-        if (motionAnomalyDetector != null) motionAnomalyDetector.release();
         if (alertManager != null) alertManager.release();
-        if (objectDetector != null) objectDetector.close();
     }
 }
\ No newline at end of file
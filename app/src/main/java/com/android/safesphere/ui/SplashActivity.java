@@ -10,9 +10,12 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 import androidx.appcompat.app.AppCompatActivity;
 import com.android.safesphere.R;
+import com.android.safesphere.ml.InterpreterTuner;
 import com.android.safesphere.utils.ModelDownloader;
 
 import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class SplashActivity extends AppCompatActivity {
 
@@ -23,6 +26,7 @@ public class SplashActivity extends AppCompatActivity {
     private static final String DETECTOR_MODEL_NAME = "detector_model.tflite";
 
     private ModelDownloader modelDownloader;
+    private final ExecutorService tuningExecutor = Executors.newSingleThreadExecutor();
     private TextView statusText;
     private ProgressBar progressBar;
     private Button retryButton;
@@ -51,8 +55,22 @@ public class SplashActivity extends AppCompatActivity {
         File detectorModelFile = modelDownloader.getModelFile(DETECTOR_MODEL_NAME);
 
         if (clipModelFile.exists() && detectorModelFile.exists()) {
-            statusText.setText("Models found. Starting app...");
-            navigateToMain();
+            // isTuned reads preferences from disk, which the UI thread should not wait for.
+            tuningExecutor.execute(() -> {
+                boolean tuned = InterpreterTuner.isTuned(getApplicationContext(), clipModelFile)
+                        && InterpreterTuner.isTuned(getApplicationContext(), detectorModelFile);
+                runOnUiThread(() -> {
+                    if (isFinishing() || isDestroyed()) {
+                        return;
+                    }
+                    if (tuned) {
+                        statusText.setText("Models found. Starting app...");
+                        navigateToMain();
+                    } else {
+                        tuneModels(clipModelFile, detectorModelFile);
+                    }
+                });
+            });
         } else {
             // We need to download at least one model
             downloadModels();
@@ -93,6 +111,28 @@ public class SplashActivity extends AppCompatActivity {
         }
     }
 
+    // One-time benchmark of the interpreter settings for this device; later loads reuse the result.
+    private void tuneModels(File clipModelFile, File detectorModelFile) {
+        statusText.setText("Optimizing models for this device...");
+        tuningExecutor.execute(() -> {
+            InterpreterTuner.tune(getApplicationContext(), clipModelFile);
+            InterpreterTuner.tune(getApplicationContext(), detectorModelFile);
+            runOnUiThread(() -> {
+                if (isFinishing() || isDestroyed()) {
+                    return;
+                }
+                statusText.setText("Models ready. Starting app...");
+                navigateToMain();
+            });
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        tuningExecutor.shutdown();
+    }
+
     private void showError(String message) {
         statusText.setText(message);
         progressBar.setVisibility(View.GONE);
@@ -0,0 +1,144 @@
+package com.android.safesphere.ml;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveFrameSamplerTest {
+    private static final long MIN_MS = 200;
+    private static final long MAX_MS = 2000;
+    private static final long SECOND_US = 1_000_000;
+    private static final float STILL = 0.0f;
+    private static final float CHANGED = 30.0f;
+
+    @Test
+    public void startsSparseAtTheFirstFrame() {
+        AdaptiveFrameSampler sampler = new AdaptiveFrameSampler(MIN_MS, MAX_MS, 100);
+        assertEquals(0, sampler.nextSampleUs(-1));
+        assertEquals(MAX_MS * 1000, sampler.nextSampleUs(0));
+    }
+
+    @Test
+    public void changedFrameSamplesDenselyAndStillFramesBackOff() {
+        AdaptiveFrameSampler sampler = new AdaptiveFrameSampler(MIN_MS, MAX_MS, 100);
+        sampler.onFrameChange(CHANGED);
+        assertEquals(MIN_MS * 1000, sampler.nextSampleUs(0));
+
+        // Each still frame grows the interval by half, up to the maximum.
+        long expectedUs = MIN_MS * 1000;
+        for (int i = 0; i < 10; i++) {
+            sampler.onFrameChange(STILL);
+            expectedUs = Math.min(MAX_MS * 1000, (long) (expectedUs * 1.5f));
+            assertEquals(expectedUs, sampler.nextSampleUs(0));
+        }
+        assertEquals(MAX_MS * 1000, expectedUs);
+    }
+
+    @Test
+    public void smallChangesDoNotTrigger() {
+        AdaptiveFrameSampler sampler = new AdaptiveFrameSampler(MIN_MS, MAX_MS, 100);
+        sampler.onFrameChange(5.0f);
+        assertEquals(MAX_MS * 1000, sampler.nextSampleUs(0));
+    }
+
+    @Test
+    public void motionAndRisingRiskTrigger() {
+        AdaptiveFrameSampler sampler = new AdaptiveFrameSampler(MIN_MS, MAX_MS, 100);
+        sampler.onFrameAnalyzed(analysis(25.0f), 0.0f);
+        assertEquals(MIN_MS * 1000, sampler.nextSampleUs(0));
+
+        sampler = new AdaptiveFrameSampler(MIN_MS, MAX_MS, 100);
+        sampler.onFrameAnalyzed(analysis(0.0f), 50.0f); // The first risk only sets the baseline.
+        assertEquals(MAX_MS * 1000, sampler.nextSampleUs(0));
+        sampler.onFrameAnalyzed(analysis(0.0f), 51.0f);
+        assertEquals(MAX_MS * 1000, sampler.nextSampleUs(0));
+        sampler.onFrameAnalyzed(analysis(0.0f), 54.0f);
+        assertEquals(MIN_MS * 1000, sampler.nextSampleUs(0));
+    }
+
+    @Test
+    public void quietAnalysisDoesNotBackOff() {
+        AdaptiveFrameSampler sampler = new AdaptiveFrameSampler(MIN_MS, MAX_MS, 100);
+        sampler.onFrameChange(CHANGED);
+        sampler.onFrameAnalyzed(analysis(0.0f), 10.0f);
+        assertEquals(MIN_MS * 1000, sampler.nextSampleUs(0));
+    }
+
+    @Test
+    public void fixedRateIgnoresChangesAndHasNoBudget() {
+        AdaptiveFrameSampler sampler = AdaptiveFrameSampler.fixed(500);
+        sampler.setDurationUs(3600 * SECOND_US);
+        for (int i = 0; i < 1000; i++) {
+            sampler.onFrameSampled();
+            sampler.onFrameChange(i % 2 == 0 ? CHANGED : STILL);
+            assertEquals(i * 500_000L + 500_000, sampler.nextSampleUs(i * 500_000L));
+        }
+    }
+
+    @Test
+    public void budgetIsSpreadOverTheWholeVideo() {
+        long durationUs = 60 * SECOND_US;
+        AdaptiveFrameSampler sampler = new AdaptiveFrameSampler(MIN_MS, MAX_MS, 20);
+        sampler.setDurationUs(durationUs);
+        List<Long> samples = sample(sampler, durationUs, 0, durationUs); // Changes all the time.
+
+        assertEquals(20, samples.size());
+        assertEquals(20, sampler.getSampledFrames());
+        assertEquals(-1, sampler.nextSampleUs(samples.get(samples.size() - 1)));
+        // The budget lasts to the end instead of being spent densely at the start.
+        assertTrue(samples.get(samples.size() - 1) >= durationUs - 2 * durationUs / 20);
+    }
+
+    @Test
+    public void burstIsSampledAsDenselyAsAFixedMinimumRate() {
+        long durationUs = 60 * SECOND_US;
+        long burstStartUs = 20 * SECOND_US;
+        long burstEndUs = 25 * SECOND_US;
+        AdaptiveFrameSampler sampler = new AdaptiveFrameSampler(MIN_MS, MAX_MS, 1000);
+        sampler.setDurationUs(durationUs);
+        List<Long> samples = sample(sampler, durationUs, burstStartUs, burstEndUs);
+
+        // Baseline: every frame a fixed sampler at the minimum interval would take inside the burst.
+        long firstInBurst = -1;
+        for (int i = 1; i < samples.size(); i++) {
+            long timeUs = samples.get(i);
+            if (timeUs >= burstStartUs && timeUs < burstEndUs) {
+                if (firstInBurst < 0) {
+                    firstInBurst = timeUs;
+                    // Noticed within one sparse interval.
+                    assertTrue(timeUs - burstStartUs < MAX_MS * 1000);
+                } else {
+                    assertEquals(MIN_MS * 1000, timeUs - samples.get(i - 1));
+                }
+            }
+        }
+        int baseline = (int) (durationUs / (MIN_MS * 1000));
+        assertTrue(samples.size() + " of " + baseline + " frames", samples.size() < baseline / 4);
+    }
+
+    /**
+     * Runs {@code sampler} the way {@link RetrieverFrameSource} does, with frames changing between
+     * {@code changeStartUs} and {@code changeEndUs} and still otherwise. Returns the sampled times.
+     */
+    private static List<Long> sample(AdaptiveFrameSampler sampler, long durationUs, long changeStartUs,
+                                     long changeEndUs) {
+        List<Long> samples = new ArrayList<>();
+        long cursorUs = -1;
+        long timeUs;
+        while ((timeUs = sampler.nextSampleUs(cursorUs)) >= 0 && timeUs < durationUs) {
+            cursorUs = timeUs;
+            samples.add(timeUs);
+            sampler.onFrameSampled();
+            sampler.onFrameChange(timeUs >= changeStartUs && timeUs < changeEndUs ? CHANGED : STILL);
+        }
+        return samples;
+    }
+
+    private static FrameAnalysis analysis(float motionScore) {
+        return new FrameAnalysis(0, null, motionScore, 0.0f, false, 0);
+    }
+}
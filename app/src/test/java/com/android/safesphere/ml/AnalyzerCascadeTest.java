@@ -0,0 +1,106 @@
+package com.android.safesphere.ml;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AnalyzerCascadeTest {
+    private static final float LEVEL = 120.0f;
+    private static final ClassificationResult SCENE = new ClassificationResult(10.0f, "street", 0.9f);
+
+    @Test
+    public void firstFrameIsRefreshed() {
+        AnalyzerCascade cascade = new AnalyzerCascade();
+        assertTrue(cascade.decide(0.0f, LEVEL));
+    }
+
+    @Test
+    public void staticFramesReuseResultsUntilStale() {
+        AnalyzerCascade cascade = new AnalyzerCascade();
+        refresh(cascade);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < AnalyzerCascade.DEFAULT_MAX_STALE_FRAMES; i++) {
+                assertFalse(cascade.decide(1.0f, LEVEL));
+            }
+            assertTrue("refresh forced after the stale limit", cascade.decide(1.0f, LEVEL));
+        }
+        assertEquals(3 * (AnalyzerCascade.DEFAULT_MAX_STALE_FRAMES + 1) + 1, cascade.getFrameCount());
+        assertEquals(3 * AnalyzerCascade.DEFAULT_MAX_STALE_FRAMES, cascade.getSkippedFrames());
+    }
+
+    @Test
+    public void changedFrameIsRefreshed() {
+        AnalyzerCascade cascade = new AnalyzerCascade();
+        refresh(cascade);
+        assertFalse(cascade.decide(AnalyzerCascade.DEFAULT_CHANGE_THRESHOLD, LEVEL));
+        assertTrue(cascade.decide(AnalyzerCascade.DEFAULT_CHANGE_THRESHOLD + 0.5f, LEVEL));
+    }
+
+    @Test
+    public void lightingDriftIsMeasuredFromTheLastRefresh() {
+        AnalyzerCascade cascade = new AnalyzerCascade(AnalyzerCascade.DEFAULT_CHANGE_THRESHOLD,
+                AnalyzerCascade.DEFAULT_LIGHTING_THRESHOLD, AnalyzerCascade.DEFAULT_MOTION_THRESHOLD, 100);
+        refresh(cascade);
+        // One gray level per frame: each step is small, but the drift adds up against the reference.
+        int frame = 1;
+        while (!cascade.decide(1.0f, LEVEL + frame)) {
+            frame++;
+        }
+        assertEquals((int) AnalyzerCascade.DEFAULT_LIGHTING_THRESHOLD + 1, frame);
+    }
+
+    @Test
+    public void motionOfThePreviousFrameForcesRefresh() {
+        AnalyzerCascade cascade = new AnalyzerCascade();
+        refresh(cascade);
+        cascade.onMotion(AnalyzerCascade.DEFAULT_MOTION_THRESHOLD + 1.0f);
+        assertTrue(cascade.decide(0.0f, LEVEL));
+        cascade.onMotion(0.0f);
+        assertFalse(cascade.decide(0.0f, LEVEL));
+    }
+
+    @Test
+    public void invalidatedResultsAreRefreshed() {
+        AnalyzerCascade cascade = new AnalyzerCascade();
+        refresh(cascade);
+        cascade.invalidate();
+        assertTrue(cascade.decide(0.0f, LEVEL));
+    }
+
+    @Test
+    public void reusedResultsMatchRefreshingEveryFrame() {
+        // A stream of scenes, each held for a while, with sensor noise between frames of one scene
+        // and a cut to the next. The baseline refreshes every frame, so its result is always the true
+        // scene; the cascade must return the same scene while skipping most frames.
+        Random random = new Random(1);
+        AnalyzerCascade cascade = new AnalyzerCascade();
+        ClassificationResult scene = null;
+        float level = LEVEL;
+        int frames = 2000;
+        for (int i = 0; i < frames; i++) {
+            boolean cut = scene == null || random.nextInt(40) == 0;
+            if (cut) {
+                scene = new ClassificationResult(random.nextInt(100), "scene " + i, 0.5f);
+                level = 60 + 120 * random.nextFloat();
+            }
+            float change = cut ? 20 + 40 * random.nextFloat() : 3 * random.nextFloat();
+            float frameLevel = level + random.nextFloat() - 0.5f;
+
+            if (cascade.decide(change, frameLevel)) {
+                cascade.onRefreshed(scene, false);
+            }
+            assertSame("frame " + i, scene, cascade.cachedScene());
+        }
+        assertTrue("skip ratio " + cascade.getSkipRatio(), cascade.getSkipRatio() > 0.75f);
+    }
+
+    private static void refresh(AnalyzerCascade cascade) {
+        assertTrue(cascade.decide(0.0f, LEVEL));
+        cascade.onRefreshed(SCENE, false);
+    }
+}
@@ -0,0 +1,140 @@
+package com.android.safesphere.ml;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the single-pass histogram score with the exact two-pass mean + 2 sigma score on synthetic
+ * flow fields, including heavy tails where many vectors are past the histogram's range.
+ */
+public class FlowAnomalyScorerTest {
+    private static final int VECTORS = 640 * 360;
+    // Score points; the interpolated threshold bin is 1/16 px wide.
+    private static final float TOLERANCE = 0.05f;
+
+    private final FlowAnomalyScorer scorer = new FlowAnomalyScorer();
+
+    @Test
+    public void emptyFieldScoresZero() {
+        assertEquals(0.0f, scorer.score(new float[0], 0, 1.0f), 0.0f);
+    }
+
+    @Test
+    public void uniformMotionHasNoAnomalies() {
+        float[] flow = new float[2 * VECTORS];
+        for (int i = 0; i < VECTORS; i++) {
+            flow[2 * i] = 3.0f;
+            flow[2 * i + 1] = 4.0f;
+        }
+        assertEquals(exactScore(flow, VECTORS, 1.0f), scorer.score(flow, VECTORS, 1.0f), 0.0f);
+    }
+
+    @Test
+    public void gaussianJitterMatchesExactScore() {
+        float[] flow = gaussian(new Random(1), 0.0f, 0.8f);
+        assertMatchesExact(flow, 1.0f);
+    }
+
+    @Test
+    public void movingObjectMatchesExactScore() {
+        Random random = new Random(2);
+        float[] flow = gaussian(random, 0.0f, 0.5f);
+        // A block of fast motion covering 5% of the frame.
+        for (int i = 0; i < VECTORS / 20; i++) {
+            flow[2 * i] = 12.0f + (float) random.nextGaussian();
+            flow[2 * i + 1] = -6.0f + (float) random.nextGaussian();
+        }
+        assertMatchesExact(flow, 1.0f);
+    }
+
+    @Test
+    public void downscaledFlowMatchesExactScore() {
+        float[] flow = gaussian(new Random(3), 0.5f, 1.5f);
+        assertMatchesExact(flow, 3.0f);
+    }
+
+    @Test
+    public void heavyTailPastHistogramMatchesExactScore() {
+        Random random = new Random(4);
+        float[] flow = gaussian(random, 0.0f, 2.0f);
+        // A quarter of the vectors move 64-400 px, so the threshold itself lands past the histogram.
+        for (int i = 0; i < VECTORS / 4; i++) {
+            float magnitude = 64.0f + 336.0f * random.nextFloat();
+            double angle = 2 * Math.PI * random.nextDouble();
+            flow[2 * i] = (float) (magnitude * Math.cos(angle));
+            flow[2 * i + 1] = (float) (magnitude * Math.sin(angle));
+        }
+        assertMatchesExact(flow, 1.0f);
+    }
+
+    @Test
+    public void paretoTailMatchesExactScore() {
+        Random random = new Random(5);
+        float[] flow = new float[2 * VECTORS];
+        for (int i = 0; i < VECTORS; i++) {
+            // Pareto magnitudes with shape 1.5: most vectors are small, a long tail is far past 64 px.
+            float magnitude = (float) (0.5 / Math.pow(1.0 - random.nextDouble(), 1.0 / 1.5));
+            double angle = 2 * Math.PI * random.nextDouble();
+            flow[2 * i] = (float) (magnitude * Math.cos(angle));
+            flow[2 * i + 1] = (float) (magnitude * Math.sin(angle));
+        }
+        assertMatchesExact(flow, 1.0f);
+    }
+
+    @Test
+    public void reusedScorerMatchesFreshOne() {
+        float[] heavy = gaussian(new Random(6), 100.0f, 50.0f);
+        float[] calm = gaussian(new Random(7), 0.0f, 1.0f);
+        scorer.score(heavy, VECTORS, 1.0f);
+        assertEquals(new FlowAnomalyScorer().score(calm, VECTORS, 1.0f), scorer.score(calm, VECTORS, 1.0f), 0.0f);
+    }
+
+    private void assertMatchesExact(float[] flow, float scale) {
+        float exact = exactScore(flow, VECTORS, scale);
+        float score = scorer.score(flow, VECTORS, scale);
+        assertEquals("exact " + exact + ", histogram " + score, exact, score, TOLERANCE);
+    }
+
+    private static float[] gaussian(Random random, float mean, float sigma) {
+        float[] flow = new float[2 * VECTORS];
+        for (int i = 0; i < flow.length; i++) {
+            flow[i] = mean + sigma * (float) random.nextGaussian();
+        }
+        return flow;
+    }
+
+    /** The original two-pass score: statistics first, then every magnitude against the threshold. */
+    private static float exactScore(float[] flow, int vectors, float scale) {
+        double[] magnitudes = new double[vectors];
+        double sum = 0.0;
+        for (int i = 0; i < vectors; i++) {
+            double dx = flow[2 * i] * scale;
+            double dy = flow[2 * i + 1] * scale;
+            magnitudes[i] = Math.sqrt(dx * dx + dy * dy);
+            sum += magnitudes[i];
+        }
+        double mean = sum / vectors;
+        double variance = 0.0;
+        for (double magnitude : magnitudes) {
+            variance += (magnitude - mean) * (magnitude - mean);
+        }
+        double threshold = mean + 2.0 * Math.sqrt(variance / vectors);
+
+        int anomalies = 0;
+        double anomalySum = 0.0;
+        for (double magnitude : magnitudes) {
+            if (magnitude > threshold) {
+                anomalies++;
+                anomalySum += magnitude;
+            }
+        }
+        if (anomalies == 0) {
+            return 0.0f;
+        }
+        float anomalyAreaScore = ((float) anomalies / vectors) * 100.0f;
+        return anomalyAreaScore * (float) Math.max(1.0, anomalySum / anomalies / 7.0);
+    }
+}
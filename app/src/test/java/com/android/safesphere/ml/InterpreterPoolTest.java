@@ -0,0 +1,149 @@
+package com.android.safesphere.ml;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InterpreterPoolTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    /** A session whose usability the test controls. */
+    private static final class Session implements AutoCloseable {
+        final boolean usable;
+        boolean closed = false;
+
+        Session(boolean usable) {
+            this.usable = usable;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void releasedSessionIsReused() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        InterpreterPool<Session> pool = new InterpreterPool<>("test", 2, () -> {
+            created.incrementAndGet();
+            return new Session(true);
+        }, session -> session.usable);
+        Session first = pool.acquire();
+        pool.release(first);
+        assertSame(first, pool.acquire());
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    public void timedAcquireGivesUpWhenFull() throws Exception {
+        InterpreterPool<Session> pool = new InterpreterPool<>("test", 1, () -> new Session(true));
+        pool.acquire();
+        assertNull(pool.acquire(10, TimeUnit.MILLISECONDS));
+        assertEquals(1, pool.getWaitCount());
+    }
+
+    @Test
+    public void discardedSessionWakesWaiter() throws Exception {
+        // A model that fails to load: every session is unusable and discarded on release.
+        InterpreterPool<Session> pool = new InterpreterPool<>("test", 2, () -> new Session(false),
+                session -> session.usable);
+        Session first = pool.acquire();
+        Session second = pool.acquire();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Session> third = executor.submit(() -> pool.acquire());
+            waitUntilBlocked(pool, 3);
+            pool.release(first);
+            Session session = third.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(session);
+            assertTrue(first.closed);
+            assertNotSame(first, session);
+            assertEquals(2, pool.getSize());
+            pool.release(second);
+            pool.release(session);
+            assertEquals(0, pool.getSize());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedCreationWakesWaiter() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        InterpreterPool<Session> pool = new InterpreterPool<>("test", 1, () -> {
+            if (calls.incrementAndGet() == 2) {
+                throw new IllegalStateException("model failed to load");
+            }
+            return new Session(false);
+        }, session -> session.usable);
+        Session first = pool.acquire();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Session> failing = executor.submit(() -> pool.acquire());
+            Future<Session> waiting = executor.submit(() -> pool.acquire());
+            waitUntilBlocked(pool, 3);
+            // The released slot goes to one caller whose creation fails; the other must then get it.
+            pool.release(first);
+            int failures = 0;
+            Session session = null;
+            for (Future<Session> future : Arrays.asList(failing, waiting)) {
+                try {
+                    session = future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IllegalStateException);
+                    failures++;
+                }
+            }
+            assertEquals(1, failures);
+            assertNotNull(session);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closeFailsWaiters() throws Exception {
+        InterpreterPool<Session> pool = new InterpreterPool<>("test", 1, () -> new Session(true));
+        Session session = pool.acquire();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Session> waiting = executor.submit(() -> pool.acquire());
+            waitUntilBlocked(pool, 2);
+            pool.close();
+            try {
+                waiting.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                fail("Acquired from a closed pool.");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            pool.release(session);
+            assertTrue(session.closed);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Waits until {@code acquisitions} callers have entered the pool, then lets them reach wait(). */
+    private static void waitUntilBlocked(InterpreterPool<Session> pool, long acquisitions) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (pool.getAcquisitionCount() < acquisitions && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+    }
+}
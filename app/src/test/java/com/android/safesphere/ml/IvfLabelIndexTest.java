@@ -0,0 +1,125 @@
+package com.android.safesphere.ml;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class IvfLabelIndexTest {
+    private static final int LABELS = 200;
+    private static final int DIMENSION = 16;
+
+    private SceneVocabulary vocabulary;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        vocabulary = TestVocabularies.random(new Random(1), LABELS, DIMENSION);
+        file = File.createTempFile("labels", ".ivf");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void writtenIndexReadsBack() throws IOException {
+        IvfLabelIndex built = IvfLabelIndex.build(vocabulary, 14);
+        built.write(file);
+        IvfLabelIndex read = IvfLabelIndex.read(file, vocabulary);
+        assertEquals(built.listCount(), read.listCount());
+
+        float[] query = TestVocabularies.unitVector(new Random(2), DIMENSION);
+        assertArrayEquals(topIndices(built, query), topIndices(read, query));
+    }
+
+    @Test
+    public void rejectsIndexOfAnotherVocabulary() throws IOException {
+        IvfLabelIndex.build(vocabulary, 14).write(file);
+        assertRejected(TestVocabularies.random(new Random(3), LABELS, DIMENSION));
+    }
+
+    @Test
+    public void rejectsEmptyFile() throws IOException {
+        new RandomAccessFile(file, "rw").close();
+        assertRejected(vocabulary);
+    }
+
+    @Test
+    public void rejectsTruncatedHeader() throws IOException {
+        IvfLabelIndex.build(vocabulary, 14).write(file);
+        truncate(20);
+        assertRejected(vocabulary);
+    }
+
+    @Test
+    public void rejectsTruncatedLists() throws IOException {
+        IvfLabelIndex.build(vocabulary, 14).write(file);
+        truncate(file.length() - 4);
+        assertRejected(vocabulary);
+    }
+
+    @Test
+    public void rejectsCorruptListCount() throws IOException {
+        IvfLabelIndex.build(vocabulary, 14).write(file);
+        writeInt(24, Integer.MAX_VALUE);
+        assertRejected(vocabulary);
+    }
+
+    @Test
+    public void rejectsCorruptListOffsets() throws IOException {
+        IvfLabelIndex index = IvfLabelIndex.build(vocabulary, 14);
+        index.write(file);
+        int offsetsStart = 32 + 4 * index.listCount() * DIMENSION;
+        writeInt(offsetsStart + 4, LABELS + 100);
+        assertRejected(vocabulary);
+    }
+
+    @Test
+    public void rejectsOutOfRangeMember() throws IOException {
+        IvfLabelIndex.build(vocabulary, 14).write(file);
+        writeInt(file.length() - 4, -7);
+        assertRejected(vocabulary);
+    }
+
+    private void assertRejected(SceneVocabulary expected) {
+        try {
+            IvfLabelIndex.read(file, expected);
+            fail("Invalid label index was read.");
+        } catch (IOException e) {
+            // Callers rebuild the index.
+        }
+    }
+
+    private void truncate(long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    private void writeInt(long position, int value) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            raf.writeInt(Integer.reverseBytes(value)); // The index is little-endian.
+        }
+    }
+
+    private int[] topIndices(LabelIndex index, float[] query) {
+        LabelMatches matches = new LabelMatches(5);
+        index.search(query, matches);
+        int[] indices = new int[matches.count()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = matches.index(i);
+        }
+        return indices;
+    }
+}
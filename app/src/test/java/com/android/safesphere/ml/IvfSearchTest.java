@@ -0,0 +1,149 @@
+package com.android.safesphere.ml;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares IVF k-means clustering and probing with the brute-force {@link ExactLabelIndex}, before and
+ * after the vocabulary is swapped.
+ */
+public class IvfSearchTest {
+    private static final int LABELS = 2000;
+    private static final int DIMENSION = 64;
+    private static final int QUERIES = 200;
+    private static final float TEMPERATURE = SceneClassifier.SOFTMAX_TEMPERATURE;
+
+    private SceneVocabulary vocabulary;
+    private IvfLabelIndex index;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        vocabulary = TestVocabularies.clustered(new Random(1), LABELS, DIMENSION, 60, 0.05f);
+        index = IvfLabelIndex.build(vocabulary, 45);
+        directory = File.createTempFile("labels", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        new File(directory, IvfLabelIndex.FILE_NAME).delete();
+        directory.delete();
+    }
+
+    @Test
+    public void listsPartitionTheVocabulary() {
+        // Probing every list scans each label exactly once, so the full softmax count is N.
+        index.setProbeCount(index.listCount());
+        LabelMatches matches = new LabelMatches(LABELS);
+        index.search(TestVocabularies.unitVector(new Random(2), DIMENSION), matches);
+        assertEquals(LABELS, matches.count());
+        boolean[] seen = new boolean[LABELS];
+        for (int rank = 0; rank < matches.count(); rank++) {
+            assertTrue("label " + matches.index(rank) + " listed twice", !seen[matches.index(rank)]);
+            seen[matches.index(rank)] = true;
+        }
+    }
+
+    @Test
+    public void probingAllListsMatchesExactSearch() {
+        index.setProbeCount(index.listCount());
+        ExactLabelIndex exact = new ExactLabelIndex(vocabulary);
+        LabelMatches exactMatches = new LabelMatches(5);
+        LabelMatches ivfMatches = new LabelMatches(5);
+        exactMatches.setSoftmaxTemperature(TEMPERATURE);
+        ivfMatches.setSoftmaxTemperature(TEMPERATURE);
+        Random random = new Random(3);
+        for (int q = 0; q < QUERIES; q++) {
+            float[] query = TestVocabularies.queryNear(vocabulary, random.nextInt(LABELS), random, 0.03f);
+            exact.search(query, exactMatches);
+            index.search(query, ivfMatches);
+            assertEquals(exactMatches.count(), ivfMatches.count());
+            for (int rank = 0; rank < exactMatches.count(); rank++) {
+                assertEquals(exactMatches.score(rank), ivfMatches.score(rank), 0.0f);
+                assertEquals(exactMatches.probability(rank), ivfMatches.probability(rank), 1e-4f);
+            }
+        }
+    }
+
+    @Test
+    public void defaultProbingFindsTheExactBestMatch() {
+        assertRecall(vocabulary, index, new Random(4));
+    }
+
+    @Test
+    public void unscannedListsStayWithinTheDenominatorTolerance() {
+        assertDenominatorWithinTolerance(vocabulary, index, new Random(5), 0.03f);
+    }
+
+    @Test
+    public void looseClustersStayWithinTheDenominatorTolerance() throws IOException {
+        // Members spread far around their centroids, and queries between labels: many unprobed labels
+        // score close to the best one, which a per-list average underestimates badly.
+        SceneVocabulary loose = TestVocabularies.clustered(new Random(8), LABELS, DIMENSION, 60, 0.2f);
+        assertDenominatorWithinTolerance(loose, IvfLabelIndex.build(loose, 45), new Random(9), 0.15f);
+    }
+
+    @Test
+    public void swappedVocabularyRebuildsItsIndex() throws IOException {
+        IvfLabelIndex.loadOrBuild(directory, vocabulary);
+        SceneVocabulary swapped = TestVocabularies.clustered(new Random(6), LABELS, DIMENSION, 60, 0.05f);
+
+        // The persisted index belongs to the old vocabulary and must not be reused for the new one.
+        IvfLabelIndex rebuilt = IvfLabelIndex.loadOrBuild(directory, swapped);
+        assertRecall(swapped, rebuilt, new Random(7));
+        IvfLabelIndex reloaded = IvfLabelIndex.loadOrBuild(directory, swapped);
+        assertEquals(rebuilt.listCount(), reloaded.listCount());
+        assertRecall(swapped, reloaded, new Random(7));
+    }
+
+    private static void assertDenominatorWithinTolerance(SceneVocabulary vocabulary, IvfLabelIndex index,
+                                                         Random random, float noise) {
+        ExactLabelIndex exact = new ExactLabelIndex(vocabulary);
+        LabelMatches exactMatches = new LabelMatches(1);
+        LabelMatches ivfMatches = new LabelMatches(1);
+        exactMatches.setSoftmaxTemperature(TEMPERATURE);
+        ivfMatches.setSoftmaxTemperature(TEMPERATURE);
+        // Only labels bounded by the tolerance are left out, so the denominator is at most that low.
+        float tolerance = (float) (IvfLabelIndex.DENOMINATOR_TOLERANCE / (1 - IvfLabelIndex.DENOMINATOR_TOLERANCE));
+        for (int q = 0; q < QUERIES; q++) {
+            float[] query = TestVocabularies.queryNear(vocabulary, random.nextInt(vocabulary.size()), random, noise);
+            exact.search(query, exactMatches);
+            index.search(query, ivfMatches);
+            if (exactMatches.index(0) == ivfMatches.index(0)) {
+                float expected = exactMatches.probability(0);
+                float actual = ivfMatches.probability(0);
+                assertTrue("query " + q + ": " + actual + " < " + expected, actual >= expected * (1 - 1e-5f));
+                assertTrue("query " + q + ": " + actual + " > " + expected,
+                        actual <= expected * (1 + tolerance) + 1e-6f);
+            }
+        }
+    }
+
+    private static void assertRecall(SceneVocabulary vocabulary, IvfLabelIndex index, Random random) {
+        ExactLabelIndex exact = new ExactLabelIndex(vocabulary);
+        LabelMatches exactMatches = new LabelMatches(1);
+        LabelMatches ivfMatches = new LabelMatches(1);
+        int agreements = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            float[] query = TestVocabularies.queryNear(vocabulary, random.nextInt(vocabulary.size()), random, 0.03f);
+            exact.search(query, exactMatches);
+            index.search(query, ivfMatches);
+            // Scores of the labels that were scanned are always exact.
+            assertEquals(vocabulary.similarity(ivfMatches.index(0), query), ivfMatches.score(0), 0.0f);
+            if (exactMatches.index(0) == ivfMatches.index(0)) {
+                agreements++;
+            }
+        }
+        assertTrue("agreement " + agreements + "/" + QUERIES, agreements >= QUERIES * 0.95);
+    }
+}
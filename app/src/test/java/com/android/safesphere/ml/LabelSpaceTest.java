@@ -0,0 +1,162 @@
+package com.android.safesphere.ml;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Swaps the classifier's label snapshot while searches run against it, comparing every search with a
+ * fresh exact scan of the vocabulary that search started from.
+ */
+public class LabelSpaceTest {
+    private static final int DIMENSION = 32;
+    private static final int SWAPS = 200;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private final Random random = new Random(1);
+    private SceneVocabulary small;
+    private SceneVocabulary large;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        small = TestVocabularies.random(random, 50, DIMENSION);
+        large = TestVocabularies.random(random, 400, DIMENSION);
+        directory = File.createTempFile("labels", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        new File(directory, IvfLabelIndex.FILE_NAME).delete();
+        directory.delete();
+    }
+
+    @Test
+    public void updateKeepsTheModeAndLeavesOldSnapshotsIntact() {
+        LabelSpace.Publisher publisher = new LabelSpace.Publisher(directory, small, SceneClassifier.MatchingMode.QUANTIZED);
+        LabelSpace before = publisher.get();
+        LabelSpace after = publisher.updateVocabulary(large);
+        assertSame(after, publisher.get());
+        assertSame(large, after.vocabulary);
+        assertEquals(SceneClassifier.MatchingMode.QUANTIZED, after.mode);
+        assertTrue(after.labelIndex instanceof QuantizedLabelIndex);
+        assertNotSame(before.exactIndex, after.exactIndex);
+        // A frame that read the old snapshot keeps scoring against the old labels.
+        assertSame(small, before.vocabulary);
+        assertMatchesExactScan(before, TestVocabularies.unitVector(random, DIMENSION));
+        assertMatchesExactScan(after, TestVocabularies.unitVector(random, DIMENSION));
+    }
+
+    @Test
+    public void modeSwitchKeepsTheVocabulary() {
+        LabelSpace.Publisher publisher = new LabelSpace.Publisher(directory, small, SceneClassifier.MatchingMode.EXACT);
+        assertSame(publisher.get().exactIndex, publisher.get().labelIndex);
+        LabelSpace approximate = publisher.setMatchingMode(SceneClassifier.MatchingMode.APPROXIMATE);
+        assertSame(small, approximate.vocabulary);
+        assertTrue(approximate.labelIndex instanceof IvfLabelIndex);
+        assertTrue(new File(directory, IvfLabelIndex.FILE_NAME).exists());
+    }
+
+    @Test
+    public void searchesDuringSwapsSeeOneVocabulary() throws Exception {
+        LabelSpace.Publisher publisher = new LabelSpace.Publisher(directory, small, SceneClassifier.MatchingMode.EXACT);
+        AtomicBoolean swapping = new AtomicBoolean(true);
+        AtomicInteger searches = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> readers = new ArrayList<>();
+            for (int r = 0; r < 2; r++) {
+                Random readerRandom = new Random(10 + r);
+                readers.add(executor.submit(() -> {
+                    while (swapping.get()) {
+                        // Read the snapshot once, as scoring a frame does.
+                        LabelSpace space = publisher.get();
+                        assertMatchesExactScan(space, TestVocabularies.unitVector(readerRandom, DIMENSION));
+                        searches.incrementAndGet();
+                    }
+                }));
+            }
+            // Keep swapping until the readers have searched plenty of snapshots, unless one fails first.
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            for (int swap = 0; swap < SWAPS || searches.get() < SWAPS; swap++) {
+                if (readers.get(0).isDone() || readers.get(1).isDone() || System.nanoTime() > deadline) {
+                    break;
+                }
+                publisher.updateVocabulary(swap % 2 == 0 ? large : small);
+            }
+            swapping.set(false);
+            for (Future<?> reader : readers) {
+                reader.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            assertTrue(searches.get() >= SWAPS);
+        } finally {
+            swapping.set(false);
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentModeSwitchAndUpdateBothTakeEffect() throws Exception {
+        // Without the swap lock, a writer could publish a snapshot built from the vocabulary or mode the
+        // other writer was just replacing, undoing its change.
+        for (int round = 0; round < 100; round++) {
+            LabelSpace.Publisher publisher = new LabelSpace.Publisher(directory, small, SceneClassifier.MatchingMode.EXACT);
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            try {
+                Future<?> modes = executor.submit(() -> {
+                    for (int i = 0; i < 20; i++) {
+                        publisher.setMatchingMode(i % 2 == 0 ? SceneClassifier.MatchingMode.QUANTIZED
+                                : SceneClassifier.MatchingMode.EXACT);
+                    }
+                    publisher.setMatchingMode(SceneClassifier.MatchingMode.QUANTIZED);
+                });
+                Future<?> updates = executor.submit(() -> {
+                    for (int i = 0; i < 20; i++) {
+                        publisher.updateVocabulary(i % 2 == 0 ? large : small);
+                    }
+                    publisher.updateVocabulary(large);
+                });
+                modes.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                updates.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } finally {
+                executor.shutdownNow();
+            }
+            LabelSpace space = publisher.get();
+            assertSame(large, space.vocabulary);
+            assertEquals(SceneClassifier.MatchingMode.QUANTIZED, space.mode);
+            assertTrue(space.labelIndex instanceof QuantizedLabelIndex);
+        }
+    }
+
+    /** The snapshot's index must agree with an exact scan of the snapshot's own vocabulary. */
+    private static void assertMatchesExactScan(LabelSpace space, float[] query) {
+        LabelMatches matches = new LabelMatches(3);
+        LabelMatches expected = new LabelMatches(3);
+        space.labelIndex.search(query, matches);
+        new ExactLabelIndex(space.vocabulary).search(query, expected);
+        assertEquals(expected.count(), matches.count());
+        for (int rank = 0; rank < expected.count(); rank++) {
+            assertEquals(expected.index(rank), matches.index(rank));
+            assertEquals(expected.score(rank), matches.score(rank), 0.0f);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.android.safesphere.ml;
+
+import org.junit.Test;
+import org.tensorflow.lite.DataType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the detector's sort-key NMS with a baseline that sorts candidate objects by score and
+ * checks each one against every kept box.
+ */
+public class NonMaximumSuppressionTest {
+    private static final List<String> LABELS = Arrays.asList("person", "knife", "car", "pistol");
+    private static final int CHANNELS = 5 + 4;
+    private static final int CANDIDATES = 300;
+    private static final int TRIALS = 50;
+    private static final float SCORE_THRESHOLD = 0.25f;
+    private static final float IOU_THRESHOLD = 0.45f;
+
+    @Test
+    public void classAgnosticMatchesBaseline() {
+        assertMatchesBaseline(false, CANDIDATES);
+    }
+
+    @Test
+    public void perClassMatchesBaseline() {
+        assertMatchesBaseline(true, CANDIDATES);
+    }
+
+    @Test
+    public void capacityKeepsTheBestDetections() {
+        assertMatchesBaseline(false, 3);
+        assertMatchesBaseline(true, 3);
+    }
+
+    @Test
+    public void lowerScoringOverlapIsSuppressed() {
+        ObjectDetector detector = smallDetector();
+        float[] values = new float[CHANNELS * 3];
+        // Two heavily overlapping boxes and one apart, all of class 0.
+        setCandidate(values, 3, 0, 100, 100, 50, 50, 0.9f, 0);
+        setCandidate(values, 3, 1, 105, 100, 50, 50, 0.95f, 0);
+        setCandidate(values, 3, 2, 300, 300, 50, 50, 0.8f, 0);
+        fill(detector, values);
+        DetectionList detections = new DetectionList(10);
+        detector.decodeDetections(detections);
+        assertEquals(2, detections.count());
+        assertEquals(0.95f, detections.score(0), 1e-6f);
+        assertEquals(0.8f, detections.score(1), 1e-6f);
+    }
+
+    private void assertMatchesBaseline(boolean perClass, int capacity) {
+        Random random = new Random(perClass ? 2 : 1);
+        float[] values = new float[CHANNELS * CANDIDATES];
+        ObjectDetector detector = new ObjectDetector(LABELS, DataType.FLOAT32, CHANNELS, CANDIDATES, 1.0f, 0);
+        detector.setScoreThreshold(SCORE_THRESHOLD);
+        detector.setIouThreshold(IOU_THRESHOLD);
+        detector.setPerClassNms(perClass);
+        DetectionList detections = new DetectionList(capacity);
+        int suppressed = 0;
+        for (int trial = 0; trial < TRIALS; trial++) {
+            randomCrowdedOutput(values, random);
+            fill(detector, values);
+            detections.clear();
+            detector.decodeDetections(detections);
+
+            List<ObjectDetectorDecodingTest.Candidate> candidates =
+                    ObjectDetectorDecodingTest.baselineCandidates(values, SCORE_THRESHOLD);
+            List<ObjectDetectorDecodingTest.Candidate> expected = baselineNms(candidates, perClass, capacity);
+            assertEquals(expected.size(), detections.count());
+            for (int d = 0; d < expected.size(); d++) {
+                expected.get(d).assertEquals(new ObjectDetectorDecodingTest.Candidate(detections.left(d),
+                        detections.top(d), detections.right(d), detections.bottom(d), detections.classId(d),
+                        detections.score(d)));
+            }
+            suppressed += candidates.size() - expected.size();
+        }
+        // The crowded boxes must actually overlap, or the comparison proves nothing.
+        assertTrue(suppressed > 0);
+    }
+
+    /** Textbook greedy NMS: best first, dropping any box that overlaps a kept one too much. */
+    private static List<ObjectDetectorDecodingTest.Candidate> baselineNms(
+            List<ObjectDetectorDecodingTest.Candidate> candidates, boolean perClass, int capacity) {
+        List<ObjectDetectorDecodingTest.Candidate> sorted = new ArrayList<>(candidates);
+        sorted.sort((a, b) -> Float.compare(b.score, a.score));
+        List<ObjectDetectorDecodingTest.Candidate> kept = new ArrayList<>();
+        for (ObjectDetectorDecodingTest.Candidate candidate : sorted) {
+            if (kept.size() == capacity) {
+                break;
+            }
+            boolean suppressed = false;
+            for (ObjectDetectorDecodingTest.Candidate other : kept) {
+                if ((!perClass || other.classId == candidate.classId) && iou(candidate, other) > IOU_THRESHOLD) {
+                    suppressed = true;
+                    break;
+                }
+            }
+            if (!suppressed) {
+                kept.add(candidate);
+            }
+        }
+        return kept;
+    }
+
+    private static float iou(ObjectDetectorDecodingTest.Candidate a, ObjectDetectorDecodingTest.Candidate b) {
+        float width = Math.max(0.0f, Math.min(a.right, b.right) - Math.max(a.left, b.left));
+        float height = Math.max(0.0f, Math.min(a.bottom, b.bottom) - Math.max(a.top, b.top));
+        float intersection = width * height;
+        float union = (a.right - a.left) * (a.bottom - a.top) + (b.right - b.left) * (b.bottom - b.top) - intersection;
+        return intersection / union;
+    }
+
+    /** Candidates crowded around a few objects, as a detector reports them. */
+    private static void randomCrowdedOutput(float[] values, Random random) {
+        float[][] objects = new float[6][];
+        for (int o = 0; o < objects.length; o++) {
+            objects[o] = new float[] {640 * random.nextFloat(), 640 * random.nextFloat(),
+                    40 + 80 * random.nextFloat(), 40 + 80 * random.nextFloat()};
+        }
+        for (int i = 0; i < CANDIDATES; i++) {
+            float[] object = objects[random.nextInt(objects.length)];
+            setCandidate(values, CANDIDATES, i,
+                    object[0] + 15 * (float) random.nextGaussian(), object[1] + 15 * (float) random.nextGaussian(),
+                    object[2] * (0.8f + 0.4f * random.nextFloat()), object[3] * (0.8f + 0.4f * random.nextFloat()),
+                    random.nextFloat(), random.nextInt(LABELS.size()));
+        }
+    }
+
+    /** Writes one candidate whose class scores 1 and every other class 0.1, so its score is its objectness. */
+    private static void setCandidate(float[] values, int candidates, int i, float centerX, float centerY,
+                                     float width, float height, float objectness, int classId) {
+        values[i] = centerX;
+        values[candidates + i] = centerY;
+        values[2 * candidates + i] = width;
+        values[3 * candidates + i] = height;
+        values[4 * candidates + i] = objectness;
+        for (int c = 0; c < LABELS.size(); c++) {
+            values[(5 + c) * candidates + i] = c == classId ? 1.0f : 0.1f;
+        }
+    }
+
+    private static ObjectDetector smallDetector() {
+        ObjectDetector detector = new ObjectDetector(LABELS, DataType.FLOAT32, CHANNELS, 3, 1.0f, 0);
+        detector.setScoreThreshold(SCORE_THRESHOLD);
+        detector.setIouThreshold(IOU_THRESHOLD);
+        return detector;
+    }
+
+    private static void fill(ObjectDetector detector, float[] values) {
+        ByteBuffer buffer = detector.outputBuffer();
+        buffer.rewind();
+        buffer.asFloatBuffer().put(values);
+    }
+}
@@ -0,0 +1,224 @@
+package com.android.safesphere.ml;
+
+import org.junit.Test;
+import org.tensorflow.lite.DataType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the detector's survivor scan and candidate decoding with a baseline that dequantizes the
+ * whole output and checks every candidate, for float and quantized outputs.
+ */
+public class ObjectDetectorDecodingTest {
+    private static final List<String> LABELS = Arrays.asList("person", "knife", "car", "pistol");
+    private static final int CHANNELS = 5 + 4;
+    private static final int CANDIDATES = 64;
+    private static final int TRIALS = 500;
+    private static final float THRESHOLD = 0.85f; // The detector's default.
+
+    @Test
+    public void floatOutputFindsTheSameDangerousObjects() {
+        assertDangerousMatchesBaseline(DataType.FLOAT32, 1.0f, 0);
+    }
+
+    @Test
+    public void uint8OutputFindsTheSameDangerousObjects() {
+        assertDangerousMatchesBaseline(DataType.UINT8, 1.0f / 255, 0);
+    }
+
+    @Test
+    public void int8OutputFindsTheSameDangerousObjects() {
+        assertDangerousMatchesBaseline(DataType.INT8, 1.0f / 255, -128);
+    }
+
+    @Test
+    public void floatOutputDecodesTheSameCandidates() {
+        assertCandidatesMatchBaseline(DataType.FLOAT32, 1.0f, 0);
+    }
+
+    @Test
+    public void uint8OutputDecodesTheSameCandidates() {
+        assertCandidatesMatchBaseline(DataType.UINT8, 1.0f / 255, 0);
+    }
+
+    @Test
+    public void int8OutputDecodesTheSameCandidates() {
+        assertCandidatesMatchBaseline(DataType.INT8, 1.0f / 255, -128);
+    }
+
+    @Test
+    public void quantizedThresholdKeepsTheBoundaryValue() {
+        // 0.85 * 255 = 216.75: a raw objectness of 217 reaches the threshold, 216 does not.
+        ObjectDetector detector = new ObjectDetector(LABELS, DataType.UINT8, CHANNELS, 2, 1.0f / 255, 0);
+        byte[] raw = new byte[CHANNELS * 2];
+        raw[4 * 2] = (byte) 217;
+        raw[4 * 2 + 1] = (byte) 216;
+        raw[(5 + 1) * 2] = (byte) 255; // Both are certain knives.
+        raw[(5 + 1) * 2 + 1] = (byte) 255;
+        fill(detector, raw);
+        DetectionList detections = new DetectionList(2);
+        detector.setScoreThreshold(THRESHOLD);
+        detector.decodeDetections(detections);
+        assertEquals(1, detections.count());
+        assertEquals(217 / 255.0f, detections.score(0), 1e-6f);
+    }
+
+    private void assertDangerousMatchesBaseline(DataType type, float scale, int zeroPoint) {
+        Random random = new Random(1);
+        ObjectDetector detector = new ObjectDetector(LABELS, type, CHANNELS, CANDIDATES, scale, zeroPoint);
+        int found = 0;
+        for (int trial = 0; trial < TRIALS; trial++) {
+            float[] values = randomOutput(detector, type, scale, zeroPoint, random);
+            boolean expected = false;
+            for (Candidate candidate : baselineCandidates(values, THRESHOLD)) {
+                String label = LABELS.get(candidate.classId);
+                expected |= label.equals("knife") || label.equals("pistol");
+            }
+            assertEquals("trial " + trial, expected, detector.decodeDangerousObject());
+            found += expected ? 1 : 0;
+        }
+        // Both outcomes must be exercised.
+        assertTrue(found > TRIALS / 10 && found < TRIALS * 9 / 10);
+    }
+
+    private void assertCandidatesMatchBaseline(DataType type, float scale, int zeroPoint) {
+        Random random = new Random(2);
+        ObjectDetector detector = new ObjectDetector(LABELS, type, CHANNELS, CANDIDATES, scale, zeroPoint);
+        detector.setScoreThreshold(0.3f);
+        detector.setIouThreshold(1.0f); // IoU never exceeds 1, so nothing is suppressed.
+        DetectionList detections = new DetectionList(CANDIDATES);
+        for (int trial = 0; trial < TRIALS / 10; trial++) {
+            float[] values = randomOutput(detector, type, scale, zeroPoint, random);
+            List<Candidate> expected = baselineCandidates(values, 0.3f);
+            detections.clear();
+            detector.decodeDetections(detections);
+
+            assertEquals(expected.size(), detections.count());
+            List<Candidate> actual = new ArrayList<>();
+            for (int d = 0; d < detections.count(); d++) {
+                if (d > 0) {
+                    assertTrue("not sorted by score", detections.score(d) <= detections.score(d - 1));
+                }
+                actual.add(new Candidate(detections.left(d), detections.top(d), detections.right(d),
+                        detections.bottom(d), detections.classId(d), detections.score(d)));
+            }
+            expected.sort(null);
+            actual.sort(null);
+            for (int c = 0; c < expected.size(); c++) {
+                expected.get(c).assertEquals(actual.get(c));
+            }
+        }
+    }
+
+    /**
+     * Fills the detector's output with random candidates and returns the dequantized values: boxes of
+     * up to 100 px in a 640 px frame, objectness and class scores uniform in [0, 1].
+     */
+    private static float[] randomOutput(ObjectDetector detector, DataType type, float scale, int zeroPoint,
+                                        Random random) {
+        float[] values = new float[CHANNELS * CANDIDATES];
+        byte[] raw = new byte[values.length];
+        for (int c = 0; c < CHANNELS; c++) {
+            for (int i = 0; i < CANDIDATES; i++) {
+                int offset = c * CANDIDATES + i;
+                if (type == DataType.FLOAT32) {
+                    values[offset] = c < 2 ? 640 * random.nextFloat() : c < 4 ? 100 * random.nextFloat()
+                            : random.nextFloat();
+                } else {
+                    // Box channels share the score quantization in these tests; only decoding is checked.
+                    int q = random.nextInt(256);
+                    raw[offset] = (byte) (type == DataType.UINT8 ? q : q - 128);
+                    values[offset] = scale * ((type == DataType.UINT8 ? q : q - 128) - zeroPoint);
+                }
+            }
+        }
+        if (type == DataType.FLOAT32) {
+            ByteBuffer buffer = detector.outputBuffer();
+            buffer.rewind();
+            buffer.asFloatBuffer().put(values);
+        } else {
+            fill(detector, raw);
+        }
+        return values;
+    }
+
+    private static void fill(ObjectDetector detector, byte[] raw) {
+        ByteBuffer buffer = detector.outputBuffer();
+        buffer.rewind();
+        buffer.put(raw);
+    }
+
+    /** Every candidate whose objectness and final score reach {@code threshold}, in output order. */
+    static List<Candidate> baselineCandidates(float[] values, float threshold) {
+        List<Candidate> candidates = new ArrayList<>();
+        int n = values.length / CHANNELS;
+        for (int i = 0; i < n; i++) {
+            float objectness = values[4 * n + i];
+            int classId = -1;
+            float classScore = 0.0f;
+            for (int c = 5; c < CHANNELS; c++) {
+                if (values[c * n + i] > classScore) {
+                    classScore = values[c * n + i];
+                    classId = c - 5;
+                }
+            }
+            float score = objectness * classScore;
+            if (objectness >= threshold && classId != -1 && score >= threshold) {
+                float centerX = values[i];
+                float centerY = values[n + i];
+                float width = values[2 * n + i];
+                float height = values[3 * n + i];
+                candidates.add(new Candidate(centerX - 0.5f * width, centerY - 0.5f * height,
+                        centerX + 0.5f * width, centerY + 0.5f * height, classId, score));
+            }
+        }
+        return candidates;
+    }
+
+    /** A decoded box, ordered by descending score and then position so ties compare deterministically. */
+    static final class Candidate implements Comparable<Candidate> {
+        final float left;
+        final float top;
+        final float right;
+        final float bottom;
+        final int classId;
+        final float score;
+
+        Candidate(float left, float top, float right, float bottom, int classId, float score) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.classId = classId;
+            this.score = score;
+        }
+
+        void assertEquals(Candidate other) {
+            org.junit.Assert.assertEquals(left, other.left, 1e-4f);
+            org.junit.Assert.assertEquals(top, other.top, 1e-4f);
+            org.junit.Assert.assertEquals(right, other.right, 1e-4f);
+            org.junit.Assert.assertEquals(bottom, other.bottom, 1e-4f);
+            org.junit.Assert.assertEquals(classId, other.classId);
+            org.junit.Assert.assertEquals(score, other.score, 1e-6f);
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            int order = Float.compare(other.score, score);
+            if (order == 0) {
+                order = Float.compare(left, other.left);
+            }
+            if (order == 0) {
+                order = Float.compare(top, other.top);
+            }
+            return order;
+        }
+    }
+}
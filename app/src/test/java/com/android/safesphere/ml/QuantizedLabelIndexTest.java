@@ -0,0 +1,123 @@
+package com.android.safesphere.ml;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Compares int8 search and its exact re-scoring with the brute-force {@link ExactLabelIndex}. */
+public class QuantizedLabelIndexTest {
+    private static final int LABELS = 2000;
+    private static final int DIMENSION = 512;
+    private static final int QUERIES = 200;
+    private static final float TEMPERATURE = 0.015f;
+
+    private SceneVocabulary vocabulary;
+    private ExactLabelIndex exact;
+    private QuantizedLabelIndex quantized;
+
+    @Before
+    public void setUp() throws IOException {
+        vocabulary = TestVocabularies.clustered(new Random(1), LABELS, DIMENSION, 100, 0.05f);
+        exact = new ExactLabelIndex(vocabulary);
+        quantized = new QuantizedLabelIndex(vocabulary);
+    }
+
+    @Test
+    public void reportedScoresAreExact() {
+        Random random = new Random(2);
+        LabelMatches matches = new LabelMatches(4);
+        for (int q = 0; q < QUERIES; q++) {
+            float[] query = TestVocabularies.queryNear(vocabulary, random.nextInt(LABELS), random, 0.03f);
+            quantized.search(query, matches);
+            for (int rank = 0; rank < matches.count(); rank++) {
+                assertEquals(vocabulary.similarity(matches.index(rank), query), matches.score(rank), 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void bestMatchAgreesWithExactSearch() {
+        Random random = new Random(3);
+        LabelMatches exactMatches = new LabelMatches(1);
+        LabelMatches quantizedMatches = new LabelMatches(1);
+        int agreements = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            float[] query = TestVocabularies.queryNear(vocabulary, random.nextInt(LABELS), random, 0.03f);
+            exact.search(query, exactMatches);
+            quantized.search(query, quantizedMatches);
+            if (exactMatches.index(0) == quantizedMatches.index(0)) {
+                agreements++;
+            } else {
+                // A disagreement must be a near tie, not a wrong cluster.
+                assertEquals(exactMatches.score(0), quantizedMatches.score(0), 0.01f);
+            }
+        }
+        assertTrue("agreement " + agreements + "/" + QUERIES, agreements >= QUERIES * 0.98);
+    }
+
+    @Test
+    public void topMatchesAgreeWithExactSearch() {
+        Random random = new Random(4);
+        LabelMatches exactMatches = new LabelMatches(5);
+        LabelMatches quantizedMatches = new LabelMatches(5);
+        int found = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            float[] query = TestVocabularies.queryNear(vocabulary, random.nextInt(LABELS), random, 0.03f);
+            exact.search(query, exactMatches);
+            quantized.search(query, quantizedMatches);
+            for (int i = 0; i < exactMatches.count(); i++) {
+                for (int j = 0; j < quantizedMatches.count(); j++) {
+                    if (exactMatches.index(i) == quantizedMatches.index(j)) {
+                        found++;
+                        break;
+                    }
+                }
+            }
+        }
+        float recall = (float) found / (QUERIES * 5);
+        assertTrue("recall@5 " + recall, recall >= 0.95f);
+    }
+
+    @Test
+    public void softmaxMatchesExactDenominator() {
+        Random random = new Random(5);
+        LabelMatches exactMatches = new LabelMatches(4);
+        LabelMatches quantizedMatches = new LabelMatches(4);
+        exactMatches.setSoftmaxTemperature(TEMPERATURE);
+        quantizedMatches.setSoftmaxTemperature(TEMPERATURE);
+        for (int q = 0; q < QUERIES; q++) {
+            float[] query = TestVocabularies.queryNear(vocabulary, random.nextInt(LABELS), random, 0.03f);
+            exact.search(query, exactMatches);
+            quantized.search(query, quantizedMatches);
+            if (exactMatches.index(0) == quantizedMatches.index(0)) {
+                float expected = exactMatches.probability(0);
+                assertEquals(expected, quantizedMatches.probability(0), 0.05f * expected + 1e-4f);
+            }
+        }
+    }
+
+    @Test
+    public void exactLabelEmbeddingFindsItself() {
+        float[] query = new float[DIMENSION];
+        LabelMatches matches = new LabelMatches(1);
+        for (int i = 0; i < LABELS; i += 97) {
+            vocabulary.copyEmbedding(i, query);
+            quantized.search(query, matches);
+            assertEquals(vocabulary.similarity(i, query), matches.score(0), 1e-6f);
+            assertEquals(1.0f, matches.score(0), 1e-4f);
+        }
+    }
+
+    @Test
+    public void zeroQueryScoresZero() {
+        LabelMatches matches = new LabelMatches(3);
+        quantized.search(new float[DIMENSION], matches);
+        assertEquals(3, matches.count());
+        assertEquals(0.0f, matches.score(0), 0.0f);
+    }
+}
@@ -0,0 +1,227 @@
+package com.android.safesphere.ml;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Round-trips vocabularies through the binary layout and checks that files drifting from it are
+ * rejected. {@link #compileLikeGradle} mirrors the {@code compileSceneVocabulary} task byte for byte.
+ */
+public class SceneVocabularyTest {
+    private static final String[] LABELS = {"street", "kitchen", "café terrace"};
+    private static final float[] RISKS = {10.0f, 35.5f, 0.0f};
+    private static final int DIMENSION = 4;
+    private static final float[] EMBEDDINGS = {
+            3, 0, 4, 0,
+            0, 0, 0, 2,
+            1, 1, 1, 1,
+    };
+
+    @Test
+    public void encodedVocabularyRoundTrips() throws IOException {
+        SceneVocabulary vocabulary = SceneVocabulary.fromBuffer(
+                SceneVocabulary.encode(LABELS, RISKS, EMBEDDINGS, DIMENSION));
+        assertMatchesSource(vocabulary, 1e-6f);
+    }
+
+    @Test
+    public void gradleFloat32FileRoundTrips() throws IOException {
+        assertMatchesSource(SceneVocabulary.fromBuffer(compileLikeGradle(false)), 1e-6f);
+    }
+
+    @Test
+    public void gradleFloat16FileRoundTrips() throws IOException {
+        assertMatchesSource(SceneVocabulary.fromBuffer(compileLikeGradle(true)), 1e-3f);
+    }
+
+    @Test
+    public void gradleAndRuntimeEncodingAreIdentical() {
+        ByteBuffer runtime = SceneVocabulary.encode(LABELS, RISKS, EMBEDDINGS, DIMENSION);
+        ByteBuffer gradle = compileLikeGradle(false);
+        assertEquals(0, runtime.compareTo(gradle));
+    }
+
+    @Test
+    public void emptyVocabularyIsValid() {
+        assertEquals(0, SceneVocabulary.empty().size());
+    }
+
+    @Test
+    public void rejectsWrongMagic() {
+        assertRejected(withInt(0, 0x12345678));
+    }
+
+    @Test
+    public void rejectsUnknownVersion() {
+        assertRejected(withInt(4, SceneVocabulary.VERSION + 1));
+    }
+
+    @Test
+    public void rejectsUnknownElementType() {
+        assertRejected(withInt(16, 7));
+    }
+
+    @Test
+    public void rejectsMovedLabelTable() {
+        assertRejected(withInt(20, SceneVocabulary.HEADER_SIZE + 4));
+    }
+
+    @Test
+    public void rejectsRisksOverlappingLabels() {
+        assertRejected(withInt(24, SceneVocabulary.HEADER_SIZE + 4));
+    }
+
+    @Test
+    public void rejectsMisalignedEmbeddings() {
+        ByteBuffer file = valid();
+        assertRejected(withInt(28, file.getInt(28) + 4));
+    }
+
+    @Test
+    public void rejectsTruncatedFile() {
+        ByteBuffer file = valid();
+        ByteBuffer truncated = ByteBuffer.allocate(file.capacity() - 4);
+        truncated.put(file.array(), 0, truncated.capacity()).rewind();
+        assertRejected(truncated);
+    }
+
+    @Test
+    public void rejectsTrailingBytes() {
+        ByteBuffer file = valid();
+        ByteBuffer padded = ByteBuffer.allocate(file.capacity() + 64);
+        padded.put(file.array()).rewind();
+        assertRejected(padded);
+    }
+
+    @Test
+    public void rejectsOversizedLabelCount() {
+        assertRejected(withInt(8, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void rejectsDecreasingLabelOffsets() {
+        assertRejected(withInt(SceneVocabulary.HEADER_SIZE + 8, 0));
+    }
+
+    @Test
+    public void rejectsLabelOffsetsPastTheBlob() {
+        int lastOffset = SceneVocabulary.HEADER_SIZE + 4 * LABELS.length;
+        assertRejected(withInt(lastOffset, 10_000));
+    }
+
+    private static void assertMatchesSource(SceneVocabulary vocabulary, float tolerance) {
+        assertEquals(LABELS.length, vocabulary.size());
+        assertEquals(DIMENSION, vocabulary.dimension());
+        float[] row = new float[DIMENSION];
+        for (int i = 0; i < LABELS.length; i++) {
+            assertEquals(LABELS[i], vocabulary.label(i));
+            assertEquals(RISKS[i], vocabulary.risk(i), 0.0f);
+            vocabulary.copyEmbedding(i, row);
+            double norm = 0.0;
+            for (int j = 0; j < DIMENSION; j++) {
+                norm += EMBEDDINGS[i * DIMENSION + j] * EMBEDDINGS[i * DIMENSION + j];
+            }
+            for (int j = 0; j < DIMENSION; j++) {
+                assertEquals((float) (EMBEDDINGS[i * DIMENSION + j] / Math.sqrt(norm)), row[j], tolerance);
+            }
+        }
+    }
+
+    private static void assertRejected(ByteBuffer file) {
+        try {
+            SceneVocabulary.fromBuffer(file);
+            fail("Invalid vocabulary was accepted.");
+        } catch (IOException expected) {
+            // Rejected as it should be.
+        }
+    }
+
+    private static ByteBuffer valid() {
+        return SceneVocabulary.encode(LABELS, RISKS, EMBEDDINGS, DIMENSION);
+    }
+
+    private static ByteBuffer withInt(int offset, int value) {
+        ByteBuffer file = valid();
+        file.putInt(offset, value);
+        return file;
+    }
+
+    /** Same steps as CompileSceneVocabularyTask in app/build.gradle. */
+    private static ByteBuffer compileLikeGradle(boolean half) {
+        int numLabels = LABELS.length;
+        byte[][] labelBytes = new byte[numLabels][];
+        int blobSize = 0;
+        for (int i = 0; i < numLabels; i++) {
+            labelBytes[i] = LABELS[i].getBytes(StandardCharsets.UTF_8);
+            blobSize += labelBytes[i].length;
+        }
+        int labelTableOffset = 32;
+        int risksOffset = align(labelTableOffset + 4 * (numLabels + 1) + blobSize, 4);
+        int embeddingsOffset = align(risksOffset + 4 * numLabels, 64);
+        int totalSize = embeddingsOffset + (half ? 2 : 4) * numLabels * DIMENSION;
+
+        ByteBuffer out = ByteBuffer.allocate(totalSize).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(0x42565353).putInt(1).putInt(numLabels).putInt(DIMENSION).putInt(half ? 1 : 0)
+                .putInt(labelTableOffset).putInt(risksOffset).putInt(embeddingsOffset);
+        int blobOffset = 0;
+        for (byte[] bytes : labelBytes) {
+            out.putInt(blobOffset);
+            blobOffset += bytes.length;
+        }
+        out.putInt(blobOffset);
+        for (byte[] bytes : labelBytes) {
+            out.put(bytes);
+        }
+        out.position(risksOffset);
+        for (float risk : RISKS) {
+            out.putFloat(risk);
+        }
+        out.position(embeddingsOffset);
+        for (int i = 0; i < numLabels; i++) {
+            double sumSquares = 0.0;
+            for (int j = 0; j < DIMENSION; j++) {
+                sumSquares += EMBEDDINGS[i * DIMENSION + j] * EMBEDDINGS[i * DIMENSION + j];
+            }
+            double invNorm = sumSquares > 0 ? 1.0 / Math.sqrt(sumSquares) : 0.0;
+            for (int j = 0; j < DIMENSION; j++) {
+                float normalized = (float) (EMBEDDINGS[i * DIMENSION + j] * invNorm);
+                if (half) {
+                    out.putShort(toHalf(normalized));
+                } else {
+                    out.putFloat(normalized);
+                }
+            }
+        }
+        out.rewind();
+        return out;
+    }
+
+    private static int align(int value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+    private static short toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+        int mantissa = bits & 0x7FFFFF;
+        if (exponent <= 0) {
+            if (exponent < -10) {
+                return (short) sign;
+            }
+            mantissa = (mantissa | 0x800000) >> (1 - exponent);
+            return (short) (sign | ((mantissa + 0x1000) >> 13));
+        }
+        if (exponent >= 0x1F) {
+            return (short) (sign | 0x7C00);
+        }
+        return (short) ((sign | (exponent << 10) | (mantissa >> 13)) + ((mantissa >> 12) & 1));
+    }
+}
@@ -0,0 +1,81 @@
+package com.android.safesphere.ml;
+
+import java.io.IOException;
+import java.util.Random;
+
+/** Synthetic vocabularies and queries for the label index tests. */
+final class TestVocabularies {
+    private TestVocabularies() {
+    }
+
+    /** Labels with independent Gaussian embeddings. */
+    static SceneVocabulary random(Random random, int size, int dimension) throws IOException {
+        float[] embeddings = new float[size * dimension];
+        for (int i = 0; i < embeddings.length; i++) {
+            embeddings[i] = (float) random.nextGaussian();
+        }
+        return vocabulary(random, embeddings, size, dimension);
+    }
+
+    /**
+     * Labels grouped around {@code clusters} random directions, like the synonyms and variants of a
+     * real scene vocabulary; {@code spread} is the per-component noise around a cluster's direction.
+     */
+    static SceneVocabulary clustered(Random random, int size, int dimension, int clusters, float spread)
+            throws IOException {
+        float[][] centers = new float[clusters][];
+        for (int c = 0; c < clusters; c++) {
+            centers[c] = unitVector(random, dimension);
+        }
+        float[] embeddings = new float[size * dimension];
+        for (int i = 0; i < size; i++) {
+            float[] center = centers[random.nextInt(clusters)];
+            for (int j = 0; j < dimension; j++) {
+                embeddings[i * dimension + j] = center[j] + spread * (float) random.nextGaussian();
+            }
+        }
+        return vocabulary(random, embeddings, size, dimension);
+    }
+
+    /** A normalized query near label {@code index}: its embedding plus per-component noise. */
+    static float[] queryNear(SceneVocabulary vocabulary, int index, Random random, float noise) {
+        float[] query = new float[vocabulary.dimension()];
+        vocabulary.copyEmbedding(index, query);
+        for (int j = 0; j < query.length; j++) {
+            query[j] += noise * (float) random.nextGaussian();
+        }
+        normalize(query);
+        return query;
+    }
+
+    static float[] unitVector(Random random, int dimension) {
+        float[] vector = new float[dimension];
+        for (int j = 0; j < dimension; j++) {
+            vector[j] = (float) random.nextGaussian();
+        }
+        normalize(vector);
+        return vector;
+    }
+
+    private static SceneVocabulary vocabulary(Random random, float[] embeddings, int size, int dimension)
+            throws IOException {
+        String[] labels = new String[size];
+        float[] risks = new float[size];
+        for (int i = 0; i < size; i++) {
+            labels[i] = "label " + i;
+            risks[i] = random.nextInt(100);
+        }
+        return SceneVocabulary.fromBuffer(SceneVocabulary.encode(labels, risks, embeddings, dimension));
+    }
+
+    private static void normalize(float[] vector) {
+        double norm = 0.0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        float invNorm = (float) (1.0 / Math.sqrt(norm));
+        for (int j = 0; j < vector.length; j++) {
+            vector[j] *= invNorm;
+        }
+    }
+}